@@ -0,0 +1,58 @@
+package tv.twitch;
+
+/**
+ * A CoreAPI implemented in Java which needs no native libraries, for running the broadcast and chat code against simulated backends.
+ * It only tracks whether it has been initialized.
+ */
+public class SimulatedCoreAPI extends CoreAPI
+{
+    protected boolean m_Initialized = false;
+    protected MessageLevel m_TraceLevel = MessageLevel.TTV_ML_ERROR;
+
+    public synchronized boolean getIsInitialized()
+    {
+        return m_Initialized;
+    }
+
+    public synchronized ErrorCode init(String clientId, VideoEncoder encoder, String dllPath)
+    {
+        if (m_Initialized)
+        {
+            return ErrorCode.TTV_EC_ALREADY_INITIALIZED;
+        }
+        else if (clientId == null || clientId.length() == 0)
+        {
+            return ErrorCode.TTV_EC_INVALID_CLIENTID;
+        }
+
+        m_Initialized = true;
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    public synchronized ErrorCode shutdown()
+    {
+        if (!m_Initialized)
+        {
+            return ErrorCode.TTV_EC_NOT_INITIALIZED;
+        }
+
+        m_Initialized = false;
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    public synchronized ErrorCode setTraceLevel(MessageLevel level)
+    {
+        m_TraceLevel = level;
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    public ErrorCode setTraceOutput(String outputFileName)
+    {
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    public String errorToString(ErrorCode error)
+    {
+        return error.name();
+    }
+}
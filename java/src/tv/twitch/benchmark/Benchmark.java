@@ -0,0 +1,173 @@
+package tv.twitch.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+/**
+ * A minimal harness for timing an operation.  The operation is run for a warmup period so the JIT has compiled it and then for a
+ * measurement period.  The throughput, the average time per operation and, where the JVM can report it, the number of bytes allocated
+ * per operation by the calling thread are reported.
+ */
+public class Benchmark
+{
+    /**
+     * The outcome of a benchmark.
+     */
+    public static class Result
+    {
+        public String name = null;
+        public long operations = 0;
+        public long elapsedNanos = 0;
+        public long allocatedBytes = -1;   //!< -1 if the JVM can't report allocations.
+
+        public double getOperationsPerSecond()
+        {
+            return elapsedNanos > 0 ? operations * 1e9 / elapsedNanos : 0;
+        }
+
+        public double getNanosPerOperation()
+        {
+            return operations > 0 ? (double)elapsedNanos / operations : 0;
+        }
+
+        public double getBytesPerOperation()
+        {
+            return operations > 0 && allocatedBytes >= 0 ? (double)allocatedBytes / operations : -1;
+        }
+
+        @Override
+        public String toString()
+        {
+            String allocated = allocatedBytes >= 0 ? String.format("%10.1f B/op", getBytesPerOperation()) : "         n/a";
+            return String.format("%-40s %12.1f ops/s %12.3f ms/op %s", name, getOperationsPerSecond(), getNanosPerOperation() / 1e6, allocated);
+        }
+    }
+
+    private static Method s_GetThreadAllocatedBytes = null;
+
+    static
+    {
+        // only available on HotSpot based JVMs
+        try
+        {
+            Class<?> clazz = Class.forName("com.sun.management.ThreadMXBean");
+            s_GetThreadAllocatedBytes = clazz.getMethod("getThreadAllocatedBytes", long.class);
+        }
+        catch (Exception x)
+        {
+            s_GetThreadAllocatedBytes = null;
+        }
+    }
+
+    protected long m_WarmupMillis = 1000;
+    protected long m_MeasureMillis = 3000;
+
+    public Benchmark()
+    {
+    }
+
+    public Benchmark(long warmupMillis, long measureMillis)
+    {
+        m_WarmupMillis = warmupMillis;
+        m_MeasureMillis = measureMillis;
+    }
+
+    /**
+     * Runs the operation repeatedly for the warmup period and then measures it.
+     */
+    public Result run(String name, Runnable operation)
+    {
+        runFor(operation, m_WarmupMillis);
+
+        long allocatedBefore = getAllocatedBytes();
+        long start = System.nanoTime();
+        long operations = runFor(operation, m_MeasureMillis);
+        long elapsed = System.nanoTime() - start;
+        long allocatedAfter = getAllocatedBytes();
+
+        Result result = new Result();
+        result.name = name;
+        result.operations = operations;
+        result.elapsedNanos = elapsed;
+        result.allocatedBytes = allocatedBefore >= 0 && allocatedAfter >= 0 ? allocatedAfter - allocatedBefore : -1;
+
+        return result;
+    }
+
+    /**
+     * Runs the operation and prints the result to standard out.
+     */
+    public Result runAndPrint(String name, Runnable operation)
+    {
+        Result result = run(name, operation);
+        System.out.println(result);
+        return result;
+    }
+
+    protected long runFor(Runnable operation, long millis)
+    {
+        long end = System.nanoTime() + millis * 1000000L;
+        long operations = 0;
+
+        // check the time in batches so the clock doesn't dominate cheap operations
+        int batch = 1;
+        while (System.nanoTime() < end)
+        {
+            long batchStart = System.nanoTime();
+            for (int i = 0; i < batch; ++i)
+            {
+                operation.run();
+            }
+            operations += batch;
+
+            if (System.nanoTime() - batchStart < 1000000L && batch < (1 << 20))
+            {
+                batch <<= 1;
+            }
+        }
+
+        return operations;
+    }
+
+    /**
+     * The total number of bytes the calling thread has allocated or -1 if it isn't known.
+     */
+    protected static long getAllocatedBytes()
+    {
+        if (s_GetThreadAllocatedBytes == null)
+        {
+            return -1;
+        }
+
+        try
+        {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            return (Long)s_GetThreadAllocatedBytes.invoke(bean, Thread.currentThread().getId());
+        }
+        catch (Exception x)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Parses a command line argument or returns the default if it's missing or invalid.
+     */
+    public static int parseArgument(String[] args, int index, int defaultValue)
+    {
+        if (args == null || index >= args.length)
+        {
+            return defaultValue;
+        }
+
+        try
+        {
+            return Integer.parseInt(args[index]);
+        }
+        catch (NumberFormatException x)
+        {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package tv.twitch.benchmark;
+
+import tv.twitch.Core;
+import tv.twitch.SimulatedCoreAPI;
+import tv.twitch.broadcast.BroadcastController;
+import tv.twitch.broadcast.FrameBuffer;
+import tv.twitch.broadcast.FrameBufferPool;
+import tv.twitch.broadcast.SimulatedStreamAPI;
+import tv.twitch.broadcast.Stream;
+import tv.twitch.broadcast.SyntheticFrameSource;
+import tv.twitch.broadcast.VideoParams;
+
+/**
+ * Measures the per-frame operations of a BroadcastController in the Broadcasting state, running against a SimulatedStreamAPI so no native
+ * libraries are needed.  The simulated encoder and link are instant and unlimited so only the cost of the controller is measured, apart
+ * from the small bookkeeping the simulation does for each submitted frame.  Each operation reports its throughput and the bytes the
+ * benchmark thread allocated per operation.
+ *
+ * Usage: BroadcastBenchmark [width] [height] [warmup ms] [measure ms]
+ *
+ * On Java 9 and newer run with --add-opens java.base/java.nio=ALL-UNNAMED so the simulated buffers can be given addresses.
+ */
+public class BroadcastBenchmark
+{
+    private static final long s_SetupTimeoutMillis = 5000;
+
+    public static void main(String[] args)
+    {
+        int width = Benchmark.parseArgument(args, 0, 1280);
+        int height = Benchmark.parseArgument(args, 1, 720);
+        Benchmark benchmark = new Benchmark(Benchmark.parseArgument(args, 2, 500), Benchmark.parseArgument(args, 3, 2000));
+
+        SimulatedStreamAPI api = new SimulatedStreamAPI();
+        api.setEncodeMillis(0);
+        api.setEncoderQueueSize(1024);
+        api.setBandwidthKbps(0);
+        api.setRoundTripMillis(0);
+
+        final BroadcastController controller = new BroadcastController(new Core(new SimulatedCoreAPI()), new Stream(api));
+        if (!startBroadcasting(controller, width, height))
+        {
+            System.out.println("Unable to start the simulated broadcast");
+            return;
+        }
+
+        final FrameBufferPool pool = controller.getBufferPool();
+        final long address = pool.acquire().getAddress();
+        controller.bufferUnlockCallback(address);
+
+        System.out.println(String.format("Broadcast hot path at %dx%d against the simulated stream", width, height));
+
+        benchmark.runAndPrint("getNextFreeBuffer + release", new Runnable()
+        {
+            public void run()
+            {
+                pool.release(controller.getNextFreeBuffer());
+            }
+        });
+
+        benchmark.runAndPrint("submitFrame + update", new Runnable()
+        {
+            public void run()
+            {
+                // the unlock is delivered from the update so the pool never runs dry
+                controller.submitFrame(controller.getNextFreeBuffer());
+                controller.update();
+            }
+        });
+
+        benchmark.runAndPrint("acquire + bufferUnlockCallback", new Runnable()
+        {
+            public void run()
+            {
+                controller.bufferUnlockCallback(pool.acquire().getAddress());
+            }
+        });
+
+        benchmark.runAndPrint("FrameBuffer.lookupBuffer", new Runnable()
+        {
+            public void run()
+            {
+                FrameBuffer.lookupBuffer(address);
+            }
+        });
+
+        benchmark.runAndPrint("update while broadcasting", new Runnable()
+        {
+            public void run()
+            {
+                controller.update();
+            }
+        });
+
+        controller.stopBroadcasting();
+        pump(controller, false);
+        controller.shutdown();
+    }
+
+    /**
+     * Logs in to the simulated servers and starts a broadcast with a synthetic frame source.
+     */
+    private static boolean startBroadcasting(BroadcastController controller, int width, int height)
+    {
+        controller.setClientId("benchmark");
+        controller.setClientSecret("benchmark");
+        if (!controller.initialize() || !controller.requestAuthToken("benchmark", "benchmark"))
+        {
+            return false;
+        }
+
+        if (!pump(controller, true))
+        {
+            return false;
+        }
+
+        VideoParams videoParams = controller.getRecommendedVideoParams(width, height, 30);
+        controller.setFrameSource(new SyntheticFrameSource());
+
+        return controller.startBroadcasting(videoParams) && pump(controller, false) && controller.getIsBroadcasting();
+    }
+
+    /**
+     * Updates the controller until it is ready to broadcast, if waiting for that, or until it is broadcasting or stopped.
+     */
+    private static boolean pump(BroadcastController controller, boolean waitForReady)
+    {
+        long end = System.currentTimeMillis() + s_SetupTimeoutMillis;
+        while (System.currentTimeMillis() < end)
+        {
+            controller.update();
+
+            if (waitForReady ? controller.getIsReadyToBroadcast() : controller.getIsBroadcasting() || controller.getIsReadyToBroadcast())
+            {
+                return true;
+            }
+
+            Thread.yield();
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,167 @@
+package tv.twitch.benchmark;
+
+import tv.twitch.Core;
+import tv.twitch.SimulatedCoreAPI;
+import tv.twitch.broadcast.LatencyHistogram;
+import tv.twitch.chat.Chat;
+import tv.twitch.chat.ChatController;
+import tv.twitch.chat.ChatUserInfo;
+import tv.twitch.chat.ChatUserList;
+import tv.twitch.chat.SimulatedChatAPI;
+
+/**
+ * Measures how fast a connected ChatController ingests messages and viewer churn, running against a SimulatedChatAPI so no native
+ * libraries are needed.  The callbacks are first timed directly with single messages and with full batches, reporting messages per second
+ * and the bytes allocated per message.  Then a storm is run where messages arrive at a high rate with bursts and update() is called once
+ * per frame, reporting how long each update() blocked the calling thread.
+ *
+ * Usage: ChatStormBenchmark [warmup ms] [measure ms] [messages per second]
+ */
+public class ChatStormBenchmark
+{
+    private static final long s_SetupTimeoutMillis = 5000;
+    private static final long s_FrameNanos = 16666667;
+    private static final int s_BatchSize = 32;
+
+    public static void main(String[] args)
+    {
+        Benchmark benchmark = new Benchmark(Benchmark.parseArgument(args, 0, 500), Benchmark.parseArgument(args, 1, 2000));
+        long stormMillis = Benchmark.parseArgument(args, 1, 2000);
+        int messagesPerSecond = Benchmark.parseArgument(args, 2, 2000);
+
+        final SimulatedChatAPI api = new SimulatedChatAPI(1);
+        api.setMessagesPerSecond(0);
+        api.setChurnPerSecond(0);
+        api.setConnectMillis(0);
+
+        final ChatController controller = new ChatController(new Core(new SimulatedCoreAPI()), new Chat(api));
+        controller.setClientId("benchmark");
+        controller.setEmoticonParsingModeMode(ChatController.EmoticonMode.Url);
+        if (!controller.connectAnonymous("benchmark") || !pump(controller))
+        {
+            System.out.println("Unable to connect to the simulated chat");
+            return;
+        }
+
+        System.out.println(String.format("Chat ingestion with %d viewers and a history of %d messages", api.getPresentCount(),
+                                         controller.getMessageHistorySize()));
+
+        for (final int batch : new int[] { 1, s_BatchSize })
+        {
+            printPerMessage(benchmark.run(String.format("raw messages x%d", batch), new Runnable()
+            {
+                public void run()
+                {
+                    controller.chatChannelMessageCallback(api.nextMessageList(batch));
+                }
+            }), batch);
+
+            printPerMessage(benchmark.run(String.format("tokenized messages x%d", batch), new Runnable()
+            {
+                public void run()
+                {
+                    controller.chatChannelTokenizedMessageCallback(api.nextTokenizedMessages(batch));
+                }
+            }), batch);
+        }
+
+        final ChatUserList churn = createChurn(api, s_BatchSize);
+        final ChatUserList empty = new ChatUserList();
+        empty.userList = new ChatUserInfo[0];
+        benchmark.runAndPrint(String.format("viewer churn x%d", s_BatchSize), new Runnable()
+        {
+            private boolean m_Joined = false;
+
+            public void run()
+            {
+                // alternately join and leave the same viewers so the channel stays the same size
+                m_Joined = !m_Joined;
+                controller.chatChannelUserChangeCallback(m_Joined ? churn : empty, m_Joined ? empty : churn, empty);
+            }
+        });
+
+        runStorm(api, controller, messagesPerSecond, stormMillis);
+
+        controller.disconnect();
+    }
+
+    /**
+     * Calls update() once per frame while the simulation delivers messages and churn, recording how long each update() takes.
+     */
+    private static void runStorm(SimulatedChatAPI api, ChatController controller, int messagesPerSecond, long millis)
+    {
+        api.setMessagesPerSecond(messagesPerSecond);
+        api.setBursts(1000, 200);
+        api.setChurnPerSecond(50);
+        controller.update();
+
+        long delivered = api.getDeliveredCount();
+        LatencyHistogram pauses = new LatencyHistogram();
+        long start = System.nanoTime();
+        long end = start + millis * 1000000L;
+        long frame = start;
+        while (frame < end)
+        {
+            long updateStart = System.nanoTime();
+            controller.update();
+            pauses.record(System.nanoTime() - updateStart);
+
+            frame += s_FrameNanos;
+            while (System.nanoTime() < frame)
+            {
+                Thread.yield();
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+        delivered = api.getDeliveredCount() - delivered;
+
+        System.out.println(String.format("storm at %d msg/s with 20x bursts: %d messages, %.1f msg/s, %d updates, pause mean %.3f ms p50 %.3f ms p99 %.3f ms max %.3f ms",
+                                         messagesPerSecond, delivered, delivered * 1e9 / elapsed, pauses.getCount(), pauses.getMean() / 1e6,
+                                         pauses.getPercentile(50) / 1e6, pauses.getPercentile(99) / 1e6, pauses.getMax() / 1e6));
+    }
+
+    private static void printPerMessage(Benchmark.Result result, int batch)
+    {
+        double bytes = result.getBytesPerOperation();
+        String allocated = bytes >= 0 ? String.format("%10.1f B/msg", bytes / batch) : "          n/a";
+        System.out.println(String.format("%-40s %12.1f msg/s %s", result.name, result.getOperationsPerSecond() * batch, allocated));
+    }
+
+    /**
+     * Builds a list of viewers who are not in the channel, used as both the join and the leave list.
+     */
+    private static ChatUserList createChurn(SimulatedChatAPI api, int count)
+    {
+        ChatUserList list = new ChatUserList();
+        list.userList = new ChatUserInfo[count];
+        for (int i = 0; i < count; ++i)
+        {
+            // the odd viewers start outside the channel
+            list.userList[i] = api.getUser(2 * i + 1);
+        }
+
+        return list;
+    }
+
+    /**
+     * Updates the controller until it has connected.
+     */
+    private static boolean pump(ChatController controller)
+    {
+        long end = System.currentTimeMillis() + s_SetupTimeoutMillis;
+        while (System.currentTimeMillis() < end)
+        {
+            controller.update();
+
+            if (controller.getIsConnected())
+            {
+                return true;
+            }
+
+            Thread.yield();
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,90 @@
+package tv.twitch.benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import tv.twitch.broadcast.ParallelBandExecutor;
+import tv.twitch.broadcast.PixelFormat;
+import tv.twitch.broadcast.PixelFormatConverter;
+
+/**
+ * Measures PixelFormatConverter for every pair of PixelFormats at 720p and 1080p, in place and into a second buffer, and the cost of
+ * adding a vertical flip.
+ *
+ * Usage: PixelFormatBenchmark [threads] [warmup ms] [measure ms]
+ */
+public class PixelFormatBenchmark
+{
+    private static final int[][] s_Resolutions = { { 1280, 720 }, { 1920, 1080 } };
+
+    public static void main(String[] args)
+    {
+        int threads = Benchmark.parseArgument(args, 0, Runtime.getRuntime().availableProcessors());
+        Benchmark benchmark = new Benchmark(Benchmark.parseArgument(args, 1, 500), Benchmark.parseArgument(args, 2, 2000));
+        ParallelBandExecutor executor = new ParallelBandExecutor(threads);
+
+        System.out.println(String.format("Pixel format conversion with %d thread(s)", executor.getThreadCount()));
+
+        for (int[] resolution : s_Resolutions)
+        {
+            int width = resolution[0];
+            int height = resolution[1];
+
+            final ByteBuffer source = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder());
+            final ByteBuffer dest = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder());
+            for (int i = 0; i < source.capacity(); ++i)
+            {
+                source.put(i, (byte)(i * 31));
+            }
+
+            for (PixelFormat from : PixelFormat.values())
+            {
+                for (PixelFormat to : PixelFormat.values())
+                {
+                    run(benchmark, executor, from, to, false, width, height, source, dest);
+                }
+            }
+
+            run(benchmark, executor, PixelFormat.TTV_PF_RGBA, PixelFormat.TTV_PF_RGBA, true, width, height, source, dest);
+            run(benchmark, executor, PixelFormat.TTV_PF_RGBA, PixelFormat.TTV_PF_BGRA, true, width, height, source, dest);
+        }
+
+        executor.shutdown();
+    }
+
+    private static void run(Benchmark benchmark, ParallelBandExecutor executor, PixelFormat from, PixelFormat to, boolean flip,
+                            int width, int height, final ByteBuffer source, final ByteBuffer dest)
+    {
+        final PixelFormatConverter converter = new PixelFormatConverter(executor);
+        converter.configure(from, to, flip, width, height);
+
+        String name = String.format("%dp %s->%s%s", height, shortName(from), shortName(to), flip ? " flip" : "");
+
+        benchmark.runAndPrint(name + " copy", new Runnable()
+        {
+            public void run()
+            {
+                converter.convert(source, dest);
+            }
+        });
+
+        // converting in place to the same format is a no-op
+        if (converter.getIsIdentity())
+        {
+            return;
+        }
+
+        benchmark.runAndPrint(name + " in place", new Runnable()
+        {
+            public void run()
+            {
+                converter.convert(dest);
+            }
+        });
+    }
+
+    private static String shortName(PixelFormat format)
+    {
+        return format.name().substring("TTV_PF_".length());
+    }
+}
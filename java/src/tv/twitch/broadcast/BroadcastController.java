@@ -1,8 +1,14 @@
 package tv.twitch.broadcast;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import tv.twitch.*;
+import tv.twitch.trace.TraceRecorder;
 
 
 /**
@@ -57,6 +63,17 @@ public class BroadcastController implements IStreamCallbacks, IStatCallbacks
         Paused,                 //!< Broadcasting but paused.
         IngestTesting           //!< Running the ingest tester.
     }
+    
+    /**
+     * What to do when a frame is due but every capture buffer is queued in the encoder.
+     */
+    public enum BackpressurePolicy
+    {
+        DropNewest,             //!< Don't capture the new frame.
+        RecycleOldest,          //!< Capture into the oldest frame still waiting for the submission worker, dropping it instead.  Without asynchronous submission this is the same as DropNewest.
+        Block,                  //!< Wait up to the backpressure timeout for the encoder to release a buffer.  Buffers are only released while the game thread waits if the SDK is polled in the background, so without background polling this is the same as DropNewest.
+        ReduceFrameRate         //!< Drop the new frame and halve the capture rate until the encoder catches up.
+    }
 	
     public interface Listener
     {
@@ -127,6 +144,31 @@ public class BroadcastController implements IStreamCallbacks, IStatCallbacks
     
     protected final int s_StreamInfoUpdateInterval = 30; 	//!< Update the stream info every 30 seconds.
     protected final int s_NumSdkBuffers = 3; 				//!< The number of buffers required to submit to the SDK.
+    protected final int s_MaxSdkBuffers = 8; 				//!< The default limit on the number of buffers the pool may grow to.
+    protected final long s_MaxBufferMemory = 256L * 1024 * 1024;	//!< The default limit on the native memory used by the buffer pool.
+    protected final long s_BufferShrinkDelay = 10000; 		//!< The default time in milliseconds the pool must be idle before it shrinks.
+    protected final long s_BackpressureTimeout = 5;			//!< The default time in milliseconds to wait for a buffer with the Block policy.
+    protected final int s_MaxFrameRateDivisor = 8;			//!< The most the ReduceFrameRate policy will divide the capture rate by.
+    protected static final long s_PollIntervalNanos = 5000000;          //!< How often the polling thread polls the SDK.
+    protected static final long s_DefaultCallbackBudgetNanos = 2000000;
+    protected static final int s_CallbackQueueCapacity = 256;
+    protected static final int s_TraceCallbacks = TraceRecorder.registerEvent("callbacks", "broadcast");	//!< The argument is the number of callbacks delivered.
+    protected static final int s_TraceUpdate = TraceRecorder.registerEvent("update", "broadcast");
+    protected static final int s_TracePollTasks = TraceRecorder.registerEvent("pollTasks", "broadcast");
+    protected static final int s_TraceCapture = TraceRecorder.registerEvent("capture", "broadcast");
+    protected static final int s_TraceSubmit = TraceRecorder.registerEvent("submitVideoFrame", "broadcast");
+    protected static final int s_TraceUnlock = TraceRecorder.registerEvent("bufferUnlock", "broadcast");	//!< The argument is the time the frame spent with the SDK.
+    protected static final int[] s_TraceStates = new int[BroadcastState.values().length];	//!< The state events, indexed by ordinal.
+    
+    static
+    {
+    	for (BroadcastState state : BroadcastState.values())
+    	{
+    		s_TraceStates[state.ordinal()] = TraceRecorder.registerEvent("state " + state.name(), "broadcast");
+    	}
+    }
+    
+    protected static final FrameBuffer s_InvalidBuffer = new FrameBuffer(new NullStreamAPI(), 0);	//!< Returned by tryAcquireBuffer() when there is no buffer.
     
     //endregion
     
@@ -138,11 +180,45 @@ public class BroadcastController implements IStreamCallbacks, IStatCallbacks
     protected String m_ClientSecret = "";
     protected String m_DllPath = "";
     protected boolean m_EnableAudio = true;
+    protected int m_MinFrameBuffers = s_NumSdkBuffers;
+    protected int m_MaxFrameBuffers = s_MaxSdkBuffers;
+    protected long m_MaxFrameBufferMemory = s_MaxBufferMemory;
+    protected long m_FrameBufferShrinkDelay = s_BufferShrinkDelay;
+    protected long m_MaxRetainedFrameBufferMemory = s_MaxBufferMemory;
+    protected BackpressurePolicy m_BackpressurePolicy = BackpressurePolicy.DropNewest;
+    protected long m_BackpressureTimeout = s_BackpressureTimeout;
+    protected int m_FrameRateDivisor = 1;           //!< How much the ReduceFrameRate policy has currently divided the capture rate by.
+    protected int m_NumHealthyAcquires = 0;         //!< Buffers acquired in a row with a spare left in the pool, used to restore the capture rate.
+    protected long m_NumBackpressureDrops = 0;
+    protected long m_NumBackpressureRecycles = 0;
+    protected long m_NumBackpressureBlocks = 0;
+    protected long m_NumBackpressureTimeouts = 0;
+    protected long m_NumFrameRateReductions = 0;
+    protected boolean m_AsyncSubmission = false;
+    protected boolean m_BackgroundPolling = false;
+    protected long m_CallbackBudgetNanos = s_DefaultCallbackBudgetNanos;
 
     protected Core m_Core = null;
     protected Stream m_Stream = null;
-    protected List<FrameBuffer> m_CaptureBuffers = new ArrayList<FrameBuffer>();
-    protected List<FrameBuffer> m_FreeBufferList = new ArrayList<FrameBuffer>();
+    protected FrameSource m_FrameSource = null;         //!< Where captureFrame() gets frames from.
+    protected FramePacer m_FramePacer = new FramePacer(30);     //!< Schedules captures for captureFrameIfDue().
+    protected FrameDeduplicator m_FrameDeduplicator = new FrameDeduplicator();  //!< Skips frames which are unchanged from the last one.
+    protected ParallelBandExecutor m_BandExecutor = null;      //!< The threads image processing stages split their work across.
+    protected volatile FrameCompositor m_Compositor = null;   //!< Blends overlays into frames before they are submitted.
+    protected volatile FrameRecorder m_Recorder = null;     //!< Keeps a local copy of the submitted frames.
+    protected volatile InstantReplayBuffer m_InstantReplay = null;     //!< Keeps the last stretch of the broadcast in memory.
+    protected final FrameSinkFanOut m_FrameSinks = new FrameSinkFanOut();  //!< Shares the submitted frames with other consumers.
+    protected FrameSubmitWorker m_SubmitWorker = null;  //!< The thread frames are submitted on when asynchronous submission is enabled.
+    protected StreamPollWorker m_PollWorker = null;     //!< The thread the SDK is polled on when background polling is enabled.
+    protected final StreamCallbackQueue m_CallbackQueue = new StreamCallbackQueue(this, s_CallbackQueueCapacity);   //!< Carries the SDK callbacks from the polling thread to update().
+    protected AtomicReference<ErrorCode> m_PendingSubmitIssue = new AtomicReference<ErrorCode>(null);   //!< A submission problem on the worker for update() to report.
+    protected volatile FrameBufferPool m_BufferPool = null;    //!< The free capture buffers, shared with the thread the SDK unlocks buffers on.
+    protected FrameBufferSlab m_BufferSlab = null;      //!< Keeps the capture buffers between broadcasts.
+    protected VideoParams m_PendingVideoParams = null;  //!< The VideoParams the broadcast restarts with once reconfigure() has stopped it.
+    protected FrameBufferPool m_PendingBufferPool = null;   //!< The buffer pool staged by reconfigure() for the new VideoParams.
+    protected long m_ReconfigureStartNanos = 0;         //!< When reconfigure() stopped the broadcast, or 0 if not reconfiguring.
+    protected long m_LastReconfigureGapNanos = 0;
+    protected LatencyHistogram m_ReconfigureGap = new LatencyHistogram();
 
     protected boolean m_SdkInitialized = false;    //!< Has Stream.Initialize() been called?
     protected boolean m_LoggedIn = false;          //!< The AuthToken as been validated and can be used for calls to the server.
@@ -165,6 +241,15 @@ public class BroadcastController implements IStreamCallbacks, IStatCallbacks
     protected long m_LastStreamInfoUpdateTime = 0;
     protected IngestTester m_IngestTester = null;
     
+    protected long m_LastSubmitCallNanos = 0;      //!< The time the game thread spent in the last call to submitFrame().
+    protected long m_MaxSubmitCallNanos = 0;       //!< The longest time the game thread has spent in submitFrame().
+    protected long m_NumFramesDroppedAtHandoff = 0;
+    
+    protected final LatencyHistogram m_AcquireLatency = new LatencyHistogram();        //!< Time spent getting a free buffer.
+    protected final LatencyHistogram m_CaptureLatency = new LatencyHistogram();        //!< Time spent capturing into a buffer.
+    protected final LatencyHistogram m_SubmitLatency = new LatencyHistogram();         //!< Time spent in Stream.submitVideoFrame().
+    protected final LatencyHistogram m_EncoderQueueLatency = new LatencyHistogram();   //!< Time from submission until the SDK unlocks the buffer.
+    
     //endregion
 
 
@@ -351,14 +436,52 @@ public class BroadcastController implements IStreamCallbacks, IStatCallbacks
 
     public void bufferUnlockCallback(long address)
     {
-    	FrameBuffer buffer = FrameBuffer.lookupBuffer(address);
+        // Put back in the pool, this may be called from any thread.  With background polling it runs on the polling thread, possibly while
+        // cleanupBuffers() frees the pool, which is safe since lookupSlot() and release() never touch the native memory.
+    	FrameBufferPool pool = m_BufferPool;
+    	if (pool == null)
+    	{
+    		return;
+    	}
     	
-        // Put back on the free list
-        m_FreeBufferList.add(buffer);
+    	FrameBufferPool.Slot slot = pool.lookupSlot(address);
+    	if (slot == null)
+    	{
+    		return;
+    	}
+    	
+    	long submitTime = slot.getSubmitTime();
+    	if (submitTime != 0)
+    	{
+    		long queued = System.nanoTime() - submitTime;
+    		m_EncoderQueueLatency.record(queued);
+    		TraceRecorder.instant(s_TraceUnlock, queued);
+    		slot.setSubmitTime(0);
+    	}
+    	
+    	// sinks may still be reading the frame
+    	if (slot.releaseReference())
+    	{
+    		pool.release(slot.getBuffer());
+    	}
     }
 
     public void startCallback(ErrorCode ret)
     {
+    	boolean reconfiguring = getIsReconfiguring();
+    	if (reconfiguring)
+    	{
+    		m_LastReconfigureGapNanos = System.nanoTime() - m_ReconfigureStartNanos;
+    		m_ReconfigureStartNanos = 0;
+    		
+    		if (ErrorCode.succeeded(ret))
+    		{
+    			m_ReconfigureGap.record(m_LastReconfigureGapNanos);
+    			setBroadcastState(BroadcastState.Broadcasting);
+    			return;
+    		}
+    	}
+    	
         if (ErrorCode.succeeded(ret))
         {
             try
@@ -380,6 +503,24 @@ public class BroadcastController implements IStreamCallbacks, IStatCallbacks
             m_VideoParams = null;
             m_AudioParams = null;
             
+            // undo what beginBroadcast() set up so the next start begins from scratch
+            stopSubmitWorker();
+            m_FrameSource.stop();
+            cleanupBuffers();
+            
+            // keep the frames held so the replay can still be saved
+            InstantReplayBuffer replay = m_InstantReplay;
+            if (replay != null)
+            {
+            	replay.stop();
+            }
+            
+            if (reconfiguring)
+            {
+            	// the old broadcast is already gone so report it as stopped
+            	notifyBroadcastStopped();
+            }
+            
             setBroadcastState(BroadcastState.ReadyToBroadcast);
 
             String err = ErrorCode.getString(ret);
@@ -391,23 +532,50 @@ public class BroadcastController implements IStreamCallbacks, IStatCallbacks
     {
         if (ErrorCode.succeeded(ret))
         {
-            m_VideoParams = null;
-            m_AudioParams = null;
-
+            stopSubmitWorker();
+            stopRecording();
+            m_FrameSource.stop();
             cleanupBuffers();
-
-            try
+            
+            // keep the frames held so the replay can still be saved
+            InstantReplayBuffer replay = m_InstantReplay;
+            if (replay != null)
             {
-                if (m_Listener != null)
-                {
-                	m_Listener.onBroadcastStopped();
-                }
+            	replay.stop();
             }
-            catch (Exception x)
+            
+            // restart straight away with the staged pool if this stop is part of a reconfigure
+            if (getIsReconfiguring())
             {
-                reportError(x.toString());
+            	// the old pool is gone so the new one may use the whole cap
+            	m_PendingBufferPool.setMaxMemory(m_MaxFrameBufferMemory);
+            	m_VideoParams = m_PendingVideoParams;
+            	m_BufferPool = m_PendingBufferPool;
+            	m_FrameSinks.setPool(m_BufferPool);
+            	m_PendingVideoParams = null;
+            	m_PendingBufferPool = null;
+            	
+            	if (beginBroadcast())
+            	{
+            		if (replay != null && replay.getIsCompatible(m_VideoParams))
+            		{
+            			replay.start();
+            		}
+            		else
+            		{
+            			m_InstantReplay = null;
+            		}
+            		return;
+            	}
+            	
+            	m_ReconfigureStartNanos = 0;
             }
 
+            m_VideoParams = null;
+            m_AudioParams = null;
+
+            notifyBroadcastStopped();
+
             if (m_LoggedIn)
             {
                 setBroadcastState(BroadcastState.ReadyToBroadcast);
@@ -419,6 +587,8 @@ public class BroadcastController implements IStreamCallbacks, IStatCallbacks
         }
         else
         {
+        	cancelReconfigure();
+        	
         	// there's not really a good state to go into here
         	setBroadcastState(BroadcastState.ReadyToBroadcast);
         	
@@ -638,209 +808,817 @@ public class BroadcastController implements IStreamCallbacks, IStatCallbacks
     }
     
     /**
-     * Retrieves the current broadcast time in milliseconds since the start of the broadcast.  Pausing the stream does not stop this timer.
+     * The number of capture buffers allocated when broadcasting starts.  The pool never shrinks below this.  Takes effect on the next broadcast.
      */
-    public long getCurrentBroadcastTime()
+    public int getMinFrameBuffers()
     {
-    	return m_Stream.getStreamTime();
+    	return m_MinFrameBuffers;
+    }
+    public void setMinFrameBuffers(int value)
+    {
+    	m_MinFrameBuffers = value;
     }
     
     /**
-     * 
-     * @return
+     * The number of capture buffers the pool may grow to if the encoder falls behind.  Takes effect on the next broadcast.
      */
-    protected boolean getIsAudioSupported()
+    public int getMaxFrameBuffers()
     {
-    	// TODO: implement OS detection 
-    	return true;
+    	return m_MaxFrameBuffers;
+    }
+    public void setMaxFrameBuffers(int value)
+    {
+    	m_MaxFrameBuffers = value;
     }
     
-    //endregion
-
-    public BroadcastController()
+    /**
+     * The maximum number of bytes of native memory the capture buffers may use.  Takes effect on the next broadcast.
+     */
+    public long getMaxFrameBufferMemory()
     {
-    	m_Core = Core.getInstance();
+    	return m_MaxFrameBufferMemory;
+    }
+    public void setMaxFrameBufferMemory(long value)
+    {
+    	m_MaxFrameBufferMemory = value;
+    }
+    
+    /**
+     * The time in milliseconds the pool must go without running low before a spare buffer is freed.  Takes effect on the next broadcast.
+     */
+    public long getFrameBufferShrinkDelay()
+    {
+    	return m_FrameBufferShrinkDelay;
+    }
+    public void setFrameBufferShrinkDelay(long value)
+    {
+    	m_FrameBufferShrinkDelay = value;
+    }
+    
+    /**
+     * The maximum number of bytes of native memory kept in idle capture buffers between broadcasts.  0 frees the buffers at the end of
+     * every broadcast.
+     */
+    public long getMaxRetainedFrameBufferMemory()
+    {
+    	return m_MaxRetainedFrameBufferMemory;
+    }
+    public void setMaxRetainedFrameBufferMemory(long value)
+    {
+    	m_MaxRetainedFrameBufferMemory = value;
     	
-    	if (Core.getInstance() == null)
+    	if (m_BufferSlab != null)
     	{
-    		m_Core = new Core( new StandardCoreAPI() );
+    		m_BufferSlab.setMaxRetainedMemory(value);
     	}
-    	
-    	m_Stream = new Stream(new DesktopStreamAPI());
     }
     
-    protected PixelFormat determinePixelFormat()
+    /**
+     * The buffers kept warm between broadcasts.  This will be null before the first broadcast.
+     */
+    public FrameBufferSlab getBufferSlab()
     {
-        return PixelFormat.TTV_PF_RGBA;
+    	return m_BufferSlab;
     }
     
     /**
-     * Initializes the SDK and the controller.
+     * Frees the capture buffers kept between broadcasts.  Buffers in use by the current broadcast are not affected.
      */
-    public boolean initialize()
+    public void trimFrameBuffers()
     {
-		if (m_SdkInitialized)
-		{
-			return false;
-		}
-
-        String dllPath = m_DllPath;
-        if (dllPath == "")
-        {
-            dllPath = "./";
-        }
-        
-        m_Stream.setStreamCallbacks(this);
-        
-        ErrorCode err = m_Core.initialize(m_ClientId, VideoEncoder.TTV_VID_ENC_DEFAULT, dllPath);
-        if (!checkError(err))
-        {
-        	m_Stream.setStreamCallbacks(null);
-        	return false;
-        }
-		
-        err = m_Core.setTraceLevel(MessageLevel.TTV_ML_ERROR);
-        if (!checkError(err))
-        {
-        	m_Stream.setStreamCallbacks(null);
-        	return false;
-        }
-
-        if (ErrorCode.succeeded(err))
-        {
-            m_SdkInitialized = true;
-            setBroadcastState(BroadcastState.Initialized);
-            return true;
-        }
-        
-        return false;
+    	if (m_BufferSlab != null)
+    	{
+    		m_BufferSlab.trim();
+    	}
     }
-
+    
     /**
-     * Cleans up and shuts down the SDK and the controller.  This will force broadcasting to terminate and the user to be logged out.
+     * What to do when a frame is due and every capture buffer is queued in the encoder.  The default is DropNewest.
      */
-    public boolean shutdown()
+    public BackpressurePolicy getBackpressurePolicy()
     {
-		if (!m_SdkInitialized)
-		{
-			return true;
-		}
-		else if (getIsIngestTesting())
-		{
-			return false;
-		}
-		
-		m_ShuttingDown = true;
-		
-        logout();
-
-        m_Stream.setStreamCallbacks(null);
-        m_Stream.setStatCallbacks(null);
-        
-        ErrorCode err = m_Stream.shutdown();
-        checkError(err);
-
-        err = m_Core.shutdown();
-        checkError(err);
-        
-        m_SdkInitialized = false;
-        m_ShuttingDown = false;
-		setBroadcastState(BroadcastState.Uninitialized);
-		
-		return true;
+    	return m_BackpressurePolicy;
     }
-
+    public void setBackpressurePolicy(BackpressurePolicy value)
+    {
+    	m_BackpressurePolicy = value;
+    }
+    
     /**
-     * Asynchronously request an authentication key based on the provided username and password.  When the request completes 
-     * onAuthTokenRequestComplete will be fired.  This does not need to be called every time the user wishes to stream.  A valid 
-     * auth token can be saved locally between sessions and restored by calling SetAuthToken.  If a request for a new auth token is made
-     * it will invalidate the previous valid auth token.  If successful, this will proceed to log the user in and will fire OnLoginAttemptComplete
-     * with the result.
-     * @param username The account username
-     * @param password The account password
-     * @return Whether or not the request was made
+     * The time in milliseconds captures made by the controller wait for a buffer with the Block policy.  This only applies with background
+     * polling, since otherwise the buffers are released by update() on the game thread which is the thread that would wait.
      */
-    public boolean requestAuthToken(String username, String password)
+    public long getBackpressureTimeout()
     {
-        if (getIsIngestTesting() || !m_SdkInitialized)
-        {
-            return false;
-        }
-
-        logout();
-
-        m_UserName = username;
-
-        AuthParams authParams = new AuthParams();
-        authParams.userName = username;
-        authParams.password = password;
-        authParams.clientSecret = m_ClientSecret;
-
-        ErrorCode err = m_Stream.requestAuthToken(authParams);
-        checkError(err);
-
-        if (ErrorCode.succeeded(err))
-        {
-            setBroadcastState(BroadcastState.Authenticating);
-            return true;
-        }
-        
-        return false;
+    	return m_BackpressureTimeout;
     }
-	
+    public void setBackpressureTimeout(long value)
+    {
+    	m_BackpressureTimeout = value;
+    }
+    
     /**
-     * Sets the auth token to use if it has been saved from a previous session.  If successful, this will proceed to log the user in 
-     * and will fire OnLoginAttemptComplete with the result.
-     * @param username The username
-     * @param token Whether or not the auth token was set
+     * The number of frames dropped because no buffer was available.
      */
-	public boolean setAuthToken(String username, AuthToken token)
-	{
-        if (getIsIngestTesting())
-        {
-            return false;
-        }
-
-        logout();
-
-        if (username == null || username.isEmpty())
-        {
-            reportError("Username must be valid");
-            return false;
-        }
-        else if (token == null || token.data == null || token.data.isEmpty())
-        {
-            reportError("Auth token must be valid");
-            return false;
-        }
-        
-        m_UserName = username;
-		m_AuthToken = token;
-		
-		if (this.getIsInitialized())
-		{
-			setBroadcastState(BroadcastState.Authenticated);
-		}
-		
-		return true;
-	}
-	
-	/**
-	 * Logs the current user out and clear the username and auth token.  This will terminate the broadcast if necessary.
-	 */
-    public boolean logout()
+    public long getBackpressureDropCount()
     {
-        if (getIsIngestTesting())
-        {
-            return false;
-        }
-
-        // stop synchronously
-        if (this.getIsBroadcasting())
-        {
-            m_Stream.stop(false);
-        }
-
+    	return m_NumBackpressureDrops;
+    }
+    
+    /**
+     * The number of frames waiting for the submission worker which were dropped so their buffer could be reused by the RecycleOldest policy.
+     */
+    public long getBackpressureRecycleCount()
+    {
+    	return m_NumBackpressureRecycles;
+    }
+    
+    /**
+     * The number of times the Block policy had to wait for a buffer.
+     */
+    public long getBackpressureBlockCount()
+    {
+    	return m_NumBackpressureBlocks;
+    }
+    
+    /**
+     * The number of times the Block policy gave up waiting for a buffer.
+     */
+    public long getBackpressureTimeoutCount()
+    {
+    	return m_NumBackpressureTimeouts;
+    }
+    
+    /**
+     * The number of times the ReduceFrameRate policy lowered the capture rate.
+     */
+    public long getFrameRateReductionCount()
+    {
+    	return m_NumFrameRateReductions;
+    }
+    
+    /**
+     * How much the ReduceFrameRate policy is currently dividing the capture rate by.  1 when captures run at the broadcast frame rate.
+     */
+    public int getFrameRateDivisor()
+    {
+    	return m_FrameRateDivisor;
+    }
+    
+    /**
+     * The FrameBuffer returned by tryAcquireBuffer() when no buffer is available.  It is never valid and is safely ignored by submitFrame().
+     */
+    public static FrameBuffer getInvalidBuffer()
+    {
+    	return s_InvalidBuffer;
+    }
+    
+    /**
+     * The source captureFrame() pulls frames from.  By default this reads the back buffer of the current OpenGL context with glReadPixels.
+     * This can only be changed when not broadcasting.
+     */
+    public FrameSource getFrameSource()
+    {
+    	return m_FrameSource;
+    }
+    public void setFrameSource(FrameSource value)
+    {
+    	if (getIsBroadcasting() || m_BroadcastState == BroadcastState.Starting)
+    	{
+    		return;
+    	}
+    	
+    	m_FrameSource = value != null ? value : new ReadPixelsFrameSource(m_Stream);
+    }
+    
+    /**
+     * The pacer which schedules captures made through captureFrameIfDue().  It is reset to the target frame rate of the VideoParams each
+     * time broadcasting starts.  The stall policy can be configured here and the counters show how well the game is keeping up.
+     */
+    public FramePacer getFramePacer()
+    {
+    	return m_FramePacer;
+    }
+    
+    /**
+     * The threads shared by the image processing stages, such as scaling, to process frames in parallel.  They are created the first time
+     * this is called and stopped by shutdown().
+     */
+    public ParallelBandExecutor getBandExecutor()
+    {
+    	if (m_BandExecutor == null)
+    	{
+    		m_BandExecutor = new ParallelBandExecutor();
+    	}
+    	
+    	return m_BandExecutor;
+    }
+    
+    /**
+     * Creates a FrameSource which captures the whole game window with the current FrameSource and scales it down to the broadcast resolution.
+     * Pass the result to setFrameSource() and keep the window size up to date with ScalingFrameSource.setWindowSize().
+     * @param windowWidth The width of the game window.
+     * @param windowHeight The height of the game window.
+     */
+    public ScalingFrameSource createScalingFrameSource(int windowWidth, int windowHeight)
+    {
+    	return new ScalingFrameSource(m_Stream, m_FrameSource, getBandExecutor(), windowWidth, windowHeight);
+    }
+    
+    /**
+     * Creates a FrameSource which captures with the current FrameSource in a different PixelFormat and converts the frames to the broadcast
+     * format.  Pass the result to setFrameSource().
+     * @param sourceFormat The format the current FrameSource captures in.
+     * @param flip Whether or not the captured frames are upside down.
+     */
+    public ConvertingFrameSource createConvertingFrameSource(PixelFormat sourceFormat, boolean flip)
+    {
+    	return new ConvertingFrameSource(m_FrameSource, sourceFormat, flip, getBandExecutor());
+    }
+    
+    /**
+     * The compositor which blends overlay layers into each frame before it is submitted.  It is created the first time this is called.
+     * Compositing happens on the worker thread if asynchronous submission is enabled.
+     */
+    public FrameCompositor getCompositor()
+    {
+    	if (m_Compositor == null)
+    	{
+    		m_Compositor = new FrameCompositor(getBandExecutor());
+    	}
+    	
+    	return m_Compositor;
+    }
+    
+    /**
+     * The fan-out which hands every submitted frame to the added FrameSinks as well as the SDK, such as a second StreamAPI sending to another
+     * service.  The sinks share the buffer the SDK encodes instead of getting copies, so it only goes back to the pool once the SDK and every
+     * sink which took the frame have released it.  Sinks are called on the thread frames are submitted on.
+     */
+    public FrameSinkFanOut getFrameSinks()
+    {
+    	return m_FrameSinks;
+    }
+    
+    /**
+     * The stage which skips encoding frames which are identical to the previous frame.  It is disabled by default.  When enabled, frames
+     * are fingerprinted just before they are submitted to the SDK, which is on the worker thread if asynchronous submission is enabled.
+     * The deduplicated count is reset each time broadcasting starts.
+     */
+    public FrameDeduplicator getFrameDeduplicator()
+    {
+    	return m_FrameDeduplicator;
+    }
+    
+    /**
+     * Whether or not frames are submitted on a dedicated worker thread.  When enabled, submitFrame() only hands the frame to the worker
+     * and returns immediately.  Processing the frame, submitting it to the SDK and reporting errors happen on the worker.  Submission issues
+     * are still passed to the listener during update().  This can only be changed when not broadcasting.
+     */
+    public boolean getAsyncSubmission()
+    {
+    	return m_AsyncSubmission;
+    }
+    public void setAsyncSubmission(boolean value)
+    {
+    	if (getIsBroadcasting() || m_BroadcastState == BroadcastState.Starting)
+    	{
+    		return;
+    	}
+    	
+    	m_AsyncSubmission = value;
+    }
+    
+    /**
+     * Whether or not the SDK is polled on a dedicated thread.  When enabled, slow SDK tasks such as web API requests no longer stall
+     * update().  The SDK makes its callbacks on the polling thread and they are queued, and update() delivers them along with the listener
+     * events they cause, within the callback budget.  Buffer unlocks are the exception, they are handled on the polling thread straight away.
+     * Polling moves back to update() while an ingest test runs.  This can't be changed during an ingest test.
+     */
+    public boolean getBackgroundPolling()
+    {
+    	return m_BackgroundPolling;
+    }
+    public void setBackgroundPolling(boolean value)
+    {
+    	if (value == m_BackgroundPolling || getIsIngestTesting())
+    	{
+    		return;
+    	}
+    	
+    	m_BackgroundPolling = value;
+    	
+    	if (!m_SdkInitialized)
+    	{
+    		return;
+    	}
+    	else if (value)
+    	{
+    		startPollWorker();
+    	}
+    	else
+    	{
+    		stopPollWorker();
+    	}
+    }
+    
+    /**
+     * The time in microseconds update() may spend delivering queued SDK callbacks when background polling is enabled.  Callbacks left over
+     * are delivered by the next update().  At least one callback is delivered by each update() if any are waiting.  A negative value
+     * delivers all of them.
+     */
+    public long getCallbackBudgetMicros()
+    {
+    	return m_CallbackBudgetNanos < 0 ? -1 : m_CallbackBudgetNanos / 1000;
+    }
+    public void setCallbackBudgetMicros(long value)
+    {
+    	m_CallbackBudgetNanos = value < 0 ? -1 : value * 1000;
+    }
+    
+    /**
+     * The number of SDK callbacks waiting for update() to deliver them.
+     */
+    public int getQueuedCallbackCount()
+    {
+    	return m_CallbackQueue.size();
+    }
+    
+    /**
+     * The time in nanoseconds the game thread spent in the last call to submitFrame().
+     */
+    public long getLastSubmitCallNanos()
+    {
+    	return m_LastSubmitCallNanos;
+    }
+    
+    /**
+     * The longest time in nanoseconds the game thread has spent in a call to submitFrame() during the current broadcast.
+     */
+    public long getMaxSubmitCallNanos()
+    {
+    	return m_MaxSubmitCallNanos;
+    }
+    
+    /**
+     * The number of frames dropped during the current broadcast because the submission worker's queue was full.
+     */
+    public long getFramesDroppedAtHandoff()
+    {
+    	return m_NumFramesDroppedAtHandoff;
+    }
+    
+    /**
+     * The time spent in getNextFreeBuffer() getting a free capture buffer.
+     */
+    public LatencyHistogram getAcquireLatency()
+    {
+    	return m_AcquireLatency;
+    }
+    
+    /**
+     * The time spent capturing a frame into a buffer, either by the FrameSource or in captureFrameBuffer_ReadPixels().
+     */
+    public LatencyHistogram getCaptureLatency()
+    {
+    	return m_CaptureLatency;
+    }
+    
+    /**
+     * The time spent in Stream.submitVideoFrame().
+     */
+    public LatencyHistogram getSubmitLatency()
+    {
+    	return m_SubmitLatency;
+    }
+    
+    /**
+     * The time from submitting a frame to the SDK until the SDK unlocks the buffer.  This is how long frames wait in the encoder.
+     */
+    public LatencyHistogram getEncoderQueueLatency()
+    {
+    	return m_EncoderQueueLatency;
+    }
+    
+    /**
+     * Clears all the pipeline latency histograms so they cover a new interval.
+     */
+    public void resetLatencyHistograms()
+    {
+    	m_AcquireLatency.reset();
+    	m_CaptureLatency.reset();
+    	m_SubmitLatency.reset();
+    	m_EncoderQueueLatency.reset();
+    }
+    
+    /**
+     * The pool of capture buffers for the current broadcast.  The occupancy of the pool shows how far behind the encoder is.  This will be null 
+     * when not broadcasting.
+     */
+    public FrameBufferPool getBufferPool()
+    {
+    	return m_BufferPool;
+    }
+    
+    /**
+     * The recorder started by startRecording(), or null if not recording.
+     */
+    public FrameRecorder getRecorder()
+    {
+    	return m_Recorder;
+    }
+    
+    /**
+     * Starts recording every submitted frame to a raw frame file, see FrameRecorder for the format.  Recording stops when the broadcast
+     * stops or the file is full.  With asynchronous submission the frames are copied on the submission worker, otherwise on the game thread.
+     * @param file The file to record to.  It is overwritten.
+     * @param maxFrames The number of frames to allocate space for.
+     * @return Whether or not recording started.
+     */
+    public boolean startRecording(File file, int maxFrames)
+    {
+    	if (!getIsBroadcasting() || m_Recorder != null)
+    	{
+    		return false;
+    	}
+    	
+    	try
+    	{
+    		m_Recorder = new FrameRecorder(file, m_VideoParams, maxFrames);
+    	}
+    	catch (IOException x)
+    	{
+    		reportError(String.format("Error while starting the recording: %s", x.toString()));
+    		return false;
+    	}
+    	
+    	return true;
+    }
+    
+    /**
+     * Stops recording and closes the file.
+     */
+    public void stopRecording()
+    {
+    	FrameRecorder recorder = m_Recorder;
+    	if (recorder == null)
+    	{
+    		return;
+    	}
+    	
+    	m_Recorder = null;
+    	recorder.close();
+    }
+    
+    /**
+     * The instant replay started by startInstantReplay(), or null if there is none.
+     */
+    public InstantReplayBuffer getInstantReplay()
+    {
+    	return m_InstantReplay;
+    }
+    
+    /**
+     * Starts keeping the last stretch of the broadcast in memory so it can be saved with saveInstantReplay().  Frames are compressed on a
+     * background thread into a log of a fixed size, see InstantReplayBuffer.  The frames held are kept after the broadcast stops until
+     * stopInstantReplay() is called or a new instant replay is started.
+     * @param durationMillis How much of the broadcast to keep.
+     * @param maxMemory The size in bytes of the compressed log.
+     * @return Whether or not the instant replay started.
+     */
+    public boolean startInstantReplay(long durationMillis, int maxMemory)
+    {
+    	if (!getIsBroadcasting())
+    	{
+    		return false;
+    	}
+    	
+    	stopInstantReplay();
+    	
+    	// a keyframe every two seconds
+    	InstantReplayBuffer replay = new InstantReplayBuffer(m_VideoParams, durationMillis, maxMemory, m_VideoParams.targetFps * 2);
+    	replay.start();
+    	m_InstantReplay = replay;
+    	
+    	return true;
+    }
+    
+    /**
+     * Stops the instant replay and frees its memory.
+     */
+    public void stopInstantReplay()
+    {
+    	InstantReplayBuffer replay = m_InstantReplay;
+    	if (replay == null)
+    	{
+    		return;
+    	}
+    	
+    	m_InstantReplay = null;
+    	replay.stop();
+    }
+    
+    /**
+     * Writes the frames held by the instant replay to a raw frame file in the FrameRecorder format.
+     * @param file The file to write.  It is overwritten.
+     * @return The number of frames written or -1 if there is no instant replay or the file couldn't be written.
+     */
+    public int saveInstantReplay(File file)
+    {
+    	InstantReplayBuffer replay = m_InstantReplay;
+    	if (replay == null)
+    	{
+    		return -1;
+    	}
+    	
+    	try
+    	{
+    		return replay.export(file, Long.MIN_VALUE);
+    	}
+    	catch (IOException x)
+    	{
+    		reportError(String.format("Error while saving the instant replay: %s", x.toString()));
+    		return -1;
+    	}
+    }
+    
+    /**
+     * Whether or not reconfigure() is restarting the broadcast.
+     */
+    public boolean getIsReconfiguring()
+    {
+    	return m_ReconfigureStartNanos != 0;
+    }
+    
+    /**
+     * The time in milliseconds the stream was down during the last reconfigure(), from stopping the old broadcast until the SDK
+     * reported the new one started.
+     */
+    public double getLastReconfigureGap()
+    {
+    	return m_LastReconfigureGapNanos / 1e6;
+    }
+    
+    /**
+     * The gaps of every reconfigure() since the controller was created.
+     */
+    public LatencyHistogram getReconfigureGaps()
+    {
+    	return m_ReconfigureGap;
+    }
+    
+    /**
+     * Retrieves the current broadcast time in milliseconds since the start of the broadcast.  Pausing the stream does not stop this timer.
+     */
+    public long getCurrentBroadcastTime()
+    {
+    	return m_Stream.getStreamTime();
+    }
+    
+    /**
+     * 
+     * @return
+     */
+    protected boolean getIsAudioSupported()
+    {
+    	// TODO: implement OS detection 
+    	return true;
+    }
+    
+    //endregion
+
+    public BroadcastController()
+    {
+    	m_Core = Core.getInstance();
+    	
+    	if (Core.getInstance() == null)
+    	{
+    		m_Core = new Core( new StandardCoreAPI() );
+    	}
+    	
+    	m_Stream = new Stream(new DesktopStreamAPI());
+    	m_FrameSource = new ReadPixelsFrameSource(m_Stream);
+    }
+    
+    /**
+     * Creates a controller which uses the given SDK objects instead of the native ones, for example a Stream around a SimulatedStreamAPI
+     * for testing without the native libraries.
+     */
+    public BroadcastController(Core core, Stream stream)
+    {
+    	m_Core = core;
+    	m_Stream = stream;
+    	m_FrameSource = new ReadPixelsFrameSource(m_Stream);
+    }
+    
+    protected PixelFormat determinePixelFormat()
+    {
+        return PixelFormat.TTV_PF_RGBA;
+    }
+    
+    /**
+     * Initializes the SDK and the controller.
+     */
+    public boolean initialize()
+    {
+		if (m_SdkInitialized)
+		{
+			return false;
+		}
+
+        String dllPath = m_DllPath;
+        if (dllPath == "")
+        {
+            dllPath = "./";
+        }
+        
+        m_Stream.setStreamCallbacks(this);
+        
+        ErrorCode err = m_Core.initialize(m_ClientId, VideoEncoder.TTV_VID_ENC_DEFAULT, dllPath);
+        if (!checkError(err))
+        {
+        	m_Stream.setStreamCallbacks(null);
+        	return false;
+        }
+		
+        err = m_Core.setTraceLevel(MessageLevel.TTV_ML_ERROR);
+        if (!checkError(err))
+        {
+        	m_Stream.setStreamCallbacks(null);
+        	return false;
+        }
+
+        if (ErrorCode.succeeded(err))
+        {
+            m_SdkInitialized = true;
+            setBroadcastState(BroadcastState.Initialized);
+            
+            if (m_BackgroundPolling)
+            {
+            	startPollWorker();
+            }
+            
+            return true;
+        }
+        
+        return false;
+    }
+
+    /**
+     * Cleans up and shuts down the SDK and the controller.  This will force broadcasting to terminate and the user to be logged out.
+     */
+    public boolean shutdown()
+    {
+		if (!m_SdkInitialized)
+		{
+			return true;
+		}
+		else if (getIsIngestTesting())
+		{
+			return false;
+		}
+		
+		m_ShuttingDown = true;
+		
+		// deliver what the polling thread already received so nothing is left half done
+		stopPollWorker();
+		m_CallbackQueue.drain(-1);
+		
+        logout();
+
+        m_Stream.setStreamCallbacks(null);
+        m_Stream.setStatCallbacks(null);
+        
+        stopRecording();
+        stopInstantReplay();
+        
+        cancelReconfigure();
+        
+        // the idle buffers were allocated by the SDK so must be freed before it shuts down
+        if (m_BufferSlab != null)
+        {
+        	m_BufferSlab.trim();
+        	m_BufferSlab = null;
+        }
+        
+        // anything still allocated now will never be freed since the SDK pins every buffer until free() is called
+        List<FrameBufferLeakDetector.Allocation> leaks = FrameBufferLeakDetector.getOutstanding();
+        for (int i = 0; i < leaks.size(); ++i)
+        {
+        	reportError(String.format("FrameBuffer leaked: %s", leaks.get(i)));
+        }
+        
+        ErrorCode err = m_Stream.shutdown();
+        checkError(err);
+
+        err = m_Core.shutdown();
+        checkError(err);
+        
+        if (m_BandExecutor != null)
+        {
+        	m_BandExecutor.shutdown();
+        	m_BandExecutor = null;
+        }
+        
+        m_SdkInitialized = false;
+        m_ShuttingDown = false;
+		setBroadcastState(BroadcastState.Uninitialized);
+		
+		return true;
+    }
+
+    /**
+     * Asynchronously request an authentication key based on the provided username and password.  When the request completes 
+     * onAuthTokenRequestComplete will be fired.  This does not need to be called every time the user wishes to stream.  A valid 
+     * auth token can be saved locally between sessions and restored by calling SetAuthToken.  If a request for a new auth token is made
+     * it will invalidate the previous valid auth token.  If successful, this will proceed to log the user in and will fire OnLoginAttemptComplete
+     * with the result.
+     * @param username The account username
+     * @param password The account password
+     * @return Whether or not the request was made
+     */
+    public boolean requestAuthToken(String username, String password)
+    {
+        if (getIsIngestTesting() || !m_SdkInitialized)
+        {
+            return false;
+        }
+
+        logout();
+
+        m_UserName = username;
+
+        AuthParams authParams = new AuthParams();
+        authParams.userName = username;
+        authParams.password = password;
+        authParams.clientSecret = m_ClientSecret;
+
+        ErrorCode err = m_Stream.requestAuthToken(authParams);
+        checkError(err);
+
+        if (ErrorCode.succeeded(err))
+        {
+            setBroadcastState(BroadcastState.Authenticating);
+            return true;
+        }
+        
+        return false;
+    }
+	
+    /**
+     * Sets the auth token to use if it has been saved from a previous session.  If successful, this will proceed to log the user in 
+     * and will fire OnLoginAttemptComplete with the result.
+     * @param username The username
+     * @param token Whether or not the auth token was set
+     */
+	public boolean setAuthToken(String username, AuthToken token)
+	{
+        if (getIsIngestTesting())
+        {
+            return false;
+        }
+
+        logout();
+
+        if (username == null || username.isEmpty())
+        {
+            reportError("Username must be valid");
+            return false;
+        }
+        else if (token == null || token.data == null || token.data.isEmpty())
+        {
+            reportError("Auth token must be valid");
+            return false;
+        }
+        
+        m_UserName = username;
+		m_AuthToken = token;
+		
+		if (this.getIsInitialized())
+		{
+			setBroadcastState(BroadcastState.Authenticated);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Logs the current user out and clear the username and auth token.  This will terminate the broadcast if necessary.
+	 */
+    public boolean logout()
+    {
+        if (getIsIngestTesting())
+        {
+            return false;
+        }
+
+        // stop synchronously
+        if (this.getIsBroadcasting())
+        {
+        	stopSubmitWorker();
+            m_Stream.stop(false);
+        }
+
         m_UserName = "";
         m_AuthToken = new AuthToken();
 
@@ -1019,10 +1797,54 @@ public class BroadcastController implements IStreamCallbacks, IStatCallbacks
         	m_AudioParams = null;
         	return false;
 		}
+		
+		return beginBroadcast();
+    }
+    
+    /**
+     * Starts the frame source and the SDK with the current VideoParams, AudioParams and buffer pool.  On failure everything is cleaned up.
+     * @return Whether or not the SDK is starting.
+     */
+    protected boolean beginBroadcast()
+    {
+		if (!m_FrameSource.start(m_VideoParams))
+		{
+			cleanupBuffers();
+			
+            reportError(String.format("Error while starting the frame source"));
+            
+        	m_VideoParams = null;
+        	m_AudioParams = null;
+        	return false;
+		}
+
+        m_FramePacer.setFramesPerSecond(m_VideoParams.targetFps);
+        m_FramePacer.reset();
+        m_FrameRateDivisor = 1;
+        m_NumHealthyAcquires = 0;
+        m_NumBackpressureDrops = 0;
+        m_NumBackpressureRecycles = 0;
+        m_NumBackpressureBlocks = 0;
+        m_NumBackpressureTimeouts = 0;
+        m_NumFrameRateReductions = 0;
+        m_FrameDeduplicator.reset();
+        resetLatencyHistograms();
+        
+        m_LastSubmitCallNanos = 0;
+        m_MaxSubmitCallNanos = 0;
+        m_NumFramesDroppedAtHandoff = 0;
+        m_PendingSubmitIssue.set(null);
+        
+        if (m_AsyncSubmission)
+        {
+        	startSubmitWorker();
+        }
 
-        ErrorCode ret = m_Stream.start(videoParams, m_AudioParams, m_IngestServer, StartFlags.None, true);
+        ErrorCode ret = m_Stream.start(m_VideoParams, m_AudioParams, m_IngestServer, StartFlags.None, true);
         if (ErrorCode.failed(ret))
         {
+        	stopSubmitWorker();
+        	m_FrameSource.stop();
         	cleanupBuffers();
         	        	
             String err = ErrorCode.getString(ret);
@@ -1050,17 +1872,115 @@ public class BroadcastController implements IStreamCallbacks, IStatCallbacks
             return false;
         }
 
+        // make sure no more frames are submitted from the worker
+        stopSubmitWorker();
+        
         ErrorCode ret = m_Stream.stop(true);
         if (ErrorCode.failed(ret))
         {
-            String err = ErrorCode.getString(ret);
-            reportError(String.format("Error while stopping the broadcast: %s", err));
-            return false;
+            String err = ErrorCode.getString(ret);
+            reportError(String.format("Error while stopping the broadcast: %s", err));
+            return false;
+        }
+		
+        setBroadcastState(BroadcastState.Stopping);
+        
+		return ErrorCode.succeeded(ret);
+    }
+    
+    /**
+     * Changes the VideoParams of the current broadcast, for example the resolution, frame rate or bitrate.  The SDK can't change them on a
+     * running stream so the broadcast is stopped and started again, but the buffers for the new VideoParams are allocated beforehand and
+     * the broadcast is started again from stopCallback() as soon as the old one has drained, without going through ReadyToBroadcast.
+     * onBroadcastStopped() and onBroadcastStarted() are not fired.  A paused broadcast is unpaused.
+     * 
+     * The time the stream was down is available from getLastReconfigureGap() once the broadcast is running again.
+     * @param videoParams The new VideoParams.
+     * @return Whether or not the reconfiguration has begun.
+     */
+    public boolean reconfigure(VideoParams videoParams)
+    {
+    	if (videoParams == null || !getIsBroadcasting() || getIsReconfiguring())
+    	{
+    		return false;
+    	}
+    	
+    	VideoParams params = videoParams.clone();
+    	
+    	// both pools are alive until the old broadcast drains so together they must fit in the memory cap, which leaves the new pool what
+    	// the old one still needs once its idle buffers are freed
+    	FrameBufferPool current = m_BufferPool;
+    	long oldMemory = 0;
+    	if (current != null)
+    	{
+    		current.trim();
+    		oldMemory = current.getMemoryUsage();
+    	}
+    	
+    	long budget = m_MaxFrameBufferMemory - oldMemory;
+    	if ((long)params.outputWidth * params.outputHeight * 4 * m_MinFrameBuffers > budget)
+    	{
+    		reportError(String.format("Not enough frame buffer memory left to reconfigure"));
+    		return false;
+    	}
+    	
+    	// stage the new pool while the old broadcast is still running so it isn't part of the gap
+    	FrameBufferPool pool = createBufferPool(params, budget);
+    	if (pool == null)
+    	{
+    		return false;
+    	}
+    	
+    	// the old pool must not grow into the memory the new one was given while it drains
+    	if (current != null)
+    	{
+    		current.setMaxMemory(oldMemory);
+    	}
+    	
+    	m_PendingVideoParams = params;
+    	m_PendingBufferPool = pool;
+    	m_ReconfigureStartNanos = System.nanoTime();
+    	
+    	if (!stopBroadcasting())
+    	{
+    		cancelReconfigure();
+    		return false;
+    	}
+    	
+    	return true;
+    }
+    
+    protected void cancelReconfigure()
+    {
+    	if (m_PendingBufferPool != null)
+    	{
+    		m_PendingBufferPool.free();
+    		m_PendingBufferPool = null;
+    		
+    		// give back the memory reconfigure() held for the new pool
+    		if (m_BufferPool != null)
+    		{
+    			m_BufferPool.setMaxMemory(m_MaxFrameBufferMemory);
+    		}
+    	}
+    	
+    	m_PendingVideoParams = null;
+    	m_ReconfigureStartNanos = 0;
+    }
+    
+    protected void notifyBroadcastStopped()
+    {
+        try
+        {
+            if (m_Listener != null)
+            {
+            	m_Listener.onBroadcastStopped();
+            }
+        }
+        catch (Exception x)
+        {
+            reportError(x.toString());
         }
-		
-        setBroadcastState(BroadcastState.Stopping);
-        
-		return ErrorCode.succeeded(ret);
     }
 	
     /**
@@ -1199,6 +2119,7 @@ public class BroadcastController implements IStreamCallbacks, IStatCallbacks
         }
 
         m_BroadcastState = state;
+        TraceRecorder.instant(s_TraceStates[state.ordinal()], state.ordinal());
 
         try
         {
@@ -1224,8 +2145,39 @@ public class BroadcastController implements IStreamCallbacks, IStatCallbacks
     		return;
     	}
     	
-        ErrorCode ret = m_Stream.pollTasks();
-        checkError(ret);
+    	long traceStart = TraceRecorder.begin();
+    	ErrorCode ret;
+    	
+    	if (m_PollWorker != null)
+    	{
+    		// the SDK is polled on the polling thread, only its errors are reported here
+    		ret = m_PollWorker.takePendingError();
+    		if (ret != null)
+    		{
+    			checkError(ret);
+    		}
+    	}
+    	else
+    	{
+	        ret = m_Stream.pollTasks();
+	        TraceRecorder.end(s_TracePollTasks, traceStart);
+	        checkError(ret);
+    	}
+    	
+    	// deliver the callbacks the polling thread queued, including any left over after it was stopped
+    	if (m_CallbackQueue.size() > 0)
+    	{
+    		long drainStart = TraceRecorder.begin();
+    		int delivered = m_CallbackQueue.drain(m_CallbackBudgetNanos);
+    		TraceRecorder.end(s_TraceCallbacks, drainStart, delivered);
+    	}
+        
+        // report problems the submission worker ran into
+        ErrorCode submitIssue = m_PendingSubmitIssue.getAndSet(null);
+        if (submitIssue != null)
+        {
+        	handleSubmitIssue(submitIssue);
+        }
 
         // update the ingest tester
         if (getIsIngestTesting())
@@ -1235,8 +2187,14 @@ public class BroadcastController implements IStreamCallbacks, IStatCallbacks
             // all done testing
             if (m_IngestTester.getIsDone())
             {
+                m_IngestTester.close();
                 m_IngestTester = null;
                 setBroadcastState(BroadcastState.ReadyToBroadcast);
+                
+                if (m_BackgroundPolling)
+                {
+                	startPollWorker();
+                }
             }
         }        
         
@@ -1320,6 +2278,8 @@ public class BroadcastController implements IStreamCallbacks, IStatCallbacks
 			    break;
 		    }
 	    }
+	    
+	    TraceRecorder.end(s_TraceUpdate, traceStart);
     }
 
     protected void updateStreamInfo()
@@ -1362,6 +2322,9 @@ public class BroadcastController implements IStreamCallbacks, IStatCallbacks
             return null;
         }
 
+        // the tester takes over the callbacks and polls the SDK from update() itself
+        stopPollWorker();
+        
         m_IngestTester = new IngestTester(m_Stream, m_IngestList);
         m_IngestTester.Start();
 
@@ -1385,58 +2348,380 @@ public class BroadcastController implements IStreamCallbacks, IStatCallbacks
     
     protected boolean allocateBuffers()
     {
-        // Allocate exactly 3 buffers to use as the capture destination while streaming.
-        // These buffers are passed to the SDK.
-        for (int i = 0; i < s_NumSdkBuffers; ++i)
+        m_BufferPool = createBufferPool(m_VideoParams, m_MaxFrameBufferMemory);
+        m_FrameSinks.setPool(m_BufferPool);
+        
+        return m_BufferPool != null;
+    }
+    
+    /**
+     * Creates a buffer pool for the VideoParams and allocates its minimum number of buffers.
+     * @param maxMemory The number of bytes the pool may use.
+     * @return The pool or null if the buffers couldn't be allocated.
+     */
+    protected FrameBufferPool createBufferPool(VideoParams videoParams, long maxMemory)
+    {
+    	// Buffers freed at the end of a broadcast are kept by the slab and reused by the next one of the same resolution
+    	if (m_BufferSlab == null)
+    	{
+	        FrameBufferPool.Allocator allocator = new FrameBufferPool.Allocator()
+	        {
+	        	public FrameBuffer allocate(int size)
+	        	{
+	        		FrameBuffer buffer = m_Stream.allocateFrameBuffer(size);
+	        		FrameBufferLeakDetector.track(buffer);
+	        		return buffer;
+	        	}
+	        	
+	        	public void free(FrameBuffer buffer)
+	        	{
+	        		FrameBufferLeakDetector.untrack(buffer);
+	        		buffer.free();
+	        	}
+	        };
+	        
+	        m_BufferSlab = new FrameBufferSlab(allocator, m_MaxRetainedFrameBufferMemory);
+    	}
+        
+        // Allocate the minimum number of buffers to use as the capture destination while streaming.  The pool will grow if
+        // the encoder holds on to them for longer than expected.  These buffers are passed to the SDK.
+        int size = videoParams.outputWidth * videoParams.outputHeight * 4;
+        FrameBufferPool pool = new FrameBufferPool(m_BufferSlab, size, m_MinFrameBuffers, m_MaxFrameBuffers, maxMemory);
+        pool.setShrinkDelayMilliseconds(m_FrameBufferShrinkDelay);
+        
+        if (!pool.allocate())
         {
-        	FrameBuffer buffer = m_Stream.allocateFrameBuffer(m_VideoParams.outputWidth * m_VideoParams.outputHeight * 4);
-            if (!buffer.getIsValid())
-            {
-                reportError(String.format("Error while allocating frame buffer"));
-                return false;
-            }
-
-            m_CaptureBuffers.add(buffer);
-            m_FreeBufferList.add(buffer);
+        	pool.free();
+            reportError(String.format("Error while allocating frame buffer"));
+            return null;
         }
-
-        return true;
+        
+        return pool;
     }
     
     protected void cleanupBuffers()
     {
-        // Delete the capture buffers
-        for (int i = 0; i < m_CaptureBuffers.size(); ++i)
+        // Delete the capture buffers once the sinks are done with them
+        if (m_BufferPool != null)
         {
-        	FrameBuffer buffer = m_CaptureBuffers.get(i);
-            buffer.free();
+        	m_FrameSinks.releaseAll();
+        	m_FrameSinks.setPool(null);
+        	m_BufferPool.free();
+        	m_BufferPool = null;
         }
-
-        m_FreeBufferList.clear();
-        m_CaptureBuffers.clear();
     }
 
+    /**
+     * Gets a free buffer to capture into, applying the backpressure policy if the encoder is falling behind.
+     * @return The buffer or null if none is available.
+     */
     public FrameBuffer getNextFreeBuffer()
     {
-        if (m_FreeBufferList.size() == 0)
+        FrameBuffer buffer = tryAcquireBuffer(m_BackpressureTimeout, TimeUnit.MILLISECONDS);
+        if (!buffer.getIsValid())
         {
-            reportError(String.format("Out of free buffers, this should never happen"));
+            reportError(String.format("Out of free buffers, the encoder is falling behind"));
             return null;
         }
 
-        FrameBuffer buffer = m_FreeBufferList.get(m_FreeBufferList.size() - 1);
-        m_FreeBufferList.remove(m_FreeBufferList.size() - 1);
-
         return buffer;
     }
     
+    /**
+     * Gets a free buffer to capture into.  If every buffer is queued in the encoder the backpressure policy decides what happens.  This must
+     * be called from the game thread.
+     * @param timeout The longest time to wait for a buffer with the Block policy.
+     * @return The buffer, or the invalid buffer from getInvalidBuffer() if none is available.  This is never null.
+     */
+    public FrameBuffer tryAcquireBuffer(long timeout, TimeUnit unit)
+    {
+    	FrameBufferPool pool = m_BufferPool;
+    	if (pool == null)
+    	{
+    		return s_InvalidBuffer;
+    	}
+    	
+        long start = System.nanoTime();
+        FrameBuffer buffer = pool.acquire();
+        
+        if (buffer == null)
+        {
+        	switch (m_BackpressurePolicy)
+        	{
+        		case RecycleOldest:
+        		{
+        			buffer = m_SubmitWorker != null ? m_SubmitWorker.reclaim() : null;
+        			if (buffer != null)
+        			{
+        				// the buffer skips the pool on its way to the next frame so clear the mark of a copy here
+        				FrameBufferPool.Slot slot = pool.lookupSlot(buffer.getAddress());
+        				if (slot != null)
+        				{
+        					slot.setIsDuplicate(false);
+        				}
+        				m_NumBackpressureRecycles++;
+        			}
+        			break;
+        		}
+        		case Block:
+        		{
+        			// without the polling thread nothing can release a buffer while the game thread waits, so drop the frame instead
+        			if (m_PollWorker == null)
+        			{
+        				break;
+        			}
+        			
+        			m_NumBackpressureBlocks++;
+        			buffer = pool.awaitRelease(timeout, unit);
+        			if (buffer == null)
+        			{
+        				m_NumBackpressureTimeouts++;
+        			}
+        			break;
+        		}
+        		case ReduceFrameRate:
+        		{
+        			changeFrameRateDivisor(Math.min(s_MaxFrameRateDivisor, m_FrameRateDivisor * 2));
+        			break;
+        		}
+        		default:
+        		{
+        			break;
+        		}
+        	}
+        }
+        
+        m_AcquireLatency.record(System.nanoTime() - start);
+        
+        if (buffer == null)
+        {
+        	m_NumBackpressureDrops++;
+        	m_NumHealthyAcquires = 0;
+        	return s_InvalidBuffer;
+        }
+        
+        // step the capture rate back up once the encoder has kept up for about a second, or at least one frame when the divided rate is
+        // below one a second
+        if (m_FrameRateDivisor > 1)
+        {
+        	if (pool.getFreeCount() == 0)
+        	{
+        		m_NumHealthyAcquires = 0;
+        	}
+        	else if (++m_NumHealthyAcquires >= Math.max(1, m_VideoParams.targetFps / m_FrameRateDivisor))
+        	{
+        		changeFrameRateDivisor(m_FrameRateDivisor / 2);
+        	}
+        }
+        
+        return buffer;
+    }
+    
+    protected void changeFrameRateDivisor(int divisor)
+    {
+    	if (divisor == m_FrameRateDivisor || m_VideoParams == null)
+    	{
+    		return;
+    	}
+    	
+    	if (divisor > m_FrameRateDivisor)
+    	{
+    		m_NumFrameRateReductions++;
+    	}
+    	
+    	m_FrameRateDivisor = divisor;
+    	m_NumHealthyAcquires = 0;
+    	m_FramePacer.setFramesPerSecond(Math.max(1, m_VideoParams.targetFps / divisor));
+    }
+    
     public void captureFrameBuffer_ReadPixels(FrameBuffer buffer)
     {
+    	if (buffer == null || !buffer.getIsValid())
+    	{
+    		return;
+    	}
+    	
+    	long start = System.nanoTime();
     	m_Stream.captureFrameBuffer_ReadPixels(buffer);
+    	m_CaptureLatency.record(System.nanoTime() - start);
+    }
+    
+    /**
+     * Captures a frame from the FrameSource into a free buffer and submits it.  If the source doesn't have a frame ready the buffer is 
+     * returned to the pool and nothing is submitted.
+     * @return The result of submitting the frame.
+     */
+    public ErrorCode captureFrame()
+    {
+        if (!this.getIsBroadcasting())
+        {
+            return ErrorCode.TTV_EC_STREAM_NOT_STARTED;
+        }
+        
+        return captureFrame(0);
+    }
+    
+    /**
+     * Captures and submits a frame if the FramePacer says one is due at the broadcast frame rate.  This can be called every game frame and
+     * replaces pacing captures in the game.  Nothing is captured while paused.
+     * @return The result of submitting the frame or TTV_EC_SUCCESS if no frame was due.
+     */
+    public ErrorCode captureFrameIfDue()
+    {
+        if (!this.getIsBroadcasting())
+        {
+            return ErrorCode.TTV_EC_STREAM_NOT_STARTED;
+        }
+        else if (this.getIsPaused())
+        {
+        	return ErrorCode.TTV_EC_SUCCESS;
+        }
+        
+        int count = m_FramePacer.poll(System.nanoTime());
+        if (count == 0)
+        {
+        	return ErrorCode.TTV_EC_SUCCESS;
+        }
+        
+        ErrorCode ret = captureFrame(count - 1);
+        if (ret == ErrorCode.TTV_EC_FRAME_QUEUE_FULL)
+        {
+        	m_FramePacer.onFrameDropped();
+        }
+        
+        return ret;
+    }
+    
+    /**
+     * Captures a frame from the FrameSource and submits it followed by the given number of copies of it.  Each copy is reported to the
+     * FramePacer as duplicated if it was submitted and dropped if it wasn't, while the original is left to the caller.
+     * @return The result of submitting the original frame.
+     */
+    protected ErrorCode captureFrame(int duplicates)
+    {
+        FrameBuffer buffer = getNextFreeBuffer();
+        if (buffer == null)
+        {
+        	for (int i = 0; i < duplicates; ++i)
+        	{
+        		m_FramePacer.onFrameDropped();
+        	}
+        	return ErrorCode.TTV_EC_FRAME_QUEUE_FULL;
+        }
+        
+        long traceStart = TraceRecorder.begin();
+        long start = System.nanoTime();
+        boolean captured = m_FrameSource.captureFrame(buffer);
+        m_CaptureLatency.record(System.nanoTime() - start);
+        TraceRecorder.end(s_TraceCapture, traceStart, captured ? 1 : 0);
+        
+        if (!captured)
+        {
+        	m_BufferPool.release(buffer);
+        	
+        	// there is nothing to copy into the slots the copies were meant to fill
+        	for (int i = 0; i < duplicates; ++i)
+        	{
+        		m_FramePacer.onFrameDropped();
+        	}
+        	return ErrorCode.TTV_EC_SUCCESS;
+        }
+        
+        // make the copies before the original is submitted since it may be unlocked and reused as soon as it's submitted
+        FrameBuffer[] copies = null;
+        if (duplicates > 0)
+        {
+        	copies = new FrameBuffer[duplicates];
+        	for (int i = 0; i < duplicates; ++i)
+        	{
+        		copies[i] = duplicateFrame(buffer);
+        		if (copies[i] == null)
+        		{
+        			m_FramePacer.onFrameDropped();
+        		}
+        	}
+        }
+        
+        ErrorCode ret = submitFrame(buffer);
+        
+        for (int i = 0; copies != null && i < copies.length; ++i)
+        {
+        	if (copies[i] == null)
+        	{
+        		continue;
+        	}
+        	
+        	if (ErrorCode.failed(ret) || !this.getIsBroadcasting())
+        	{
+        		m_BufferPool.release(copies[i]);
+        		m_FramePacer.onFrameDropped();
+        		continue;
+        	}
+        	
+        	// the result of a copy is kept apart so the caller only sees what happened to the original
+        	if (ErrorCode.failed(submitFrame(copies[i])))
+        	{
+        		m_FramePacer.onFrameDropped();
+        	}
+        	else
+        	{
+        		m_FramePacer.onFrameDuplicated();
+        	}
+        }
+        
+        return ret;
+    }
+    
+    /**
+     * Copies the frame into a free buffer.
+     * @return The copy or null if there was no free buffer or the memory couldn't be accessed.
+     */
+    protected FrameBuffer duplicateFrame(FrameBuffer buffer)
+    {
+    	ByteBuffer source = FrameBufferView.getBytes(buffer);
+    	if (source == null)
+    	{
+    		return null;
+    	}
+    	
+    	FrameBuffer copy = m_BufferPool.acquire();
+    	if (copy == null)
+    	{
+    		return null;
+    	}
+    	
+    	ByteBuffer destination = FrameBufferView.getBytes(copy);
+    	if (destination == null)
+    	{
+    		m_BufferPool.release(copy);
+    		return null;
+    	}
+    	
+    	// the copy is meant to repeat the frame so it must get past the deduplicator, the pool clears the mark if it is released unsent
+    	FrameBufferPool.Slot slot = m_BufferPool.lookupSlot(copy.getAddress());
+    	if (slot != null)
+    	{
+    		slot.setIsDuplicate(true);
+    	}
+    	
+    	// duplicates so the positions of the shared views stay untouched
+    	ByteBuffer from = source.duplicate();
+    	ByteBuffer to = destination.duplicate();
+    	from.clear();
+    	to.clear();
+    	to.put(from);
+    	
+    	return copy;
     }
     
     public ErrorCode submitFrame(FrameBuffer bgraFrame)
     {
+    	// the invalid buffer from tryAcquireBuffer() means the frame was dropped
+    	if (bgraFrame == null || !bgraFrame.getIsValid())
+    	{
+    		return ErrorCode.TTV_EC_FRAME_QUEUE_FULL;
+    	}
+    	
         if (this.getIsPaused())
         {
             resumeBroadcasting();
@@ -1445,10 +2730,125 @@ public class BroadcastController implements IStreamCallbacks, IStatCallbacks
         {
             return ErrorCode.TTV_EC_STREAM_NOT_STARTED;
         }
-
-        ErrorCode ret = m_Stream.submitVideoFrame(bgraFrame);
         
-        // if there is a problem when submitting a frame let the client know
+        long start = System.nanoTime();
+        ErrorCode ret;
+        
+        if (m_SubmitWorker != null)
+        {
+        	// hand the frame to the worker, it will be submitted from there
+        	if (m_SubmitWorker.submit(bgraFrame))
+        	{
+        		ret = ErrorCode.TTV_EC_SUCCESS;
+        	}
+        	else
+        	{
+        		m_NumFramesDroppedAtHandoff++;
+        		m_BufferPool.release(bgraFrame);
+        		ret = ErrorCode.TTV_EC_FRAME_QUEUE_FULL;
+        	}
+        }
+        else
+        {
+        	ret = submitFrameToStream(bgraFrame);
+        	
+	        if (ret != ErrorCode.TTV_EC_SUCCESS)
+	        {
+	        	handleSubmitIssue(ret);
+	        }
+        }
+        
+        m_LastSubmitCallNanos = System.nanoTime() - start;
+        m_MaxSubmitCallNanos = Math.max(m_MaxSubmitCallNanos, m_LastSubmitCallNanos);
+        
+        return ret;
+    }
+    
+    /**
+     * Submits the frame to the SDK for encoding.  This runs on the game thread or on the submission worker if asynchronous submission is 
+     * enabled, so it must not change the state of the controller or call the listener.
+     */
+    protected ErrorCode submitFrameToStream(FrameBuffer buffer)
+    {
+        FrameCompositor compositor = m_Compositor;
+        if (compositor != null && compositor.getLayerCount() > 0)
+        {
+        	ByteBuffer memory = FrameBufferView.getBytes(buffer);
+        	if (memory != null)
+        	{
+        		compositor.composite(memory, m_VideoParams.outputWidth, m_VideoParams.outputHeight, m_VideoParams.pixelFormat);
+        	}
+        }
+        
+        // the slot lookup is lock-free so this is safe on the worker thread
+        FrameBufferPool.Slot slot = m_BufferPool.lookupSlot(buffer.getAddress());
+        
+        // no need to encode the same image again, unless it was repeated on purpose to hold the frame rate
+        boolean intentionalCopy = slot != null && slot.getIsDuplicate();
+        if (intentionalCopy)
+        {
+        	slot.setIsDuplicate(false);
+        }
+        else if (m_FrameDeduplicator.isDuplicate(buffer))
+        {
+        	m_BufferPool.release(buffer);
+        	return ErrorCode.TTV_EC_SUCCESS;
+        }
+        
+        // keep the local copies before submitting since the buffer may be unlocked and reused straight after
+        FrameRecorder recorder = m_Recorder;
+        InstantReplayBuffer replay = m_InstantReplay;
+        boolean hasSinks = m_FrameSinks.getSinkCount() > 0;
+        long broadcastTime = 0;
+        if (recorder != null || replay != null || hasSinks)
+        {
+        	broadcastTime = m_Stream.getStreamTime();
+        	if (recorder != null)
+        	{
+        		recorder.record(buffer, broadcastTime);
+        	}
+        	if (replay != null)
+        	{
+        		replay.offer(buffer, broadcastTime);
+        	}
+        }
+        
+        // take every reference up front since the SDK may unlock the buffer before the sinks have seen it
+        FrameSink[] sinks = null;
+        if (slot != null)
+        {
+        	if (hasSinks)
+        	{
+        		sinks = m_FrameSinks.retain(slot);
+        	}
+        	else
+        	{
+        		slot.setReferences(1);
+        	}
+        }
+        
+        long start = System.nanoTime();
+        if (slot != null)
+        {
+        	slot.setSubmitTime(start);
+        }
+        
+        long traceStart = TraceRecorder.begin();
+        ErrorCode ret = m_Stream.submitVideoFrame(buffer);
+        m_SubmitLatency.record(System.nanoTime() - start);
+        TraceRecorder.end(s_TraceSubmit, traceStart);
+        
+        // the live broadcast goes first so the sinks don't delay it
+        if (sinks != null)
+        {
+        	m_FrameSinks.dispatch(sinks, buffer, broadcastTime);
+        }
+        
+        if (slot != null && ErrorCode.failed(ret))
+        {
+        	slot.setSubmitTime(0);
+        }
+        
         if (ret != ErrorCode.TTV_EC_SUCCESS)
         {
             String err = ErrorCode.getString(ret);
@@ -1459,20 +2859,129 @@ public class BroadcastController implements IStreamCallbacks, IStatCallbacks
             else
             {
                 reportError(String.format("Error in SubmitTexturePointer: %s\n", err));
-            
-                // errors are not recoverable
-                stopBroadcasting();
-            }
-
-            if (m_Listener != null)
-            {
-            	m_Listener.onframeSubmissionIssue(ret);
             }
         }
         
         return ret;
     }
     
+    /**
+     * Lets the client know there was a problem submitting a frame.  This must be called on the game thread.
+     */
+    protected void handleSubmitIssue(ErrorCode ret)
+    {
+        // errors are not recoverable
+    	if (ErrorCode.failed(ret))
+    	{
+    		stopBroadcasting();
+    	}
+    	
+        try
+        {
+	        if (m_Listener != null)
+	        {
+	        	m_Listener.onframeSubmissionIssue(ret);
+	        }
+        }
+        catch (Exception x)
+        {
+            reportError(x.toString());
+        }
+    }
+    
+    protected void startSubmitWorker()
+    {
+    	if (m_SubmitWorker != null)
+    	{
+    		return;
+    	}
+    	
+    	FrameSubmitWorker.Handler handler = new FrameSubmitWorker.Handler()
+    	{
+    		public void processFrame(FrameBuffer buffer)
+    		{
+    			try
+    			{
+	    	        ErrorCode ret = submitFrameToStream(buffer);
+	    	        if (ret != ErrorCode.TTV_EC_SUCCESS)
+	    	        {
+	    	        	// keep the first issue, update() will pass it on to the listener
+	    	        	m_PendingSubmitIssue.compareAndSet(null, ret);
+	    	        }
+    			}
+    			catch (Exception x)
+    			{
+    				reportError(x.toString());
+    			}
+    		}
+    		
+    		public void discardFrame(FrameBuffer buffer)
+    		{
+    			FrameBufferPool pool = m_BufferPool;
+    			if (pool != null)
+    			{
+    				pool.release(buffer);
+    			}
+    		}
+    	};
+    	
+    	m_SubmitWorker = new FrameSubmitWorker(handler, m_BufferPool.getMaxBufferCount());
+    	m_SubmitWorker.start();
+    }
+    
+    /**
+     * Starts polling the SDK on the polling thread with the callbacks going through the queue.
+     */
+    protected void startPollWorker()
+    {
+    	if (m_PollWorker != null)
+    	{
+    		return;
+    	}
+    	
+    	m_Stream.setStreamCallbacks(m_CallbackQueue);
+    	
+    	m_PollWorker = new StreamPollWorker(m_Stream, s_PollIntervalNanos);
+    	m_PollWorker.start();
+    }
+    
+    /**
+     * Stops the polling thread and takes the callbacks back.  Callbacks it already queued are still delivered by update().
+     */
+    protected void stopPollWorker()
+    {
+    	if (m_PollWorker == null)
+    	{
+    		return;
+    	}
+    	
+    	m_PollWorker.stop();
+    	
+    	ErrorCode ret = m_PollWorker.takePendingError();
+    	if (ret != null)
+    	{
+    		checkError(ret);
+    	}
+    	
+    	m_PollWorker = null;
+    	
+    	if (m_Stream.getStreamCallbacks() == m_CallbackQueue)
+    	{
+    		m_Stream.setStreamCallbacks(this);
+    	}
+    }
+    
+    protected void stopSubmitWorker()
+    {
+    	if (m_SubmitWorker == null)
+    	{
+    		return;
+    	}
+    	
+    	m_SubmitWorker.stop();
+    	m_SubmitWorker = null;
+    }
+    
     protected boolean checkError(ErrorCode err)
     {
         if (ErrorCode.failed(err))
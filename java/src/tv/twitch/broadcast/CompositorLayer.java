@@ -0,0 +1,199 @@
+package tv.twitch.broadcast;
+
+import java.util.Arrays;
+
+/**
+ * A rectangular overlay which the FrameCompositor blends into outgoing frames.  Subclasses draw their content in rasterize() as
+ * non-premultiplied 0xAARRGGBB pixels.  The result is cached premultiplied in the broadcast pixel format and rasterize() is only called
+ * again after invalidate(), so a layer whose content doesn't change costs nothing but the blend.
+ *
+ * Properties may be changed from the game thread while frames are composited on another thread.
+ */
+public abstract class CompositorLayer
+{
+    protected int m_X = 0;
+    protected int m_Y = 0;
+    protected int m_Width = 0;
+    protected int m_Height = 0;
+    protected volatile int m_ZOrder = 0;
+    protected volatile boolean m_Visible = true;
+    protected boolean m_Dirty = true;
+
+    protected int[] m_Argb = null;      //!< Scratch space for rasterize().
+    protected int[] m_Pixels = null;    //!< The cached premultiplied pixels in m_Format.
+    protected PixelFormat m_Format = null;
+    protected boolean m_Empty = true;   //!< Every cached pixel is fully transparent.
+
+    // the state captured by prepare() for the compositor to draw with
+    int m_DrawX = 0;
+    int m_DrawY = 0;
+    int m_DrawWidth = 0;
+    int m_DrawHeight = 0;
+    int[] m_DrawPixels = null;
+
+    /**
+     * @param x The left edge of the layer in the frame.
+     * @param y The top edge of the layer in the frame.
+     * @param width The width of the layer.
+     * @param height The height of the layer.
+     */
+    protected CompositorLayer(int x, int y, int width, int height)
+    {
+        m_X = x;
+        m_Y = y;
+        m_Width = Math.max(0, width);
+        m_Height = Math.max(0, height);
+    }
+
+    public synchronized int getX()
+    {
+        return m_X;
+    }
+
+    public synchronized int getY()
+    {
+        return m_Y;
+    }
+
+    public synchronized int getWidth()
+    {
+        return m_Width;
+    }
+
+    public synchronized int getHeight()
+    {
+        return m_Height;
+    }
+
+    /**
+     * Moves the layer.  This doesn't need the content to be redrawn.
+     */
+    public synchronized void setPosition(int x, int y)
+    {
+        m_X = x;
+        m_Y = y;
+    }
+
+    /**
+     * Resizes the layer.  The content will be redrawn.
+     */
+    public synchronized void setSize(int width, int height)
+    {
+        m_Width = Math.max(0, width);
+        m_Height = Math.max(0, height);
+        m_Dirty = true;
+    }
+
+    /**
+     * Layers with a higher z order are drawn on top of those with a lower one.
+     */
+    public int getZOrder()
+    {
+        return m_ZOrder;
+    }
+    public void setZOrder(int value)
+    {
+        m_ZOrder = value;
+    }
+
+    public boolean getVisible()
+    {
+        return m_Visible;
+    }
+    public void setVisible(boolean value)
+    {
+        m_Visible = value;
+    }
+
+    /**
+     * Marks the content as changed so it is redrawn before the next frame is composited.
+     */
+    public synchronized void invalidate()
+    {
+        m_Dirty = true;
+    }
+
+    /**
+     * Draws the content of the layer.  The array is cleared to transparent before this is called.  This is called on the thread frames are
+     * composited on with the layer locked.
+     * @param argb The pixels to fill in as non-premultiplied 0xAARRGGBB, row by row.
+     * @param width The width of the layer.
+     * @param height The height of the layer.
+     */
+    protected abstract void rasterize(int[] argb, int width, int height);
+
+    /**
+     * Redraws the cache if needed and captures what the compositor needs to draw the layer.
+     * @return Whether or not there is anything to draw.
+     */
+    synchronized boolean prepare(PixelFormat format)
+    {
+        if (!m_Visible || m_Width == 0 || m_Height == 0)
+        {
+            return false;
+        }
+
+        if (m_Dirty || format != m_Format)
+        {
+            int size = m_Width * m_Height;
+            if (m_Argb == null || m_Argb.length != size)
+            {
+                m_Argb = new int[size];
+                m_Pixels = new int[size];
+            }
+            else
+            {
+                Arrays.fill(m_Argb, 0);
+            }
+
+            rasterize(m_Argb, m_Width, m_Height);
+            m_Empty = premultiply(m_Argb, m_Pixels, format);
+            m_Format = format;
+            m_Dirty = false;
+        }
+
+        m_DrawX = m_X;
+        m_DrawY = m_Y;
+        m_DrawWidth = m_Width;
+        m_DrawHeight = m_Height;
+        m_DrawPixels = m_Pixels;
+
+        return !m_Empty;
+    }
+
+    /**
+     * Converts the pixels to premultiplied alpha in the given format.
+     * @return Whether or not every pixel is fully transparent.
+     */
+    private static boolean premultiply(int[] argb, int[] pixels, PixelFormat format)
+    {
+        boolean empty = true;
+
+        for (int i = 0; i < argb.length; ++i)
+        {
+            int c = argb[i];
+            int a = c >>> 24;
+            if (a == 0)
+            {
+                pixels[i] = 0;
+                continue;
+            }
+
+            empty = false;
+
+            int r = (c >>> 16) & 0xFF;
+            int g = (c >>> 8) & 0xFF;
+            int b = c & 0xFF;
+            if (a != 255)
+            {
+                r = (r * a + 127) / 255;
+                g = (g * a + 127) / 255;
+                b = (b * a + 127) / 255;
+            }
+
+            pixels[i] = PixelFormatConverter.pack(format, r, g, b, a);
+        }
+
+        return empty;
+    }
+}
@@ -0,0 +1,80 @@
+package tv.twitch.broadcast;
+
+/**
+ * A thread-safe version of LongObjectHashMap.  Lookups are lock-free and allocation-free and can be made from any thread.  Modifications
+ * copy the table and publish the new copy so they are comparatively expensive.  This suits maps which are read far more often than they
+ * are written, such as the registry of frame buffers which is read for every frame but only written when a buffer is allocated or freed.
+ */
+public class ConcurrentLongObjectHashMap<V>
+{
+    protected volatile LongObjectHashMap<V> m_Map;
+
+    public ConcurrentLongObjectHashMap()
+    {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize The number of entries the map should hold without growing.
+     */
+    public ConcurrentLongObjectHashMap(int expectedSize)
+    {
+        m_Map = new LongObjectHashMap<V>(expectedSize);
+    }
+
+    public int size()
+    {
+        return m_Map.size();
+    }
+
+    public boolean isEmpty()
+    {
+        return m_Map.isEmpty();
+    }
+
+    public V get(long key)
+    {
+        return m_Map.get(key);
+    }
+
+    public boolean containsKey(long key)
+    {
+        return m_Map.containsKey(key);
+    }
+
+    /**
+     * Associates the value with the key.
+     * @return The previous value for the key or null if there was none.
+     */
+    public synchronized V put(long key, V value)
+    {
+        LongObjectHashMap<V> map = new LongObjectHashMap<V>(m_Map);
+        V previous = map.put(key, value);
+        m_Map = map;
+
+        return previous;
+    }
+
+    /**
+     * Removes the entry for the key.
+     * @return The value which was removed or null if there was none.
+     */
+    public synchronized V remove(long key)
+    {
+        if (!m_Map.containsKey(key))
+        {
+            return null;
+        }
+
+        LongObjectHashMap<V> map = new LongObjectHashMap<V>(m_Map);
+        V previous = map.remove(key);
+        m_Map = map;
+
+        return previous;
+    }
+
+    public synchronized void clear()
+    {
+        m_Map = new LongObjectHashMap<V>();
+    }
+}
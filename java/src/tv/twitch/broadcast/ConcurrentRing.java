@@ -0,0 +1,148 @@
+package tv.twitch.broadcast;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue which can be safely used by any number of producer and consumer threads.  All storage is allocated up front
+ * so neither offer() nor poll() allocate.  The capacity is rounded up to the next power of two.
+ *
+ * Each slot carries a sequence number which tells producers and consumers whether the slot is ready for them.  A thread claims a slot by
+ * advancing the head or tail with a CAS and publishes the result by bumping the slot sequence.
+ */
+public class ConcurrentRing<E>
+{
+    protected final AtomicReferenceArray<E> m_Slots;
+    protected final AtomicLongArray m_Sequences;
+    protected final int m_Mask;
+    protected final AtomicLong m_Head = new AtomicLong(0);  //!< The next position to poll from.
+    protected final AtomicLong m_Tail = new AtomicLong(0);  //!< The next position to offer to.
+
+    public ConcurrentRing(int capacity)
+    {
+        if (capacity < 1)
+        {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+
+        int size = 1;
+        while (size < capacity)
+        {
+            size <<= 1;
+        }
+
+        m_Mask = size - 1;
+        m_Slots = new AtomicReferenceArray<E>(size);
+        m_Sequences = new AtomicLongArray(size);
+
+        for (int i = 0; i < size; ++i)
+        {
+            m_Sequences.set(i, i);
+        }
+    }
+
+    /**
+     * The maximum number of elements the ring can hold.
+     */
+    public int getCapacity()
+    {
+        return m_Mask + 1;
+    }
+
+    /**
+     * The approximate number of elements in the ring.  The value may be stale by the time it is returned if other threads are active.
+     */
+    public int size()
+    {
+        long size = m_Tail.get() - m_Head.get();
+        if (size < 0)
+        {
+            return 0;
+        }
+
+        return (int)Math.min(size, getCapacity());
+    }
+
+    public boolean isEmpty()
+    {
+        return size() == 0;
+    }
+
+    /**
+     * Adds the element to the tail of the ring.
+     * @param element The element to add, must not be null.
+     * @return Whether or not there was room for the element.
+     */
+    public boolean offer(E element)
+    {
+        if (element == null)
+        {
+            throw new NullPointerException();
+        }
+
+        long pos = m_Tail.get();
+        for (;;)
+        {
+            int index = (int)pos & m_Mask;
+            long seq = m_Sequences.get(index);
+            long dif = seq - pos;
+
+            if (dif == 0)
+            {
+                if (m_Tail.compareAndSet(pos, pos + 1))
+                {
+                    m_Slots.lazySet(index, element);
+                    m_Sequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = m_Tail.get();
+            }
+            // the slot still holds an element from the previous lap so the ring is full
+            else if (dif < 0)
+            {
+                return false;
+            }
+            else
+            {
+                pos = m_Tail.get();
+            }
+        }
+    }
+
+    /**
+     * Removes the element at the head of the ring.
+     * @return The element or null if the ring is empty.
+     */
+    public E poll()
+    {
+        long pos = m_Head.get();
+        for (;;)
+        {
+            int index = (int)pos & m_Mask;
+            long seq = m_Sequences.get(index);
+            long dif = seq - (pos + 1);
+
+            if (dif == 0)
+            {
+                if (m_Head.compareAndSet(pos, pos + 1))
+                {
+                    E element = m_Slots.get(index);
+                    m_Slots.lazySet(index, null);
+                    m_Sequences.set(index, pos + m_Mask + 1);
+                    return element;
+                }
+                pos = m_Head.get();
+            }
+            // nothing has been published to this slot yet
+            else if (dif < 0)
+            {
+                return null;
+            }
+            else
+            {
+                pos = m_Head.get();
+            }
+        }
+    }
+}
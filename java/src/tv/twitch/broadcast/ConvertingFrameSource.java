@@ -0,0 +1,77 @@
+package tv.twitch.broadcast;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts the frames of another FrameSource which captures in a different PixelFormat, or upside down, to the format of the broadcast.
+ * The conversion is done in place in the pooled FrameBuffer after the wrapped source has filled it.
+ */
+public class ConvertingFrameSource implements FrameSource
+{
+    protected final FrameSource m_Source;
+    protected final PixelFormat m_SourceFormat;
+    protected final boolean m_Flip;
+    protected final PixelFormatConverter m_Converter;
+
+    /**
+     * @param source The source which captures the frames.  It is started with the source format as the pixel format.
+     * @param sourceFormat The format the source captures in.
+     * @param flip Whether or not the rows should be reversed.
+     * @param executor The executor the conversion runs on.
+     */
+    public ConvertingFrameSource(FrameSource source, PixelFormat sourceFormat, boolean flip, ParallelBandExecutor executor)
+    {
+        m_Source = source;
+        m_SourceFormat = sourceFormat;
+        m_Flip = flip;
+        m_Converter = new PixelFormatConverter(executor);
+    }
+
+    public PixelFormatConverter getConverter()
+    {
+        return m_Converter;
+    }
+
+    public boolean start(VideoParams videoParams)
+    {
+        if (!FrameBufferMemory.getIsAvailable())
+        {
+            return false;
+        }
+
+        m_Converter.configure(m_SourceFormat, videoParams.pixelFormat, m_Flip, videoParams.outputWidth, videoParams.outputHeight);
+
+        VideoParams sourceParams = videoParams.clone();
+        sourceParams.pixelFormat = m_SourceFormat;
+
+        return m_Source.start(sourceParams);
+    }
+
+    public boolean captureFrame(FrameBuffer buffer)
+    {
+        if (!m_Source.captureFrame(buffer))
+        {
+            return false;
+        }
+
+        if (m_Converter.getIsIdentity())
+        {
+            return true;
+        }
+
+        ByteBuffer memory = FrameBufferView.getBytes(buffer);
+        if (memory == null)
+        {
+            return false;
+        }
+
+        m_Converter.convert(memory);
+
+        return true;
+    }
+
+    public void stop()
+    {
+        m_Source.stop();
+    }
+}
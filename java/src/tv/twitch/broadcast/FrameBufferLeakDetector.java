@@ -0,0 +1,153 @@
+package tv.twitch.broadcast;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks where FrameBuffers were allocated so buffers which are never freed can be reported along with their allocation site.
+ *
+ * The SDK keeps every allocated FrameBuffer in a static map until free() is called, so a leaked buffer never becomes unreachable and
+ * its finalizer will never release it.  Leaks can only be found by tracking which buffers are still allocated
+ * at a point where there should be none, such as after shutdown.  Tracking is off by default because recording the allocation site
+ * captures a stack trace.  It can be turned on with setEnabled() or the tv.twitch.broadcast.leakDetection system property.
+ */
+public final class FrameBufferLeakDetector
+{
+    /**
+     * A buffer which has been allocated and not yet freed.
+     */
+    public static final class Allocation
+    {
+        private final long m_Address;
+        private final int m_Size;
+        private final String m_ThreadName;
+        private final Throwable m_Site;
+
+        Allocation(FrameBuffer buffer)
+        {
+            m_Address = buffer.getAddress();
+            m_Size = buffer.getSize();
+            m_ThreadName = Thread.currentThread().getName();
+            m_Site = new Throwable("FrameBuffer of " + m_Size + " bytes allocated on thread " + m_ThreadName);
+        }
+
+        public long getAddress()
+        {
+            return m_Address;
+        }
+
+        public int getSize()
+        {
+            return m_Size;
+        }
+
+        public String getThreadName()
+        {
+            return m_ThreadName;
+        }
+
+        /**
+         * The stack trace of the allocation.
+         */
+        public Throwable getSite()
+        {
+            return m_Site;
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder builder = new StringBuilder(m_Site.getMessage());
+            StackTraceElement[] trace = m_Site.getStackTrace();
+            for (int i = 0; i < trace.length; ++i)
+            {
+                builder.append("\n\tat ").append(trace[i]);
+            }
+            return builder.toString();
+        }
+    }
+
+    private static volatile boolean s_Enabled = Boolean.getBoolean("tv.twitch.broadcast.leakDetection");
+    private static final Map<Long, Allocation> s_Allocations = new HashMap<Long, Allocation>();
+
+    private FrameBufferLeakDetector()
+    {
+    }
+
+    /**
+     * Whether or not allocations are tracked.  Buffers allocated while disabled are never reported.
+     */
+    public static boolean getEnabled()
+    {
+        return s_Enabled;
+    }
+    public static void setEnabled(boolean value)
+    {
+        s_Enabled = value;
+    }
+
+    /**
+     * Records the allocation site of a newly allocated buffer.
+     */
+    public static void track(FrameBuffer buffer)
+    {
+        if (!s_Enabled || buffer == null || !buffer.getIsValid())
+        {
+            return;
+        }
+
+        Allocation allocation = new Allocation(buffer);
+        synchronized (s_Allocations)
+        {
+            s_Allocations.put(allocation.getAddress(), allocation);
+        }
+    }
+
+    /**
+     * Forgets a buffer which is about to be freed.  This must be called before free() since that clears the address.
+     */
+    public static void untrack(FrameBuffer buffer)
+    {
+        if (buffer == null)
+        {
+            return;
+        }
+
+        synchronized (s_Allocations)
+        {
+            if (!s_Allocations.isEmpty())
+            {
+                s_Allocations.remove(buffer.getAddress());
+            }
+        }
+    }
+
+    /**
+     * The buffers which have been allocated and not freed.
+     */
+    public static List<Allocation> getOutstanding()
+    {
+        synchronized (s_Allocations)
+        {
+            return new ArrayList<Allocation>(s_Allocations.values());
+        }
+    }
+
+    /**
+     * The number of bytes held by buffers which have been allocated and not freed.
+     */
+    public static long getOutstandingMemory()
+    {
+        long total = 0;
+        synchronized (s_Allocations)
+        {
+            for (Allocation allocation : s_Allocations.values())
+            {
+                total += allocation.getSize();
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,133 @@
+package tv.twitch.broadcast;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Gives Java code access to the native memory behind a FrameBuffer by wrapping it in a direct ByteBuffer.  The SDK does not expose a
+ * JNI helper for this so the private address constructor of java.nio.DirectByteBuffer is used.  On Java 9 and newer the JVM must be
+ * started with --add-opens java.base/java.nio=ALL-UNNAMED for this to be permitted.  If it isn't, getIsAvailable() returns false.
+ *
+ * The returned ByteBuffer does not own the memory.  It must not be used after the FrameBuffer has been freed.
+ */
+public final class FrameBufferMemory
+{
+    private static Constructor<?> s_Constructor = null;
+    private static boolean s_ConstructorTakesLong = false;
+    private static Field s_AddressField = null;
+
+    static
+    {
+        try
+        {
+            Class<?> clazz = Class.forName("java.nio.DirectByteBuffer");
+
+            try
+            {
+                s_Constructor = clazz.getDeclaredConstructor(long.class, int.class);
+            }
+            catch (NoSuchMethodException x)
+            {
+                s_Constructor = clazz.getDeclaredConstructor(long.class, long.class);
+                s_ConstructorTakesLong = true;
+            }
+
+            s_Constructor.setAccessible(true);
+        }
+        catch (Exception x)
+        {
+            s_Constructor = null;
+        }
+
+        try
+        {
+            s_AddressField = Buffer.class.getDeclaredField("address");
+            s_AddressField.setAccessible(true);
+        }
+        catch (Exception x)
+        {
+            s_AddressField = null;
+        }
+    }
+
+    private FrameBufferMemory()
+    {
+    }
+
+    /**
+     * Whether or not native memory can be wrapped on this JVM.
+     */
+    public static boolean getIsAvailable()
+    {
+        return s_Constructor != null;
+    }
+
+    /**
+     * Wraps the memory of the buffer.  The ByteBuffer uses the native byte order.
+     * @return The ByteBuffer or null if the buffer is invalid or wrapping is not available.
+     */
+    public static ByteBuffer wrap(FrameBuffer buffer)
+    {
+        if (buffer == null || !buffer.getIsValid())
+        {
+            return null;
+        }
+
+        return wrap(buffer.getAddress(), buffer.getSize());
+    }
+
+    /**
+     * Wraps the given range of native memory.  The ByteBuffer uses the native byte order.
+     * @return The ByteBuffer or null if wrapping is not available.
+     */
+    public static ByteBuffer wrap(long address, int size)
+    {
+        if (s_Constructor == null)
+        {
+            return null;
+        }
+
+        try
+        {
+            ByteBuffer buffer;
+            if (s_ConstructorTakesLong)
+            {
+                buffer = (ByteBuffer)s_Constructor.newInstance(address, (long)size);
+            }
+            else
+            {
+                buffer = (ByteBuffer)s_Constructor.newInstance(address, size);
+            }
+
+            return buffer.order(ByteOrder.nativeOrder());
+        }
+        catch (Exception x)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * The native address of the memory behind a direct ByteBuffer, so memory allocated in Java can stand in for memory allocated by the SDK.
+     * @return The address or 0 if the buffer isn't direct or the address can't be read on this JVM.
+     */
+    public static long getAddress(ByteBuffer buffer)
+    {
+        if (s_AddressField == null || buffer == null || !buffer.isDirect())
+        {
+            return 0;
+        }
+
+        try
+        {
+            return s_AddressField.getLong(buffer);
+        }
+        catch (Exception x)
+        {
+            return 0;
+        }
+    }
+}
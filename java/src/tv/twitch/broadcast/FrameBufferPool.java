@@ -0,0 +1,544 @@
+package tv.twitch.broadcast;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The pool of FrameBuffers used as capture destinations while broadcasting.  Buffers are acquired on the game thread and released back
+ * to the pool when the SDK unlocks them, which may happen on another thread.  Acquiring and releasing buffers is lock-free and does not allocate.
+ * Each buffer has a FrameBufferView registered for as long as the pool owns it.
+ *
+ * The occupancy of the pool is a direct measure of encoder backpressure.  Buffers which are not free are queued in the encoder so if the
+ * free count regularly drops to zero the encoder is not keeping up with the rate frames are being submitted.
+ *
+ * The pool starts with the minimum number of buffers and grows by one buffer whenever acquire() finds it empty, up to the maximum buffer
+ * count and memory limit.  If the pool has not run low for the shrink delay it frees one spare buffer, again down to the minimum.  Growing
+ * and shrinking only happen inside acquire() so the set of buffers owned by the pool is only ever changed by the game thread.
+ */
+public class FrameBufferPool
+{
+    /**
+     * Allocates and frees the native memory for the pool.
+     */
+    public interface Allocator
+    {
+        /**
+         * Allocates a buffer of the given size in bytes.  The returned buffer may be invalid if the allocation failed.
+         */
+        FrameBuffer allocate(int size);
+
+        /**
+         * Releases a buffer previously returned from allocate().
+         */
+        void free(FrameBuffer buffer);
+    }
+
+    /**
+     * The bookkeeping the pool keeps for each buffer it owns.
+     */
+    public static class Slot
+    {
+        protected final FrameBuffer m_Buffer;
+        protected final FrameBufferView m_View;
+        protected volatile long m_SubmitTime = 0;
+        protected final AtomicInteger m_References = new AtomicInteger(0);
+        protected volatile boolean m_Duplicate = false;
+
+        public Slot(FrameBuffer buffer, FrameBufferView view)
+        {
+            m_Buffer = buffer;
+            m_View = view;
+        }
+
+        public FrameBuffer getBuffer()
+        {
+            return m_Buffer;
+        }
+
+        /**
+         * The cached views over the memory of the buffer or null if native memory can't be wrapped on this JVM.
+         */
+        public FrameBufferView getView()
+        {
+            return m_View;
+        }
+
+        /**
+         * The System.nanoTime() when the buffer was last submitted to the encoder, or 0 if it isn't queued in the encoder.
+         */
+        public long getSubmitTime()
+        {
+            return m_SubmitTime;
+        }
+        public void setSubmitTime(long value)
+        {
+            m_SubmitTime = value;
+        }
+
+        /**
+         * Whether or not the buffer holds a deliberate copy of the previous frame, which the FrameDeduplicator must not skip.  It is cleared
+         * when the copy is submitted and when the buffer is released, so it never carries over to the next frame captured into the buffer.
+         */
+        public boolean getIsDuplicate()
+        {
+            return m_Duplicate;
+        }
+        public void setIsDuplicate(boolean value)
+        {
+            m_Duplicate = value;
+        }
+
+        /**
+         * Sets the number of users of the buffer, such as the SDK and each FrameSink, which must release it before it goes back to the pool.
+         */
+        public void setReferences(int count)
+        {
+            m_References.set(count);
+        }
+
+        /**
+         * Releases one user of the buffer.  A buffer which never had its references set counts as having one.
+         * @return Whether or not this was the last one and the buffer should go back to the pool.
+         */
+        public boolean releaseReference()
+        {
+            if (m_References.decrementAndGet() > 0)
+            {
+                return false;
+            }
+
+            m_References.set(0);
+            return true;
+        }
+    }
+
+    protected final Allocator m_Allocator;
+    protected final int m_BufferSize;
+    protected final int m_MinBuffers;
+    protected final int m_MaxBuffers;
+    protected long m_MaxMemory;
+    protected long m_ShrinkDelayNanos = 10000000000L;
+
+    protected final ConcurrentRing<FrameBuffer> m_FreeBuffers;
+    protected final List<FrameBuffer> m_Buffers = new ArrayList<FrameBuffer>();   //!< All the buffers owned by the pool, only touched by the game thread.
+    protected final ConcurrentLongObjectHashMap<Slot> m_Registry;    //!< The slots of the buffers owned by the pool keyed by native address.
+    protected final AtomicInteger m_NumBuffers = new AtomicInteger(0);     //!< The number of buffers owned by the pool.
+    protected final AtomicInteger m_PeakOutstanding = new AtomicInteger(0); //!< The highest number of buffers acquired at once.
+    protected final AtomicLong m_NumAcquireFailures = new AtomicLong(0);   //!< The number of times no free buffer was available.
+    protected long m_LastPressureTime = 0;                                   //!< The last time the pool ran out of spare buffers.
+    protected long m_NumGrows = 0;
+    protected long m_NumShrinks = 0;
+    protected int m_PeakBuffers = 0;
+    protected volatile Thread m_Waiter = null;     //!< The game thread while it is blocked in acquire() waiting for a release.
+
+    /**
+     * @param allocator The allocator for the native buffers.
+     * @param bufferSize The size in bytes of each buffer.
+     * @param minBuffers The number of buffers the pool will never shrink below.
+     * @param maxBuffers The number of buffers the pool will never grow beyond.
+     * @param maxMemory The number of bytes the pool will never grow beyond.
+     */
+    public FrameBufferPool(Allocator allocator, int bufferSize, int minBuffers, int maxBuffers, long maxMemory)
+    {
+        m_Allocator = allocator;
+        m_BufferSize = bufferSize;
+        m_MinBuffers = Math.max(1, minBuffers);
+        m_MaxBuffers = Math.max(m_MinBuffers, maxBuffers);
+        m_MaxMemory = maxMemory;
+        m_FreeBuffers = new ConcurrentRing<FrameBuffer>(m_MaxBuffers);
+        m_Registry = new ConcurrentLongObjectHashMap<Slot>(m_MaxBuffers);
+    }
+
+    /**
+     * The size in bytes of each buffer.
+     */
+    public int getBufferSize()
+    {
+        return m_BufferSize;
+    }
+
+    /**
+     * The number of bytes the pool will never grow beyond.  Lowering it doesn't free buffers, it only stops the pool growing.  This must be
+     * called from the game thread.
+     */
+    public long getMaxMemory()
+    {
+        return m_MaxMemory;
+    }
+    public void setMaxMemory(long value)
+    {
+        m_MaxMemory = value;
+    }
+
+    /**
+     * The number of buffers the pool will never shrink below.
+     */
+    public int getMinBufferCount()
+    {
+        return m_MinBuffers;
+    }
+
+    /**
+     * The number of buffers the pool will never grow beyond.
+     */
+    public int getMaxBufferCount()
+    {
+        return m_MaxBuffers;
+    }
+
+    /**
+     * How long the pool must go without running low before a spare buffer is freed.
+     */
+    public long getShrinkDelayMilliseconds()
+    {
+        return m_ShrinkDelayNanos / 1000000;
+    }
+    public void setShrinkDelayMilliseconds(long value)
+    {
+        m_ShrinkDelayNanos = value * 1000000;
+    }
+
+    /**
+     * The number of buffers owned by the pool, free or not.
+     */
+    public int getBufferCount()
+    {
+        return m_NumBuffers.get();
+    }
+
+    /**
+     * The highest number of buffers the pool has owned at once.
+     */
+    public int getPeakBufferCount()
+    {
+        return m_PeakBuffers;
+    }
+
+    /**
+     * The number of bytes of native memory owned by the pool.
+     */
+    public long getMemoryUsage()
+    {
+        return (long)m_NumBuffers.get() * m_BufferSize;
+    }
+
+    /**
+     * The number of buffers available to capture into.
+     */
+    public int getFreeCount()
+    {
+        return m_FreeBuffers.size();
+    }
+
+    /**
+     * The number of buffers which have been acquired and not yet released.  While broadcasting these are the frames queued in the encoder.
+     */
+    public int getOutstandingCount()
+    {
+        return Math.max(0, m_NumBuffers.get() - m_FreeBuffers.size());
+    }
+
+    /**
+     * The highest number of buffers which have been outstanding at once.
+     */
+    public int getPeakOutstandingCount()
+    {
+        return m_PeakOutstanding.get();
+    }
+
+    /**
+     * The number of times acquire() was called when there was no free buffer and the pool could not grow.
+     */
+    public long getAcquireFailureCount()
+    {
+        return m_NumAcquireFailures.get();
+    }
+
+    /**
+     * The number of buffers added because the pool ran empty.
+     */
+    public long getGrowCount()
+    {
+        return m_NumGrows;
+    }
+
+    /**
+     * The number of spare buffers freed because the pool was idle.
+     */
+    public long getShrinkCount()
+    {
+        return m_NumShrinks;
+    }
+
+    /**
+     * Finds the buffer owned by this pool with the given native address.  This is used to map the address passed to the buffer unlock 
+     * callback back to the buffer.  It can be called from any thread and does not allocate.
+     * @return The buffer or null if the address doesn't belong to this pool.
+     */
+    public FrameBuffer lookup(long address)
+    {
+        Slot slot = m_Registry.get(address);
+        return slot != null ? slot.getBuffer() : null;
+    }
+
+    /**
+     * Finds the slot of the buffer owned by this pool with the given native address.  It can be called from any thread and does not allocate.
+     * @return The slot or null if the address doesn't belong to this pool.
+     */
+    public Slot lookupSlot(long address)
+    {
+        return m_Registry.get(address);
+    }
+
+    /**
+     * Allocates the minimum number of buffers.  This should be called once before the pool is used.
+     * @return Whether or not all the buffers could be allocated.
+     */
+    public boolean allocate()
+    {
+        while (m_NumBuffers.get() < m_MinBuffers)
+        {
+            FrameBuffer buffer = allocateBuffer();
+            if (buffer == null)
+            {
+                return false;
+            }
+
+            m_FreeBuffers.offer(buffer);
+        }
+
+        m_LastPressureTime = System.nanoTime();
+
+        return true;
+    }
+
+    /**
+     * Frees every buffer owned by the pool.  This must only be called once the SDK is no longer using any of the buffers.
+     */
+    public void free()
+    {
+        // forget the addresses first so a late unlock on another thread no longer finds them
+        m_Registry.clear();
+        while (m_FreeBuffers.poll() != null)
+        {
+        }
+
+        for (int i = 0; i < m_Buffers.size(); ++i)
+        {
+            FrameBufferView.unregister(m_Buffers.get(i));
+            m_Allocator.free(m_Buffers.get(i));
+        }
+
+        m_Buffers.clear();
+        m_NumBuffers.set(0);
+    }
+
+    /**
+     * Frees every buffer which isn't acquired, even below the minimum.  acquire() grows the pool again if it is used afterwards.  This must
+     * be called from the game thread.
+     */
+    public void trim()
+    {
+        FrameBuffer buffer;
+        while ((buffer = m_FreeBuffers.poll()) != null)
+        {
+            m_Buffers.remove(buffer);
+            m_Registry.remove(buffer.getAddress());
+            FrameBufferView.unregister(buffer);
+            m_NumBuffers.decrementAndGet();
+            m_Allocator.free(buffer);
+        }
+    }
+
+    /**
+     * Takes a free buffer from the pool, growing the pool if none are free.  This must be called from the game thread.
+     * @return The buffer or null if none are free and the pool cannot grow.
+     */
+    public FrameBuffer acquire()
+    {
+        long now = System.nanoTime();
+
+        FrameBuffer buffer = m_FreeBuffers.poll();
+        if (buffer == null)
+        {
+            m_LastPressureTime = now;
+
+            if (!getCanGrow())
+            {
+                m_NumAcquireFailures.incrementAndGet();
+                return null;
+            }
+
+            buffer = allocateBuffer();
+            if (buffer == null)
+            {
+                m_NumAcquireFailures.incrementAndGet();
+                return null;
+            }
+
+            m_NumGrows++;
+        }
+        else if (m_FreeBuffers.isEmpty())
+        {
+            m_LastPressureTime = now;
+        }
+        else if (now - m_LastPressureTime >= m_ShrinkDelayNanos)
+        {
+            shrink();
+            m_LastPressureTime = now;
+        }
+
+        updatePeakOutstanding();
+
+        return buffer;
+    }
+
+    /**
+     * Takes a free buffer from the pool like acquire(), but if none are free and the pool can't grow waits up to the timeout for one to be
+     * released.  This must be called from the game thread.
+     * @return The buffer or null if none was released in time.
+     */
+    public FrameBuffer acquire(long timeout, TimeUnit unit)
+    {
+        FrameBuffer buffer = acquire();
+        if (buffer != null)
+        {
+            return buffer;
+        }
+
+        return awaitRelease(timeout, unit);
+    }
+
+    /**
+     * Waits up to the timeout for a buffer to be released, without trying to grow the pool.  This is for when acquire() has already failed.
+     * This must be called from the game thread.
+     * @return The buffer or null if none was released in time.
+     */
+    public FrameBuffer awaitRelease(long timeout, TimeUnit unit)
+    {
+        FrameBuffer buffer;
+        if (timeout <= 0)
+        {
+            buffer = m_FreeBuffers.poll();
+            if (buffer != null)
+            {
+                updatePeakOutstanding();
+            }
+            return buffer;
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        // release() wakes the waiter, so check the ring again after registering in case a release happened in between
+        m_Waiter = Thread.currentThread();
+        try
+        {
+            for (;;)
+            {
+                buffer = m_FreeBuffers.poll();
+                if (buffer != null)
+                {
+                    updatePeakOutstanding();
+                    return buffer;
+                }
+
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                {
+                    return null;
+                }
+
+                LockSupport.parkNanos(this, remaining);
+            }
+        }
+        finally
+        {
+            m_Waiter = null;
+        }
+    }
+
+    /**
+     * Returns a previously acquired buffer to the pool.  This can be called from any thread, even while the game thread frees or trims the
+     * pool, since it only puts the buffer back in the free ring and never touches its memory.  A freed pool must not be used again, so a
+     * buffer which races free() back into the ring is never handed out.
+     */
+    public void release(FrameBuffer buffer)
+    {
+        if (buffer == null)
+        {
+            return;
+        }
+
+        // a copy released without being submitted must not let the next frame in this buffer skip the deduplicator
+        Slot slot = m_Registry.get(buffer.getAddress());
+        if (slot != null)
+        {
+            slot.setIsDuplicate(false);
+        }
+
+        // the ring is sized to hold every buffer the pool owns so this can only fail if a buffer is released twice
+        m_FreeBuffers.offer(buffer);
+
+        Thread waiter = m_Waiter;
+        if (waiter != null)
+        {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    protected void updatePeakOutstanding()
+    {
+        int outstanding = getOutstandingCount();
+        int peak = m_PeakOutstanding.get();
+        while (outstanding > peak && !m_PeakOutstanding.compareAndSet(peak, outstanding))
+        {
+            peak = m_PeakOutstanding.get();
+        }
+    }
+
+    protected boolean getCanGrow()
+    {
+        return m_NumBuffers.get() < m_MaxBuffers && getMemoryUsage() + m_BufferSize <= m_MaxMemory;
+    }
+
+    protected FrameBuffer allocateBuffer()
+    {
+        FrameBuffer buffer = m_Allocator.allocate(m_BufferSize);
+        if (buffer == null || !buffer.getIsValid())
+        {
+            return null;
+        }
+
+        m_Buffers.add(buffer);
+        m_Registry.put(buffer.getAddress(), new Slot(buffer, FrameBufferView.register(buffer)));
+        m_PeakBuffers = Math.max(m_PeakBuffers, m_NumBuffers.incrementAndGet());
+
+        return buffer;
+    }
+
+    protected void shrink()
+    {
+        if (m_NumBuffers.get() <= m_MinBuffers)
+        {
+            return;
+        }
+
+        FrameBuffer buffer = m_FreeBuffers.poll();
+        if (buffer == null)
+        {
+            return;
+        }
+
+        m_Buffers.remove(buffer);
+        m_Registry.remove(buffer.getAddress());
+        FrameBufferView.unregister(buffer);
+        m_NumBuffers.decrementAndGet();
+        m_Allocator.free(buffer);
+
+        m_NumShrinks++;
+    }
+}
@@ -0,0 +1,173 @@
+package tv.twitch.broadcast;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps FrameBuffers warm between broadcasts so starting and stopping a broadcast doesn't allocate and free the native memory every time.
+ * The slab sits between a FrameBufferPool and the real allocator.  Buffers freed by the pool are kept idle, grouped by size, and handed
+ * back by the next allocation of the same size.
+ *
+ * The idle buffers never use more than the retained memory limit.  When a freed buffer would go over the limit buffers of the size used
+ * least recently are freed first.  trim() frees idle buffers explicitly, for example when the game is about to load a level, and every
+ * buffer must be trimmed before the SDK is shut down.
+ *
+ * All the methods are synchronized and can be called from any thread.
+ */
+public class FrameBufferSlab implements FrameBufferPool.Allocator
+{
+    protected final FrameBufferPool.Allocator m_Allocator;
+    protected final LinkedHashMap<Integer, ArrayDeque<FrameBuffer>> m_Idle = new LinkedHashMap<Integer, ArrayDeque<FrameBuffer>>(4, 0.75f, true);   //!< The idle buffers by size, least recently used size first.
+    protected long m_MaxRetainedMemory;
+    protected long m_RetainedMemory = 0;
+    protected long m_NumHits = 0;
+    protected long m_NumMisses = 0;
+    protected long m_NumEvictions = 0;
+
+    /**
+     * @param allocator The allocator which really allocates and frees the native memory.
+     * @param maxRetainedMemory The number of bytes of idle buffers the slab will keep.
+     */
+    public FrameBufferSlab(FrameBufferPool.Allocator allocator, long maxRetainedMemory)
+    {
+        m_Allocator = allocator;
+        m_MaxRetainedMemory = Math.max(0, maxRetainedMemory);
+    }
+
+    /**
+     * The number of bytes of idle buffers the slab will keep.  Lowering it frees idle buffers straight away.
+     */
+    public synchronized long getMaxRetainedMemory()
+    {
+        return m_MaxRetainedMemory;
+    }
+    public synchronized void setMaxRetainedMemory(long value)
+    {
+        m_MaxRetainedMemory = Math.max(0, value);
+        trim(m_MaxRetainedMemory);
+    }
+
+    /**
+     * The number of bytes of native memory held by idle buffers.
+     */
+    public synchronized long getRetainedMemory()
+    {
+        return m_RetainedMemory;
+    }
+
+    /**
+     * The number of idle buffers.
+     */
+    public synchronized int getRetainedCount()
+    {
+        int count = 0;
+        for (ArrayDeque<FrameBuffer> buffers : m_Idle.values())
+        {
+            count += buffers.size();
+        }
+        return count;
+    }
+
+    /**
+     * The number of allocations served by an idle buffer.
+     */
+    public synchronized long getHitCount()
+    {
+        return m_NumHits;
+    }
+
+    /**
+     * The number of allocations which had to allocate new native memory.
+     */
+    public synchronized long getMissCount()
+    {
+        return m_NumMisses;
+    }
+
+    /**
+     * The number of idle buffers freed to stay under the retained memory limit or by trim().
+     */
+    public synchronized long getEvictionCount()
+    {
+        return m_NumEvictions;
+    }
+
+    public synchronized FrameBuffer allocate(int size)
+    {
+        ArrayDeque<FrameBuffer> buffers = m_Idle.get(size);
+        if (buffers != null && !buffers.isEmpty())
+        {
+            m_NumHits++;
+            m_RetainedMemory -= size;
+            return buffers.pop();
+        }
+
+        // make room under the limit for the buffer to be kept when it is freed
+        m_NumMisses++;
+        trim(m_MaxRetainedMemory - size);
+
+        return m_Allocator.allocate(size);
+    }
+
+    public synchronized void free(FrameBuffer buffer)
+    {
+        if (buffer == null)
+        {
+            return;
+        }
+
+        int size = buffer.getSize();
+        if (!buffer.getIsValid() || size > m_MaxRetainedMemory)
+        {
+            m_Allocator.free(buffer);
+            return;
+        }
+
+        trim(m_MaxRetainedMemory - size);
+
+        ArrayDeque<FrameBuffer> buffers = m_Idle.get(size);
+        if (buffers == null)
+        {
+            buffers = new ArrayDeque<FrameBuffer>();
+            m_Idle.put(size, buffers);
+        }
+
+        buffers.push(buffer);
+        m_RetainedMemory += size;
+    }
+
+    /**
+     * Frees every idle buffer.  This must be called before the SDK is shut down.
+     */
+    public synchronized void trim()
+    {
+        trim(0);
+    }
+
+    /**
+     * Frees idle buffers, of the least recently used size first, until no more than the given number of bytes are retained.
+     */
+    public synchronized void trim(long maxRetainedMemory)
+    {
+        Iterator<Map.Entry<Integer, ArrayDeque<FrameBuffer>>> it = m_Idle.entrySet().iterator();
+        while (m_RetainedMemory > maxRetainedMemory && it.hasNext())
+        {
+            Map.Entry<Integer, ArrayDeque<FrameBuffer>> entry = it.next();
+            ArrayDeque<FrameBuffer> buffers = entry.getValue();
+
+            while (m_RetainedMemory > maxRetainedMemory && !buffers.isEmpty())
+            {
+                m_Allocator.free(buffers.pollLast());
+                m_RetainedMemory -= entry.getKey();
+                m_NumEvictions++;
+            }
+
+            if (buffers.isEmpty())
+            {
+                it.remove();
+            }
+        }
+    }
+}
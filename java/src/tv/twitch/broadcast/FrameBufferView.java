@@ -0,0 +1,119 @@
+package tv.twitch.broadcast;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * A cached direct ByteBuffer and IntBuffer over the native memory of a FrameBuffer.  Pixel stages written in Java read and write the same
+ * memory which is passed to submitVideoFrame so no copies are needed.
+ *
+ * FrameBuffer itself is part of the SDK and can't hold the views, so views are registered by the owner of the buffer when it is allocated
+ * and unregistered before it is freed.  FrameBufferPool does this for every capture buffer.  Looking up a registered view is lock-free and
+ * doesn't allocate.  Looking up an unregistered buffer wraps its memory again each time, which works but allocates.
+ *
+ * The views are shared by every stage which processes the buffer, on several threads, so their position and limit must never be changed.
+ * Stages use absolute get and put calls, or make relative calls on a duplicate().
+ */
+public final class FrameBufferView
+{
+    private static final ConcurrentLongObjectHashMap<FrameBufferView> s_Views = new ConcurrentLongObjectHashMap<FrameBufferView>(16);
+
+    private final FrameBuffer m_Buffer;
+    private final ByteBuffer m_Bytes;
+    private final IntBuffer m_Ints;
+
+    private FrameBufferView(FrameBuffer buffer, ByteBuffer bytes)
+    {
+        m_Buffer = buffer;
+        m_Bytes = bytes;
+        m_Ints = bytes.asIntBuffer();
+    }
+
+    /**
+     * Creates the views for the buffer and registers them so they are found by get().
+     * @return The view or null if the buffer is invalid or native memory can't be wrapped on this JVM.
+     */
+    public static FrameBufferView register(FrameBuffer buffer)
+    {
+        FrameBufferView view = create(buffer);
+        if (view != null)
+        {
+            s_Views.put(buffer.getAddress(), view);
+        }
+        return view;
+    }
+
+    /**
+     * Removes the views of the buffer.  This must be called before the buffer is freed.
+     */
+    public static void unregister(FrameBuffer buffer)
+    {
+        if (buffer == null)
+        {
+            return;
+        }
+
+        FrameBufferView view = s_Views.get(buffer.getAddress());
+        if (view != null && view.m_Buffer == buffer)
+        {
+            s_Views.remove(buffer.getAddress());
+        }
+    }
+
+    /**
+     * Finds the views of the buffer.  If the buffer isn't registered new views are created.
+     * @return The view or null if the buffer is invalid or native memory can't be wrapped on this JVM.
+     */
+    public static FrameBufferView get(FrameBuffer buffer)
+    {
+        if (buffer == null)
+        {
+            return null;
+        }
+
+        FrameBufferView view = s_Views.get(buffer.getAddress());
+        if (view != null && view.m_Buffer == buffer)
+        {
+            return view;
+        }
+
+        return create(buffer);
+    }
+
+    /**
+     * A shortcut for get(buffer).getBytes().
+     * @return The ByteBuffer or null if there is no view.
+     */
+    public static ByteBuffer getBytes(FrameBuffer buffer)
+    {
+        FrameBufferView view = get(buffer);
+        return view != null ? view.m_Bytes : null;
+    }
+
+    private static FrameBufferView create(FrameBuffer buffer)
+    {
+        ByteBuffer bytes = FrameBufferMemory.wrap(buffer);
+        return bytes != null ? new FrameBufferView(buffer, bytes) : null;
+    }
+
+    public FrameBuffer getBuffer()
+    {
+        return m_Buffer;
+    }
+
+    /**
+     * The memory of the buffer in native byte order.
+     */
+    public ByteBuffer getBytes()
+    {
+        return m_Bytes;
+    }
+
+    /**
+     * The memory of the buffer as native order ints, one per pixel.
+     */
+    public IntBuffer getInts()
+    {
+        return m_Ints;
+    }
+}
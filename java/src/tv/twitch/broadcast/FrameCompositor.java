@@ -0,0 +1,207 @@
+package tv.twitch.broadcast;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Burns a z-ordered stack of overlay layers, such as a chat box, a logo or a "be right back" card, into outgoing frames.  Each layer keeps
+ * its own premultiplied cache so only the blend is done per frame, and the blend only touches the rectangle covered by the layer so the
+ * cost grows with the overlay area rather than the frame area.  The rows of each layer are blended in parallel.
+ *
+ * Layers can be added and removed from any thread.  Only one thread may call composite() at a time.
+ */
+public class FrameCompositor
+{
+    protected final ParallelBandExecutor m_Executor;
+    protected volatile CompositorLayer[] m_Layers = new CompositorLayer[0];
+    protected CompositorLayer[] m_DrawOrder = new CompositorLayer[0];     //!< The layers sorted by z order, reused between frames.
+
+    // the layer being blended
+    protected ByteBuffer m_Frame = null;
+    protected int m_FrameWidth = 0;
+    protected int m_AlphaShift = 24;
+    protected int[] m_Pixels = null;
+    protected int m_LayerWidth = 0;
+    protected int m_LayerX = 0;
+    protected int m_LayerY = 0;
+    protected int m_ClipLeft = 0;
+    protected int m_ClipRight = 0;
+    protected int m_ClipTop = 0;
+
+    protected final ParallelBandExecutor.BandTask m_BlendRows = new ParallelBandExecutor.BandTask()
+    {
+        public void run(int startRow, int endRow)
+        {
+            blendRows(startRow, endRow);
+        }
+    };
+
+    /**
+     * @param executor The executor which runs the row bands.
+     */
+    public FrameCompositor(ParallelBandExecutor executor)
+    {
+        m_Executor = executor;
+    }
+
+    public synchronized void addLayer(CompositorLayer layer)
+    {
+        for (CompositorLayer existing : m_Layers)
+        {
+            if (existing == layer)
+            {
+                return;
+            }
+        }
+
+        CompositorLayer[] layers = new CompositorLayer[m_Layers.length + 1];
+        System.arraycopy(m_Layers, 0, layers, 0, m_Layers.length);
+        layers[m_Layers.length] = layer;
+        m_Layers = layers;
+    }
+
+    public synchronized void removeLayer(CompositorLayer layer)
+    {
+        for (int i = 0; i < m_Layers.length; ++i)
+        {
+            if (m_Layers[i] == layer)
+            {
+                CompositorLayer[] layers = new CompositorLayer[m_Layers.length - 1];
+                System.arraycopy(m_Layers, 0, layers, 0, i);
+                System.arraycopy(m_Layers, i + 1, layers, i, layers.length - i);
+                m_Layers = layers;
+                return;
+            }
+        }
+    }
+
+    public synchronized void removeAllLayers()
+    {
+        m_Layers = new CompositorLayer[0];
+    }
+
+    public int getLayerCount()
+    {
+        return m_Layers.length;
+    }
+
+    /**
+     * Blends the visible layers into the frame from the lowest z order to the highest.
+     * @param frame The frame in native byte order.
+     * @param width The width of the frame.
+     * @param height The height of the frame.
+     * @param format The pixel format of the frame.
+     */
+    public void composite(ByteBuffer frame, int width, int height, PixelFormat format)
+    {
+        CompositorLayer[] layers = m_Layers;
+        if (layers.length == 0)
+        {
+            return;
+        }
+
+        // insertion sort into the reused array since there are only ever a few layers
+        if (m_DrawOrder.length != layers.length)
+        {
+            m_DrawOrder = new CompositorLayer[layers.length];
+        }
+        for (int i = 0; i < layers.length; ++i)
+        {
+            CompositorLayer layer = layers[i];
+            int z = layer.getZOrder();
+            int j = i - 1;
+            while (j >= 0 && m_DrawOrder[j].getZOrder() > z)
+            {
+                m_DrawOrder[j + 1] = m_DrawOrder[j];
+                j--;
+            }
+            m_DrawOrder[j + 1] = layer;
+        }
+
+        m_Frame = frame;
+        m_FrameWidth = width;
+        m_AlphaShift = PixelFormatConverter.getAlphaShift(format);
+
+        try
+        {
+            for (int i = 0; i < m_DrawOrder.length; ++i)
+            {
+                CompositorLayer layer = m_DrawOrder[i];
+                if (!layer.prepare(format))
+                {
+                    continue;
+                }
+
+                // clip the layer to the frame
+                int left = Math.max(0, layer.m_DrawX);
+                int top = Math.max(0, layer.m_DrawY);
+                int right = Math.min(width, layer.m_DrawX + layer.m_DrawWidth);
+                int bottom = Math.min(height, layer.m_DrawY + layer.m_DrawHeight);
+                if (left >= right || top >= bottom)
+                {
+                    continue;
+                }
+
+                m_Pixels = layer.m_DrawPixels;
+                m_LayerWidth = layer.m_DrawWidth;
+                m_LayerX = layer.m_DrawX;
+                m_LayerY = layer.m_DrawY;
+                m_ClipLeft = left;
+                m_ClipRight = right;
+                m_ClipTop = top;
+
+                m_Executor.execute(m_BlendRows, bottom - top);
+            }
+        }
+        finally
+        {
+            m_Frame = null;
+            m_Pixels = null;
+            for (int i = 0; i < m_DrawOrder.length; ++i)
+            {
+                m_DrawOrder[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Blends premultiplied layer pixels over the frame: dest = src + dest * (255 - src alpha) / 255.  Two channels are scaled at once in
+     * each half of the int.
+     */
+    protected void blendRows(int startRow, int endRow)
+    {
+        ByteBuffer frame = m_Frame;
+        int[] pixels = m_Pixels;
+        int alphaShift = m_AlphaShift;
+
+        for (int row = startRow; row < endRow; ++row)
+        {
+            int y = m_ClipTop + row;
+            int source = (y - m_LayerY) * m_LayerWidth + (m_ClipLeft - m_LayerX);
+            int dest = (y * m_FrameWidth + m_ClipLeft) * 4;
+
+            for (int x = m_ClipLeft; x < m_ClipRight; ++x, ++source, dest += 4)
+            {
+                int s = pixels[source];
+                if (s == 0)
+                {
+                    continue;
+                }
+
+                int inverse = 255 - ((s >>> alphaShift) & 0xFF);
+                if (inverse == 0)
+                {
+                    frame.putInt(dest, s);
+                    continue;
+                }
+
+                int d = frame.getInt(dest);
+                int evens = (d & 0x00FF00FF) * inverse;
+                int odds = ((d >>> 8) & 0x00FF00FF) * inverse;
+                evens = ((evens + 0x00800080 + ((evens >>> 8) & 0x00FF00FF)) >>> 8) & 0x00FF00FF;
+                odds = (odds + 0x00800080 + ((odds >>> 8) & 0x00FF00FF)) & 0xFF00FF00;
+
+                frame.putInt(dest, s + (evens | odds));
+            }
+        }
+    }
+}
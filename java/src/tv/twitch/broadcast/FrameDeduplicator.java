@@ -0,0 +1,170 @@
+package tv.twitch.broadcast;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Detects captured frames which are identical to the previous one so they don't have to be encoded.  Menus, loading screens and paused
+ * gameplay often produce the same image for many frames in a row.
+ *
+ * Frames are compared by a 64-bit fingerprint of their pixels.  The fingerprint can either cover every pixel or only sample part of the
+ * frame, which is cheaper but may miss small changes.  A missed change is only delayed, not lost, since a frame is always submitted after
+ * the maximum number of consecutive skips.  That also keeps the encoder fed with frames so the stream doesn't time out.
+ */
+public class FrameDeduplicator
+{
+    private static final long s_Prime1 = 0x9E3779B185EBCA87L;
+    private static final long s_Prime2 = 0xC2B2AE3D27D4EB4FL;
+
+    protected volatile boolean m_Enabled = false;     //!< Read on the submission worker when asynchronous submission is enabled.
+    protected int m_SampleStride = 4;
+    protected int m_MaxConsecutiveSkips = 30;
+
+    protected boolean m_HasPrevious = false;
+    protected long m_PreviousFingerprint = 0;
+    protected int m_NumConsecutiveSkips = 0;
+
+    protected volatile long m_NumDeduplicated = 0;
+    protected volatile long m_NumSubmitted = 0;
+
+    /**
+     * Whether or not unchanged frames are skipped.
+     */
+    public boolean getEnabled()
+    {
+        return m_Enabled;
+    }
+    public void setEnabled(boolean value)
+    {
+        m_Enabled = value;
+        m_HasPrevious = false;
+    }
+
+    /**
+     * The fingerprint reads one of every stride 8 byte words of the frame.  1 reads the whole frame.
+     */
+    public int getSampleStride()
+    {
+        return m_SampleStride;
+    }
+    public void setSampleStride(int value)
+    {
+        m_SampleStride = Math.max(1, value);
+        m_HasPrevious = false;
+    }
+
+    /**
+     * The most unchanged frames which will be skipped in a row before one is submitted anyway.
+     */
+    public int getMaxConsecutiveSkips()
+    {
+        return m_MaxConsecutiveSkips;
+    }
+    public void setMaxConsecutiveSkips(int value)
+    {
+        m_MaxConsecutiveSkips = Math.max(0, value);
+    }
+
+    /**
+     * The number of frames skipped because they were unchanged.
+     */
+    public long getDeduplicatedCount()
+    {
+        return m_NumDeduplicated;
+    }
+
+    /**
+     * The number of frames which were checked and not skipped.
+     */
+    public long getSubmittedCount()
+    {
+        return m_NumSubmitted;
+    }
+
+    /**
+     * Forgets the previous frame and clears the counters.
+     */
+    public void reset()
+    {
+        m_HasPrevious = false;
+        m_NumConsecutiveSkips = 0;
+        m_NumDeduplicated = 0;
+        m_NumSubmitted = 0;
+    }
+
+    /**
+     * Determines whether the frame is the same as the last frame passed in and should be skipped.  This must always be called from the same
+     * thread.
+     * @return Whether or not the frame should be skipped.
+     */
+    public boolean isDuplicate(FrameBuffer buffer)
+    {
+        if (!m_Enabled)
+        {
+            return false;
+        }
+
+        ByteBuffer memory = FrameBufferView.getBytes(buffer);
+        if (memory == null)
+        {
+            return false;
+        }
+
+        long fingerprint = fingerprint(memory, m_SampleStride);
+
+        if (m_HasPrevious && fingerprint == m_PreviousFingerprint && m_NumConsecutiveSkips < m_MaxConsecutiveSkips)
+        {
+            m_NumConsecutiveSkips++;
+            m_NumDeduplicated++;
+            return true;
+        }
+
+        m_HasPrevious = true;
+        m_PreviousFingerprint = fingerprint;
+        m_NumConsecutiveSkips = 0;
+        m_NumSubmitted++;
+
+        return false;
+    }
+
+    /**
+     * Computes a 64-bit fingerprint from every stride'th 8 byte word of the buffer.  The words are mixed into four independent lanes so the
+     * multiplies of neighbouring words can overlap in the CPU.
+     */
+    public static long fingerprint(ByteBuffer memory, int stride)
+    {
+        int numWords = memory.capacity() >>> 3;
+        int step = stride << 3;
+        int unrolledEnd = (numWords / (stride * 4)) * (stride * 4) * 8;
+
+        long h0 = s_Prime1;
+        long h1 = s_Prime2;
+        long h2 = ~s_Prime1;
+        long h3 = ~s_Prime2;
+
+        int offset = 0;
+        for (; offset < unrolledEnd; offset += step * 4)
+        {
+            h0 = mix(h0, memory.getLong(offset));
+            h1 = mix(h1, memory.getLong(offset + step));
+            h2 = mix(h2, memory.getLong(offset + step * 2));
+            h3 = mix(h3, memory.getLong(offset + step * 3));
+        }
+
+        for (; offset < (numWords << 3); offset += step)
+        {
+            h0 = mix(h0, memory.getLong(offset));
+        }
+
+        long h = Long.rotateLeft(h0, 1) + Long.rotateLeft(h1, 7) + Long.rotateLeft(h2, 12) + Long.rotateLeft(h3, 18);
+        h ^= h >>> 33;
+        h *= s_Prime2;
+        h ^= h >>> 29;
+
+        return h;
+    }
+
+    private static long mix(long h, long value)
+    {
+        return Long.rotateLeft(h + value * s_Prime2, 31) * s_Prime1;
+    }
+}
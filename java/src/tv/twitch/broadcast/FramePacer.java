@@ -0,0 +1,213 @@
+package tv.twitch.broadcast;
+
+/**
+ * Decides when frames should be captured so they are submitted at the broadcast frame rate.  If frames are sent to the SDK faster than the
+ * broadcast frame rate it will simply release the extra buffers without using them, which means the game wasted time on the capture.
+ *
+ * Captures are scheduled on an ideal timeline of start + n * period rather than relative to the previous capture, so lateness in one frame
+ * doesn't push back every frame after it.  When the game stalls for longer than a frame the missed slots are either skipped or filled by
+ * duplicating the next captured frame, depending on the StallPolicy.  After a long hitch the timeline is restarted rather than trying to
+ * catch up.
+ */
+public class FramePacer
+{
+    /**
+     * What to do about the capture slots missed while the game was stalled.
+     */
+    public enum StallPolicy
+    {
+        Skip,       //!< Capture once and drop the missed slots.
+        Duplicate   //!< Capture once and submit copies of the frame for the missed slots, up to the duplicate limit.
+    }
+
+    protected long m_PeriodNanos = 0;
+    protected long m_NextCaptureTime = 0;
+    protected boolean m_Started = false;
+    protected StallPolicy m_StallPolicy = StallPolicy.Skip;
+    protected int m_MaxDuplicates = 2;
+    protected int m_MaxLagFrames = 30;
+
+    protected long m_NumOnTime = 0;
+    protected long m_NumLate = 0;
+    protected long m_NumSkipped = 0;
+    protected long m_NumDuplicated = 0;
+    protected long m_NumResyncs = 0;
+
+    /**
+     * @param framesPerSecond The number of frames to capture per second.
+     */
+    public FramePacer(int framesPerSecond)
+    {
+        setFramesPerSecond(framesPerSecond);
+    }
+
+    public void setFramesPerSecond(int framesPerSecond)
+    {
+        m_PeriodNanos = 1000000000L / Math.max(1, framesPerSecond);
+    }
+
+    /**
+     * The time between captures in nanoseconds.
+     */
+    public long getPeriodNanos()
+    {
+        return m_PeriodNanos;
+    }
+
+    public StallPolicy getStallPolicy()
+    {
+        return m_StallPolicy;
+    }
+    public void setStallPolicy(StallPolicy value)
+    {
+        m_StallPolicy = value;
+    }
+
+    /**
+     * The most copies of a frame which will be submitted to fill missed slots when using the Duplicate policy.
+     */
+    public int getMaxDuplicates()
+    {
+        return m_MaxDuplicates;
+    }
+    public void setMaxDuplicates(int value)
+    {
+        m_MaxDuplicates = Math.max(0, value);
+    }
+
+    /**
+     * The number of missed slots after which the pacer gives up on the timeline and starts a new one from the current time.
+     */
+    public int getMaxLagFrames()
+    {
+        return m_MaxLagFrames;
+    }
+    public void setMaxLagFrames(int value)
+    {
+        m_MaxLagFrames = Math.max(1, value);
+    }
+
+    /**
+     * The number of captures made in their scheduled slot.
+     */
+    public long getOnTimeCount()
+    {
+        return m_NumOnTime;
+    }
+
+    /**
+     * The number of captures made after one or more slots had been missed.
+     */
+    public long getLateCount()
+    {
+        return m_NumLate;
+    }
+
+    /**
+     * The number of slots for which no frame was submitted.
+     */
+    public long getSkippedCount()
+    {
+        return m_NumSkipped;
+    }
+
+    /**
+     * The number of slots filled with a copy of another frame.
+     */
+    public long getDuplicatedCount()
+    {
+        return m_NumDuplicated;
+    }
+
+    /**
+     * The number of times the timeline was restarted after a long stall.
+     */
+    public long getResyncCount()
+    {
+        return m_NumResyncs;
+    }
+
+    /**
+     * Restarts the timeline and clears the counters.  The next call to poll() will capture.
+     */
+    public void reset()
+    {
+        m_Started = false;
+        m_NumOnTime = 0;
+        m_NumLate = 0;
+        m_NumSkipped = 0;
+        m_NumDuplicated = 0;
+        m_NumResyncs = 0;
+    }
+
+    /**
+     * Notes that a frame which was due could not be submitted, for example because there was no free buffer.
+     */
+    public void onFrameDropped()
+    {
+        m_NumSkipped++;
+    }
+
+    /**
+     * Notes that a copy of a frame was submitted to fill a missed slot.
+     */
+    public void onFrameDuplicated()
+    {
+        m_NumDuplicated++;
+    }
+
+    /**
+     * Determines whether a capture is due.
+     * @param now The current time from System.nanoTime().
+     * @return The number of frames to submit now.  0 if it isn't time yet, 1 to capture a frame and more than 1 if copies of the captured
+     * frame should be submitted to fill missed slots.  The caller should report each copy with onFrameDuplicated() or onFrameDropped().
+     */
+    public int poll(long now)
+    {
+        if (!m_Started)
+        {
+            m_Started = true;
+            m_NextCaptureTime = now + m_PeriodNanos;
+            m_NumOnTime++;
+            return 1;
+        }
+
+        if (now < m_NextCaptureTime)
+        {
+            return 0;
+        }
+
+        long missed = (now - m_NextCaptureTime) / m_PeriodNanos;
+        if (missed == 0)
+        {
+            m_NextCaptureTime += m_PeriodNanos;
+            m_NumOnTime++;
+            return 1;
+        }
+
+        m_NumLate++;
+
+        // too far behind to catch up so start again from now
+        if (missed > m_MaxLagFrames)
+        {
+            m_NextCaptureTime = now + m_PeriodNanos;
+            m_NumSkipped += missed;
+            m_NumResyncs++;
+            return 1;
+        }
+
+        m_NextCaptureTime += (missed + 1) * m_PeriodNanos;
+
+        if (m_StallPolicy == StallPolicy.Skip)
+        {
+            m_NumSkipped += missed;
+            return 1;
+        }
+
+        // the caller reports whether each duplicate was actually submitted
+        int duplicates = (int)Math.min(missed, m_MaxDuplicates);
+        m_NumSkipped += missed - duplicates;
+
+        return 1 + duplicates;
+    }
+}
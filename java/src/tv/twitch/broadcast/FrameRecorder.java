@@ -0,0 +1,301 @@
+package tv.twitch.broadcast;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records submitted frames to a raw frame file so there is a local copy of exactly what was broadcast.
+ *
+ * The file is allocated up front for a fixed number of frames and memory-mapped, so recording a frame is a copy into the page cache and
+ * never waits for the disk.  A flusher thread forces the written pages out in the background.  Once the file is full further frames are
+ * counted as dropped.  1080p frames are about 8MB so the file should be on a disk which can take the frame rate times that per second.
+ *
+ * The file starts with a header, then an index of the broadcast time of each frame and then the frames themselves, all little-endian:
+ *
+ *   0  int   magic 'TTVR'
+ *   4  int   version
+ *   8  int   width
+ *  12  int   height
+ *  16  int   pixel format value
+ *  20  int   frame size in bytes
+ *  24  int   maximum number of frames
+ *  28  int   number of frames recorded
+ *  32  long  offset of the index
+ *  40  long  offset of the first frame, page aligned
+ *  48  int   target frames per second
+ *
+ * The index has a long broadcast time in milliseconds for each frame.  Frame i starts at the frame offset plus i times the frame size.  The
+ * frame count in the header is only updated after the frame and its index entry are written, so a reader never sees a partial frame.
+ */
+public class FrameRecorder
+{
+    public static final int s_Magic = 0x52565454;      //!< 'TTVR' in little-endian.
+    public static final int s_Version = 1;
+    public static final int s_HeaderSize = 64;
+
+    private static final int s_PageSize = 4096;
+    private static final int s_MaxSegmentSize = 1 << 30;     //!< A single mapping can't be larger than 2GB so frames are mapped in segments.
+
+    protected final File m_File;
+    protected final RandomAccessFile m_RandomAccessFile;
+    protected final int m_FrameSize;
+    protected final int m_MaxFrames;
+    protected final int m_FramesPerSegment;
+    protected final MappedByteBuffer m_Header;         //!< The header and the index.
+    protected final MappedByteBuffer[] m_Segments;
+
+    protected volatile int m_NumFrames = 0;
+    protected volatile long m_NumDropped = 0;
+    protected volatile boolean m_Closed = false;
+    protected long m_FlushIntervalNanos = 1000000000L;
+    protected int m_NumFlushed = 0;                    //!< Only touched by the flusher thread.
+    protected Thread m_Flusher = null;
+
+    /**
+     * Creates the file and maps it.  Any existing file is overwritten.
+     * @param file The file to record to.
+     * @param videoParams The parameters of the broadcast being recorded.
+     * @param maxFrames The number of frames to allocate space for.
+     */
+    public FrameRecorder(File file, VideoParams videoParams, int maxFrames) throws IOException
+    {
+        m_File = file;
+        m_FrameSize = videoParams.outputWidth * videoParams.outputHeight * 4;
+        m_MaxFrames = Math.max(1, maxFrames);
+        m_FramesPerSegment = Math.max(1, s_MaxSegmentSize / m_FrameSize);
+
+        long indexOffset = s_HeaderSize;
+        long dataOffset = alignToPage(indexOffset + 8L * m_MaxFrames);
+        long length = dataOffset + (long)m_FrameSize * m_MaxFrames;
+
+        m_RandomAccessFile = new RandomAccessFile(file, "rw");
+        try
+        {
+            m_RandomAccessFile.setLength(0);
+            m_RandomAccessFile.setLength(length);
+
+            FileChannel channel = m_RandomAccessFile.getChannel();
+
+            m_Header = channel.map(FileChannel.MapMode.READ_WRITE, 0, dataOffset);
+            m_Header.order(ByteOrder.LITTLE_ENDIAN);
+            m_Header.putInt(0, s_Magic);
+            m_Header.putInt(4, s_Version);
+            m_Header.putInt(8, videoParams.outputWidth);
+            m_Header.putInt(12, videoParams.outputHeight);
+            m_Header.putInt(16, videoParams.pixelFormat.getValue());
+            m_Header.putInt(20, m_FrameSize);
+            m_Header.putInt(24, m_MaxFrames);
+            m_Header.putInt(28, 0);
+            m_Header.putLong(32, indexOffset);
+            m_Header.putLong(40, dataOffset);
+            m_Header.putInt(48, videoParams.targetFps);
+
+            int numSegments = (m_MaxFrames + m_FramesPerSegment - 1) / m_FramesPerSegment;
+            m_Segments = new MappedByteBuffer[numSegments];
+            for (int i = 0; i < numSegments; ++i)
+            {
+                int frames = Math.min(m_FramesPerSegment, m_MaxFrames - i * m_FramesPerSegment);
+                long offset = dataOffset + (long)i * m_FramesPerSegment * m_FrameSize;
+                m_Segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, offset, (long)frames * m_FrameSize);
+            }
+        }
+        catch (IOException x)
+        {
+            m_RandomAccessFile.close();
+            throw x;
+        }
+
+        startFlusher();
+    }
+
+    public File getFile()
+    {
+        return m_File;
+    }
+
+    /**
+     * The number of frames the file has space for.
+     */
+    public int getMaxFrameCount()
+    {
+        return m_MaxFrames;
+    }
+
+    /**
+     * The number of frames recorded.
+     */
+    public int getFrameCount()
+    {
+        return m_NumFrames;
+    }
+
+    /**
+     * The number of frames which couldn't be recorded because the file was full.
+     */
+    public long getDroppedCount()
+    {
+        return m_NumDropped;
+    }
+
+    /**
+     * The time in milliseconds between background flushes.
+     */
+    public long getFlushIntervalMilliseconds()
+    {
+        return m_FlushIntervalNanos / 1000000;
+    }
+    public void setFlushIntervalMilliseconds(long value)
+    {
+        m_FlushIntervalNanos = Math.max(1, value) * 1000000;
+    }
+
+    /**
+     * Copies a frame into the file.  Frames must be recorded from one thread at a time.
+     * @param buffer The frame, which must be the size of the recorded frames.
+     * @param broadcastTime The broadcast time of the frame in milliseconds.
+     * @return Whether or not the frame was recorded.
+     */
+    public boolean record(FrameBuffer buffer, long broadcastTime)
+    {
+        ByteBuffer source = FrameBufferView.getBytes(buffer);
+        if (source == null)
+        {
+            m_NumDropped++;
+            return false;
+        }
+
+        return record(source, broadcastTime);
+    }
+
+    /**
+     * Copies a frame into the file from memory.  The position and limit of the memory are not changed.
+     * @param frame The pixels of the frame, at least the size of the recorded frames.
+     * @param broadcastTime The broadcast time of the frame in milliseconds.
+     * @return Whether or not the frame was recorded.
+     */
+    public synchronized boolean record(ByteBuffer frame, long broadcastTime)
+    {
+        if (m_Closed)
+        {
+            return false;
+        }
+
+        int index = m_NumFrames;
+        if (index >= m_MaxFrames || frame.capacity() < m_FrameSize)
+        {
+            m_NumDropped++;
+            return false;
+        }
+
+        ByteBuffer source = frame.duplicate();
+        source.clear().limit(m_FrameSize);
+
+        MappedByteBuffer segment = m_Segments[index / m_FramesPerSegment];
+        segment.position((index % m_FramesPerSegment) * m_FrameSize);
+        segment.put(source);
+
+        m_Header.putLong(s_HeaderSize + 8 * index, broadcastTime);
+        m_Header.putInt(28, index + 1);
+        m_NumFrames = index + 1;
+
+        return true;
+    }
+
+    /**
+     * Stops recording, flushes everything to disk and closes the file.  The mapping itself is released when it is garbage collected.
+     */
+    public void close()
+    {
+        synchronized (this)
+        {
+            if (m_Closed)
+            {
+                return;
+            }
+            m_Closed = true;
+        }
+
+        LockSupport.unpark(m_Flusher);
+        boolean interrupted = false;
+        for (;;)
+        {
+            try
+            {
+                m_Flusher.join();
+                break;
+            }
+            catch (InterruptedException x)
+            {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        flush();
+
+        try
+        {
+            m_RandomAccessFile.close();
+        }
+        catch (IOException x)
+        {
+            // the data is already forced out so there is nothing more to lose
+        }
+    }
+
+    protected void startFlusher()
+    {
+        m_Flusher = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                while (!m_Closed)
+                {
+                    LockSupport.parkNanos(this, m_FlushIntervalNanos);
+                    if (!m_Closed)
+                    {
+                        flush();
+                    }
+                }
+            }
+        }, "Twitch recording flusher");
+        m_Flusher.setDaemon(true);
+        m_Flusher.start();
+    }
+
+    /**
+     * Forces the segments written since the last flush and then the header to disk.  Only one thread flushes at a time.
+     */
+    protected void flush()
+    {
+        int count = m_NumFrames;
+        if (count == m_NumFlushed)
+        {
+            return;
+        }
+
+        for (int i = m_NumFlushed / m_FramesPerSegment; i <= (count - 1) / m_FramesPerSegment; ++i)
+        {
+            m_Segments[i].force();
+        }
+
+        // the index and frame count go last so they cover at least the frames forced above
+        m_Header.force();
+        m_NumFlushed = count;
+    }
+
+    private static long alignToPage(long offset)
+    {
+        return (offset + s_PageSize - 1) / s_PageSize * s_PageSize;
+    }
+}
@@ -0,0 +1,218 @@
+package tv.twitch.broadcast;
+
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import tv.twitch.ErrorCode;
+
+/**
+ * Drives a BroadcastController with frames at its target frame rate without a game loop, as a repeatable load test.  Set a frame source,
+ * usually a RecordedFrameSource, on the controller and start broadcasting, then call run() on the thread which would normally capture.
+ * Every frame goes through the normal path of getNextFreeBuffer(), the frame source and submitFrame(), and update() is called between
+ * frames so the SDK callbacks are delivered as they would be in a game.
+ *
+ * Frames are scheduled on an ideal timeline at the target frame rate, with each capture moved off its slot by jitter drawn from a seeded
+ * random number generator.  The same seed always gives the same schedule, so a run can be repeated against the real SDK and against a
+ * simulated backend.  Occasional hitches, where the game stalls for several frames, can be mixed in as well.
+ */
+public class FrameReplayDriver
+{
+    /**
+     * The outcome of a run.
+     */
+    public static class Result
+    {
+        public long frames = 0;                 //!< The number of captures attempted.
+        public long submitted = 0;              //!< The number of frames the controller accepted.
+        public long dropped = 0;                //!< The number of frames dropped because no buffer was free or the handoff queue was full.
+        public long failed = 0;                 //!< The number of frames which failed with any other error.
+        public long hitches = 0;                //!< The number of hitches injected.
+        public long backpressureDrops = 0;      //!< Drops counted by the backpressure policy of the controller during the run.
+        public long handoffDrops = 0;           //!< Drops counted at the submission worker handoff during the run.
+        public long elapsedNanos = 0;
+        public final LatencyHistogram latency = new LatencyHistogram();      //!< The time each capture and submit took.
+        public final LatencyHistogram lateness = new LatencyHistogram();     //!< How far after its jittered slot each capture started.
+
+        public double getAchievedFramesPerSecond()
+        {
+            return elapsedNanos > 0 ? submitted * 1e9 / elapsedNanos : 0;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%d frames, %d submitted, %d dropped, %d failed, %d hitches, %.2f fps, latency mean %.3f ms p99 %.3f ms max %.3f ms, late p99 %.3f ms",
+                                 frames, submitted, dropped, failed, hitches, getAchievedFramesPerSecond(),
+                                 latency.getMean() / 1e6, latency.getPercentile(99) / 1e6, latency.getMax() / 1e6, lateness.getPercentile(99) / 1e6);
+        }
+    }
+
+    private static final long s_SpinNanos = 200000;     //!< Waits shorter than this spin instead of parking, for accurate slots.
+
+    protected final BroadcastController m_Controller;
+    protected final long m_Seed;
+    protected double m_JitterMillis = 2;
+    protected double m_HitchProbability = 0;
+    protected long m_HitchMillis = 100;
+    protected volatile boolean m_Cancelled = false;
+
+    /**
+     * @param controller The controller to drive.
+     * @param seed The seed for the jitter and hitches.
+     */
+    public FrameReplayDriver(BroadcastController controller, long seed)
+    {
+        m_Controller = controller;
+        m_Seed = seed;
+    }
+
+    public long getSeed()
+    {
+        return m_Seed;
+    }
+
+    /**
+     * The standard deviation in milliseconds of the offset of each capture from its slot.  Offsets are kept within half a frame either side
+     * so the order of the frames never changes.
+     */
+    public double getJitterMillis()
+    {
+        return m_JitterMillis;
+    }
+    public void setJitterMillis(double value)
+    {
+        m_JitterMillis = Math.max(0, value);
+    }
+
+    /**
+     * The chance of a capture being delayed by a hitch, between 0 and 1.
+     */
+    public double getHitchProbability()
+    {
+        return m_HitchProbability;
+    }
+    public void setHitchProbability(double value)
+    {
+        m_HitchProbability = Math.max(0, Math.min(1, value));
+    }
+
+    /**
+     * How long a hitch stalls the captures in milliseconds.  The slots after a hitch keep their place on the timeline so the driver tries
+     * to catch up, like a game which renders as fast as it can after a stall.
+     */
+    public long getHitchMillis()
+    {
+        return m_HitchMillis;
+    }
+    public void setHitchMillis(long value)
+    {
+        m_HitchMillis = Math.max(0, value);
+    }
+
+    /**
+     * Stops a run in progress after the current frame.  This can be called from any thread.
+     */
+    public void cancel()
+    {
+        m_Cancelled = true;
+    }
+
+    /**
+     * Submits frames at the target frame rate of the broadcast until the given number of frames have been attempted, the broadcast stops,
+     * a RecordedFrameSource which doesn't loop runs out of frames or cancel() is called.
+     * @param frameCount The number of captures to attempt.
+     * @return The result, or null if the controller isn't broadcasting.
+     */
+    public Result run(long frameCount)
+    {
+        if (!m_Controller.getIsBroadcasting())
+        {
+            return null;
+        }
+
+        m_Cancelled = false;
+
+        Random random = new Random(m_Seed);
+        Result result = new Result();
+        long period = m_Controller.getFramePacer().getPeriodNanos();
+        long maxOffset = period / 2;
+        long backpressureDrops = m_Controller.getBackpressureDropCount();
+        long handoffDrops = m_Controller.getFramesDroppedAtHandoff();
+        FrameSource source = m_Controller.getFrameSource();
+
+        long start = System.nanoTime();
+        long hitchEnd = start;
+        for (long frame = 0; frame < frameCount && !m_Cancelled; ++frame)
+        {
+            // draw the schedule before checking anything so it only depends on the seed
+            long offset = (long)Math.max(-maxOffset, Math.min(maxOffset, random.nextGaussian() * m_JitterMillis * 1000000));
+            boolean hitch = m_HitchProbability > 0 && random.nextDouble() < m_HitchProbability;
+
+            long slot = start + frame * period + offset;
+            if (hitch)
+            {
+                hitchEnd = Math.max(hitchEnd, slot) + m_HitchMillis * 1000000L;
+                result.hitches++;
+            }
+            slot = Math.max(slot, hitchEnd);
+
+            waitUntil(slot);
+
+            m_Controller.update();
+            if (!m_Controller.getIsBroadcasting() ||
+                (source instanceof RecordedFrameSource && ((RecordedFrameSource)source).getIsFinished()))
+            {
+                break;
+            }
+
+            long captureStart = System.nanoTime();
+            result.lateness.record(captureStart - slot);
+
+            ErrorCode ret = m_Controller.captureFrame();
+            result.latency.record(System.nanoTime() - captureStart);
+            result.frames++;
+
+            if (ret == ErrorCode.TTV_EC_FRAME_QUEUE_FULL)
+            {
+                result.dropped++;
+            }
+            else if (ErrorCode.failed(ret))
+            {
+                result.failed++;
+            }
+            else
+            {
+                result.submitted++;
+            }
+        }
+
+        result.elapsedNanos = System.nanoTime() - start;
+        result.backpressureDrops = m_Controller.getBackpressureDropCount() - backpressureDrops;
+        result.handoffDrops = m_Controller.getFramesDroppedAtHandoff() - handoffDrops;
+
+        return result;
+    }
+
+    /**
+     * Parks until close to the time and then spins the rest of the way since parking can oversleep by a millisecond or more.
+     */
+    protected void waitUntil(long time)
+    {
+        for (;;)
+        {
+            long remaining = time - System.nanoTime();
+            if (remaining <= 0)
+            {
+                return;
+            }
+            else if (remaining > s_SpinNanos)
+            {
+                LockSupport.parkNanos(this, remaining - s_SpinNanos);
+            }
+            else
+            {
+                Thread.yield();
+            }
+        }
+    }
+}
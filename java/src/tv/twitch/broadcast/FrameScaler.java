@@ -0,0 +1,350 @@
+package tv.twitch.broadcast;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Resamples a 32 bit per pixel image to a different size with a separable filter.  The image is first resized horizontally into an
+ * intermediate image with the source height and then vertically into the destination.  Both passes are split into row bands which run
+ * in parallel.
+ *
+ * The four bytes of each pixel are filtered independently so any of the PixelFormats can be scaled without conversion.  The filter
+ * weights are computed once by configure() in 14 bit fixed point and nothing is allocated by scale().
+ *
+ * Only one thread may call scale() at a time.
+ */
+public class FrameScaler
+{
+    /**
+     * The filter used for resampling, from fastest to best looking.
+     */
+    public enum Filter
+    {
+        Box,        //!< Averages the source pixels covered by each destination pixel.
+        Bilinear,   //!< A triangle filter.  Equivalent to bilinear interpolation when enlarging.
+        Lanczos     //!< A 3 lobe windowed sinc filter.  Sharper than bilinear but may show slight ringing at hard edges.
+    }
+
+    private static final int s_WeightBits = 14;
+
+    protected final ParallelBandExecutor m_Executor;
+    protected Filter m_Filter = Filter.Bilinear;
+    protected int m_SourceWidth = 0;
+    protected int m_SourceHeight = 0;
+    protected int m_DestWidth = 0;
+    protected int m_DestHeight = 0;
+
+    // the taps for each destination column and row
+    protected int m_HorizontalTaps = 0;
+    protected int[] m_HorizontalStart = null;
+    protected int[] m_HorizontalWeights = null;
+    protected int m_VerticalTaps = 0;
+    protected int[] m_VerticalStart = null;
+    protected int[] m_VerticalWeights = null;
+
+    protected int[] m_Intermediate = null;  //!< The horizontally scaled image.
+
+    protected ByteBuffer m_Source = null;
+    protected ByteBuffer m_Dest = null;
+
+    protected final ParallelBandExecutor.BandTask m_HorizontalPass = new ParallelBandExecutor.BandTask()
+    {
+        public void run(int startRow, int endRow)
+        {
+            scaleRowsHorizontally(startRow, endRow);
+        }
+    };
+
+    protected final ParallelBandExecutor.BandTask m_VerticalPass = new ParallelBandExecutor.BandTask()
+    {
+        public void run(int startRow, int endRow)
+        {
+            scaleRowsVertically(startRow, endRow);
+        }
+    };
+
+    /**
+     * @param executor The executor which runs the row bands.
+     */
+    public FrameScaler(ParallelBandExecutor executor)
+    {
+        m_Executor = executor;
+    }
+
+    public Filter getFilter()
+    {
+        return m_Filter;
+    }
+
+    public int getSourceWidth()
+    {
+        return m_SourceWidth;
+    }
+
+    public int getSourceHeight()
+    {
+        return m_SourceHeight;
+    }
+
+    public int getDestWidth()
+    {
+        return m_DestWidth;
+    }
+
+    public int getDestHeight()
+    {
+        return m_DestHeight;
+    }
+
+    /**
+     * Prepares the filter weights for scaling between the given sizes.  This allocates and should only be called when the sizes change.
+     */
+    public void configure(int sourceWidth, int sourceHeight, int destWidth, int destHeight, Filter filter)
+    {
+        if (sourceWidth <= 0 || sourceHeight <= 0 || destWidth <= 0 || destHeight <= 0)
+        {
+            throw new IllegalArgumentException("Invalid image size");
+        }
+
+        if (sourceWidth == m_SourceWidth && sourceHeight == m_SourceHeight && destWidth == m_DestWidth && destHeight == m_DestHeight && filter == m_Filter)
+        {
+            return;
+        }
+
+        m_SourceWidth = sourceWidth;
+        m_SourceHeight = sourceHeight;
+        m_DestWidth = destWidth;
+        m_DestHeight = destHeight;
+        m_Filter = filter;
+
+        m_HorizontalStart = new int[destWidth];
+        m_HorizontalTaps = computeWeights(sourceWidth, destWidth, filter, m_HorizontalStart);
+        m_HorizontalWeights = new int[destWidth * m_HorizontalTaps];
+        fillWeights(sourceWidth, destWidth, filter, m_HorizontalTaps, m_HorizontalStart, m_HorizontalWeights);
+
+        m_VerticalStart = new int[destHeight];
+        m_VerticalTaps = computeWeights(sourceHeight, destHeight, filter, m_VerticalStart);
+        m_VerticalWeights = new int[destHeight * m_VerticalTaps];
+        fillWeights(sourceHeight, destHeight, filter, m_VerticalTaps, m_VerticalStart, m_VerticalWeights);
+
+        m_Intermediate = new int[destWidth * sourceHeight];
+    }
+
+    /**
+     * Scales the source image into the destination.  Both buffers hold tightly packed 4 byte pixels and must use the native byte order.
+     */
+    public void scale(ByteBuffer source, ByteBuffer dest)
+    {
+        if (source.capacity() < m_SourceWidth * m_SourceHeight * 4 || dest.capacity() < m_DestWidth * m_DestHeight * 4)
+        {
+            throw new IllegalArgumentException("Buffer too small");
+        }
+
+        m_Source = source;
+        m_Dest = dest;
+
+        try
+        {
+            m_Executor.execute(m_HorizontalPass, m_SourceHeight);
+            m_Executor.execute(m_VerticalPass, m_DestHeight);
+        }
+        finally
+        {
+            m_Source = null;
+            m_Dest = null;
+        }
+    }
+
+    protected void scaleRowsHorizontally(int startRow, int endRow)
+    {
+        ByteBuffer source = m_Source;
+        int[] intermediate = m_Intermediate;
+        int[] starts = m_HorizontalStart;
+        int[] weights = m_HorizontalWeights;
+        int taps = m_HorizontalTaps;
+        int sourceWidth = m_SourceWidth;
+        int destWidth = m_DestWidth;
+
+        for (int y = startRow; y < endRow; ++y)
+        {
+            int rowOffset = y * sourceWidth * 4;
+            int outIndex = y * destWidth;
+
+            for (int x = 0; x < destWidth; ++x)
+            {
+                int c0 = 0, c1 = 0, c2 = 0, c3 = 0;
+                int offset = rowOffset + starts[x] * 4;
+                int w = x * taps;
+
+                for (int t = 0; t < taps; ++t, offset += 4)
+                {
+                    int weight = weights[w + t];
+                    int pixel = source.getInt(offset);
+                    c0 += (pixel & 0xFF) * weight;
+                    c1 += ((pixel >>> 8) & 0xFF) * weight;
+                    c2 += ((pixel >>> 16) & 0xFF) * weight;
+                    c3 += (pixel >>> 24) * weight;
+                }
+
+                intermediate[outIndex + x] = pack(c0, c1, c2, c3);
+            }
+        }
+    }
+
+    protected void scaleRowsVertically(int startRow, int endRow)
+    {
+        ByteBuffer dest = m_Dest;
+        int[] intermediate = m_Intermediate;
+        int[] starts = m_VerticalStart;
+        int[] weights = m_VerticalWeights;
+        int taps = m_VerticalTaps;
+        int destWidth = m_DestWidth;
+
+        for (int y = startRow; y < endRow; ++y)
+        {
+            int first = starts[y] * destWidth;
+            int w = y * taps;
+            int outOffset = y * destWidth * 4;
+
+            for (int x = 0; x < destWidth; ++x, outOffset += 4)
+            {
+                int c0 = 0, c1 = 0, c2 = 0, c3 = 0;
+                int index = first + x;
+
+                for (int t = 0; t < taps; ++t, index += destWidth)
+                {
+                    int weight = weights[w + t];
+                    int pixel = intermediate[index];
+                    c0 += (pixel & 0xFF) * weight;
+                    c1 += ((pixel >>> 8) & 0xFF) * weight;
+                    c2 += ((pixel >>> 16) & 0xFF) * weight;
+                    c3 += (pixel >>> 24) * weight;
+                }
+
+                dest.putInt(outOffset, pack(c0, c1, c2, c3));
+            }
+        }
+    }
+
+    /**
+     * Rounds and clamps the fixed point channel sums and packs them back into a pixel.
+     */
+    private static int pack(int c0, int c1, int c2, int c3)
+    {
+        return clamp(c0) | (clamp(c1) << 8) | (clamp(c2) << 16) | (clamp(c3) << 24);
+    }
+
+    private static int clamp(int value)
+    {
+        value = (value + (1 << (s_WeightBits - 1))) >> s_WeightBits;
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    private static double getSupport(Filter filter)
+    {
+        switch (filter)
+        {
+            case Box:      return 0.5;
+            case Lanczos:  return 3.0;
+            case Bilinear:
+            default:       return 1.0;
+        }
+    }
+
+    private static double evaluate(Filter filter, double x)
+    {
+        x = Math.abs(x);
+        switch (filter)
+        {
+            case Box:
+                return x <= 0.5 ? 1.0 : 0.0;
+            case Lanczos:
+                if (x >= 3.0)
+                {
+                    return 0.0;
+                }
+                return sinc(x) * sinc(x / 3.0);
+            case Bilinear:
+            default:
+                return x < 1.0 ? 1.0 - x : 0.0;
+        }
+    }
+
+    private static double sinc(double x)
+    {
+        if (x == 0.0)
+        {
+            return 1.0;
+        }
+        x *= Math.PI;
+        return Math.sin(x) / x;
+    }
+
+    /**
+     * Works out the first source index for each destination index, clamped so every tap lies inside the source.
+     * @return The number of taps each destination index uses.
+     */
+    private static int computeWeights(int sourceSize, int destSize, Filter filter, int[] starts)
+    {
+        double scale = (double)sourceSize / destSize;
+        double filterScale = Math.max(1.0, scale);
+        double support = getSupport(filter) * filterScale;
+        int taps = Math.min(sourceSize, (int)Math.ceil(support) * 2 + 1);
+
+        for (int i = 0; i < destSize; ++i)
+        {
+            double center = (i + 0.5) * scale;
+            int start = (int)Math.floor(center - support + 0.5);
+            starts[i] = Math.max(0, Math.min(start, sourceSize - taps));
+        }
+
+        return taps;
+    }
+
+    /**
+     * Computes the normalised fixed point weights of each tap.
+     */
+    private static void fillWeights(int sourceSize, int destSize, Filter filter, int taps, int[] starts, int[] weights)
+    {
+        double scale = (double)sourceSize / destSize;
+        double filterScale = Math.max(1.0, scale);
+        double[] values = new double[taps];
+
+        for (int i = 0; i < destSize; ++i)
+        {
+            double center = (i + 0.5) * scale;
+            int start = starts[i];
+
+            double total = 0.0;
+            for (int t = 0; t < taps; ++t)
+            {
+                // sample the filter at the centre of the source pixel, the part of the filter outside the image is dropped
+                double value = evaluate(filter, (start + t + 0.5 - center) / filterScale);
+                values[t] = value;
+                total += value;
+            }
+
+            if (total == 0.0)
+            {
+                // can only happen with very small images, fall back to the nearest pixel
+                int nearest = Math.max(0, Math.min(taps - 1, (int)center - start));
+                values[nearest] = 1.0;
+                total = 1.0;
+            }
+
+            // distribute the rounding error onto the largest weight so each set sums to exactly one
+            int sum = 0;
+            int largest = 0;
+            for (int t = 0; t < taps; ++t)
+            {
+                int weight = (int)Math.round(values[t] / total * (1 << s_WeightBits));
+                weights[i * taps + t] = weight;
+                sum += weight;
+                if (weight > weights[i * taps + largest])
+                {
+                    largest = t;
+                }
+            }
+            weights[i * taps + largest] += (1 << s_WeightBits) - sum;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package tv.twitch.broadcast;
+
+/**
+ * Something which receives the frames submitted to the broadcast in addition to the SDK, such as a local recorder or another StreamAPI.
+ * Sinks are added to the FrameSinkFanOut of the BroadcastController.  Every sink sees the same FrameBuffer the SDK encodes, without copies,
+ * so sinks must only read it.
+ *
+ * Sinks may read the frame on their own threads at the same time as each other and the SDK, all through the one FrameBufferView of the
+ * buffer.  Sinks must only use absolute reads on the view, or make relative reads on a duplicate() of it, since moving the position of the
+ * shared view would change what the others read.
+ */
+public interface FrameSink
+{
+    /**
+     * Called for each frame after it has been submitted to the SDK.  This runs on the thread frames are submitted on so it should return
+     * quickly.
+     * @param buffer The frame.  It must not be modified, and its view must not have its position or limit changed.
+     * @param broadcastTime The broadcast time of the frame in milliseconds.
+     * @param fanOut The fan-out to release the frame to.
+     * @return Whether or not the sink holds on to the frame.  If so it must call fanOut.release() exactly once when it is done with the
+     * frame, from any thread.  If not, or if this throws, the frame is released straight away.
+     */
+    boolean consumeFrame(FrameBuffer buffer, long broadcastTime, FrameSinkFanOut fanOut);
+
+    /**
+     * Called when the broadcast stops, before the buffers are freed.  Every frame the sink still holds must be released before this returns.
+     */
+    void releaseAll();
+}
@@ -0,0 +1,335 @@
+package tv.twitch.broadcast;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import tv.twitch.Core;
+import tv.twitch.SimulatedCoreAPI;
+
+/**
+ * Checks that FrameSinkFanOut only returns a buffer to the pool once the SDK and every sink have released it, without a graphics context
+ * or the native libraries.  A BroadcastController broadcasts frames from a SyntheticFrameSource to a SimulatedStreamAPI with four sinks
+ * added: two which hold each frame and release it from another thread after a random delay, one which throws from consumeFrame() every few
+ * frames, and one which only reads the frame.
+ *
+ * Every buffer the controller captures into is checked before the frame is drawn.  It must not still be held by a sink or by the simulated
+ * SDK, otherwise it came back to the pool too early.  Once the broadcast has drained every buffer must be back in the pool, otherwise a
+ * reference was never released.  This is run with synchronous and with asynchronous submission.
+ *
+ * Usage: FrameSinkCheck [frames] [seed]
+ *
+ * The exit status is 0 if no buffer came back early or leaked and 1 otherwise.
+ */
+public class FrameSinkCheck implements FrameSource
+{
+    /**
+     * Holds each frame and releases it from a scheduler thread after a random delay.
+     */
+    protected static class HoldingSink implements FrameSink
+    {
+        protected final ScheduledExecutorService m_Scheduler;
+        protected final Random m_Random;
+        protected final int m_MaxHoldMillis;
+        protected final ConcurrentHashMap<Long, FrameBuffer> m_Held = new ConcurrentHashMap<Long, FrameBuffer>();
+        protected final AtomicLong m_NumHeld = new AtomicLong(0);
+        protected volatile long m_NumReheld = 0;     //!< Frames dispatched while this sink still held the same buffer.
+        protected volatile FrameSinkFanOut m_FanOut = null;
+
+        public HoldingSink(ScheduledExecutorService scheduler, long seed, int maxHoldMillis)
+        {
+            m_Scheduler = scheduler;
+            m_Random = new Random(seed);
+            m_MaxHoldMillis = maxHoldMillis;
+        }
+
+        public boolean getIsHolding(long address)
+        {
+            return m_Held.containsKey(address);
+        }
+
+        public boolean consumeFrame(final FrameBuffer buffer, long broadcastTime, final FrameSinkFanOut fanOut)
+        {
+            final long address = buffer.getAddress();
+            if (m_Held.putIfAbsent(address, buffer) != null)
+            {
+                m_NumReheld++;
+                return false;
+            }
+
+            m_NumHeld.incrementAndGet();
+            m_FanOut = fanOut;
+
+            int delay;
+            synchronized (m_Random)
+            {
+                delay = m_Random.nextInt(m_MaxHoldMillis + 1);
+            }
+
+            m_Scheduler.schedule(new Runnable()
+            {
+                public void run()
+                {
+                    // releaseAll() may have got there first
+                    if (m_Held.remove(address) != null)
+                    {
+                        fanOut.release(buffer);
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+
+            return true;
+        }
+
+        public void releaseAll()
+        {
+            for (Long address : m_Held.keySet())
+            {
+                FrameBuffer buffer = m_Held.remove(address);
+                if (buffer != null)
+                {
+                    m_FanOut.release(buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Throws from consumeFrame() every few frames and otherwise doesn't take the frame.
+     */
+    protected static class ThrowingSink implements FrameSink
+    {
+        protected final int m_Interval;
+        protected long m_NumFrames = 0;
+
+        public ThrowingSink(int interval)
+        {
+            m_Interval = interval;
+        }
+
+        public boolean consumeFrame(FrameBuffer buffer, long broadcastTime, FrameSinkFanOut fanOut)
+        {
+            if (++m_NumFrames % m_Interval == 0)
+            {
+                throw new IllegalStateException(String.format("sink failure on frame %d", m_NumFrames));
+            }
+
+            return false;
+        }
+
+        public void releaseAll()
+        {
+        }
+    }
+
+    /**
+     * Reads the frame with absolute reads and doesn't take it.
+     */
+    protected static class ReadingSink implements FrameSink
+    {
+        protected long m_Checksum = 0;
+
+        public boolean consumeFrame(FrameBuffer buffer, long broadcastTime, FrameSinkFanOut fanOut)
+        {
+            FrameBufferView view = FrameBufferView.get(buffer);
+            if (view != null)
+            {
+                m_Checksum += view.getInts().get(0) + view.getInts().get(view.getInts().capacity() - 1);
+            }
+
+            return false;
+        }
+
+        public void releaseAll()
+        {
+        }
+    }
+
+    private static final long s_SetupTimeoutMillis = 5000;
+    private static final long s_DrainTimeoutMillis = 5000;
+    private static final long s_FrameNanos = 33333333;
+
+    protected final FrameSource m_Source;
+    protected final SimulatedStreamAPI m_Api;
+    protected final HoldingSink[] m_Holders;
+    protected long m_NumCaptures = 0;
+    protected long m_NumHeldBySink = 0;
+    protected long m_NumHeldBySdk = 0;
+
+    /**
+     * @param source The source which draws the frames.
+     * @param api The simulated SDK the frames are submitted to.
+     * @param holders The sinks which hold frames.
+     */
+    public FrameSinkCheck(FrameSource source, SimulatedStreamAPI api, HoldingSink[] holders)
+    {
+        m_Source = source;
+        m_Api = api;
+        m_Holders = holders;
+    }
+
+    public static void main(String[] args)
+    {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+
+        boolean passed = true;
+        for (boolean async : new boolean[] { false, true })
+        {
+            passed &= run(async, frames, seed);
+        }
+
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * Broadcasts the given number of frames through the sinks and reports the result.
+     * @return Whether or not every buffer was released at the right time.
+     */
+    protected static boolean run(boolean async, int frames, long seed)
+    {
+        SimulatedStreamAPI api = new SimulatedStreamAPI(seed);
+        api.setRoundTripMillis(5);
+        api.setEncodeMillis(20);
+
+        BroadcastController controller = new BroadcastController(new Core(new SimulatedCoreAPI()), new Stream(api));
+        controller.setClientId("check");
+        controller.setClientSecret("check");
+        controller.setAsyncSubmission(async);
+        if (!controller.initialize() || !controller.requestAuthToken("check", "check") || !pump(controller, true))
+        {
+            System.out.println("Unable to log in to the simulated stream");
+            return false;
+        }
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        HoldingSink[] holders = { new HoldingSink(scheduler, seed, 100), new HoldingSink(scheduler, seed + 1, 10) };
+        ThrowingSink thrower = new ThrowingSink(7);
+
+        // the throwing sink comes before the others so a sink after it must still get every frame
+        FrameSinkFanOut fanOut = controller.getFrameSinks();
+        fanOut.addSink(holders[0]);
+        fanOut.addSink(thrower);
+        fanOut.addSink(holders[1]);
+        fanOut.addSink(new ReadingSink());
+
+        FrameSinkCheck check = new FrameSinkCheck(new SyntheticFrameSource(), api, holders);
+        controller.setFrameSource(check);
+
+        VideoParams videoParams = controller.getRecommendedVideoParams(320, 192, 30);
+        videoParams.outputWidth = 320;
+        videoParams.outputHeight = 192;
+        if (!controller.startBroadcasting(videoParams) || !pump(controller, false) || !controller.getIsBroadcasting())
+        {
+            System.out.println("Unable to start the simulated broadcast");
+            scheduler.shutdownNow();
+            return false;
+        }
+
+        long thrown = 0;
+        long next = System.nanoTime();
+        for (int i = 0; i < frames && controller.getIsBroadcasting(); ++i)
+        {
+            controller.update();
+
+            // without the submission worker a sink's exception comes out of the capture
+            try
+            {
+                controller.captureFrame();
+            }
+            catch (IllegalStateException x)
+            {
+                thrown++;
+            }
+
+            next += s_FrameNanos;
+            while (System.nanoTime() < next)
+            {
+                Thread.yield();
+            }
+        }
+
+        // wait for the sinks and the SDK to let go of everything
+        FrameBufferPool pool = controller.getBufferPool();
+        long end = System.currentTimeMillis() + s_DrainTimeoutMillis;
+        while (pool.getOutstandingCount() > 0 && System.currentTimeMillis() < end)
+        {
+            controller.update();
+            Thread.yield();
+        }
+        int leaked = pool.getOutstandingCount();
+
+        long reheld = holders[0].m_NumReheld + holders[1].m_NumReheld;
+        long held = holders[0].m_NumHeld.get() + holders[1].m_NumHeld.get();
+        long failed = fanOut.getFailedCount();
+
+        controller.stopBroadcasting();
+        pump(controller, false);
+        controller.shutdown();
+        scheduler.shutdownNow();
+
+        boolean passed = check.m_NumHeldBySink == 0 && check.m_NumHeldBySdk == 0 && reheld == 0 && leaked == 0 && held > 0 && failed > 0;
+
+        System.out.println(String.format("%s submission: %d captures, %d frames held by sinks, %d sink failures (%d thrown to the caller), reused while held by a sink %d, by the SDK %d, dispatched while held %d, leaked %d: %s",
+                                         async ? "asynchronous" : "synchronous", check.m_NumCaptures, held, failed, thrown,
+                                         check.m_NumHeldBySink, check.m_NumHeldBySdk, reheld, leaked, passed ? "passed" : "FAILED"));
+
+        return passed;
+    }
+
+    public boolean start(VideoParams videoParams)
+    {
+        return m_Source.start(videoParams);
+    }
+
+    public boolean captureFrame(FrameBuffer buffer)
+    {
+        m_NumCaptures++;
+
+        // the pool only hands out a buffer once everyone is done with it
+        long address = buffer.getAddress();
+        for (int i = 0; i < m_Holders.length; ++i)
+        {
+            if (m_Holders[i].getIsHolding(address))
+            {
+                m_NumHeldBySink++;
+                break;
+            }
+        }
+        if (m_Api.getIsHeld(address))
+        {
+            m_NumHeldBySdk++;
+        }
+
+        return m_Source.captureFrame(buffer);
+    }
+
+    public void stop()
+    {
+        m_Source.stop();
+    }
+
+    /**
+     * Updates the controller until it is ready to broadcast, if waiting for that, or until it is broadcasting or stopped.
+     */
+    private static boolean pump(BroadcastController controller, boolean waitForReady)
+    {
+        long end = System.currentTimeMillis() + s_SetupTimeoutMillis;
+        while (System.currentTimeMillis() < end)
+        {
+            controller.update();
+
+            if (waitForReady ? controller.getIsReadyToBroadcast() : controller.getIsBroadcasting() || controller.getIsReadyToBroadcast())
+            {
+                return true;
+            }
+
+            Thread.yield();
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,172 @@
+package tv.twitch.broadcast;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands each submitted frame to every FrameSink as well as the SDK.  Rather than copying the frame for each sink the pool slot of the buffer
+ * counts the references to it, one for the SDK and one for each sink, and the buffer goes back to the pool when the last one is released.
+ *
+ * Sinks can be added and removed from any thread.  Frames are dispatched to the sinks which were added when the frame was submitted.
+ */
+public class FrameSinkFanOut
+{
+    protected volatile FrameSink[] m_Sinks = new FrameSink[0];
+    protected volatile FrameBufferPool m_Pool = null;
+    protected final AtomicLong m_NumDispatched = new AtomicLong(0);
+    protected final AtomicLong m_NumDeclined = new AtomicLong(0);
+    protected final AtomicLong m_NumFailed = new AtomicLong(0);
+
+    public synchronized void addSink(FrameSink sink)
+    {
+        for (FrameSink existing : m_Sinks)
+        {
+            if (existing == sink)
+            {
+                return;
+            }
+        }
+
+        FrameSink[] sinks = new FrameSink[m_Sinks.length + 1];
+        System.arraycopy(m_Sinks, 0, sinks, 0, m_Sinks.length);
+        sinks[m_Sinks.length] = sink;
+        m_Sinks = sinks;
+    }
+
+    /**
+     * Removes a sink.  Frames it holds must still be released.
+     */
+    public synchronized void removeSink(FrameSink sink)
+    {
+        for (int i = 0; i < m_Sinks.length; ++i)
+        {
+            if (m_Sinks[i] == sink)
+            {
+                FrameSink[] sinks = new FrameSink[m_Sinks.length - 1];
+                System.arraycopy(m_Sinks, 0, sinks, 0, i);
+                System.arraycopy(m_Sinks, i + 1, sinks, i, m_Sinks.length - i - 1);
+                m_Sinks = sinks;
+                return;
+            }
+        }
+    }
+
+    public int getSinkCount()
+    {
+        return m_Sinks.length;
+    }
+
+    /**
+     * The number of times a frame was handed to a sink which held on to it.
+     */
+    public long getDispatchedCount()
+    {
+        return m_NumDispatched.get();
+    }
+
+    /**
+     * The number of times a sink didn't take a frame.
+     */
+    public long getDeclinedCount()
+    {
+        return m_NumDeclined.get();
+    }
+
+    /**
+     * The number of times a sink threw from consumeFrame().
+     */
+    public long getFailedCount()
+    {
+        return m_NumFailed.get();
+    }
+
+    /**
+     * The pool the buffers are released to.  Set by the BroadcastController whenever its pool changes.
+     */
+    public void setPool(FrameBufferPool pool)
+    {
+        m_Pool = pool;
+    }
+
+    /**
+     * Takes the references for the SDK and every current sink before the frame is submitted.
+     * @return The sinks to dispatch the frame to after it is submitted.
+     */
+    public FrameSink[] retain(FrameBufferPool.Slot slot)
+    {
+        FrameSink[] sinks = m_Sinks;
+        slot.setReferences(1 + sinks.length);
+        return sinks;
+    }
+
+    /**
+     * Hands the frame to the sinks returned by retain().  Sinks which don't take the frame, or throw, have their reference released.  A
+     * sink which throws doesn't stop the others getting the frame, and the first exception is rethrown once every sink has had it.
+     */
+    public void dispatch(FrameSink[] sinks, FrameBuffer buffer, long broadcastTime)
+    {
+        Throwable failure = null;
+
+        for (int i = 0; i < sinks.length; ++i)
+        {
+            boolean held = false;
+            try
+            {
+                held = sinks[i].consumeFrame(buffer, broadcastTime, this);
+            }
+            catch (Throwable x)
+            {
+                m_NumFailed.incrementAndGet();
+                if (failure == null)
+                {
+                    failure = x;
+                }
+            }
+
+            if (held)
+            {
+                m_NumDispatched.incrementAndGet();
+            }
+            else
+            {
+                m_NumDeclined.incrementAndGet();
+                release(buffer);
+            }
+        }
+
+        // consumeFrame() has no checked exceptions so anything it throws is unchecked
+        if (failure instanceof RuntimeException)
+        {
+            throw (RuntimeException)failure;
+        }
+        else if (failure instanceof Error)
+        {
+            throw (Error)failure;
+        }
+    }
+
+    /**
+     * Releases one reference to a frame.  The buffer goes back to the pool once every reference is released.  This can be called from any
+     * thread.
+     */
+    public void release(FrameBuffer buffer)
+    {
+        FrameBufferPool pool = m_Pool;
+        FrameBufferPool.Slot slot = pool != null ? pool.lookupSlot(buffer.getAddress()) : null;
+        if (slot != null && slot.releaseReference())
+        {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Asks every sink to release the frames it holds.  This is called before the pool is freed.
+     */
+    public void releaseAll()
+    {
+        FrameSink[] sinks = m_Sinks;
+        for (int i = 0; i < sinks.length; ++i)
+        {
+            sinks[i].releaseAll();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package tv.twitch.broadcast;
+
+/**
+ * A source of video frames for the BroadcastController.  When the controller is asked to capture a frame it takes a free buffer from its
+ * pool and asks the source to fill it.  The default source is ReadPixelsFrameSource which synchronously reads the back buffer of the current
+ * OpenGL context.  Sources which capture asynchronously may not have a frame ready every time they are asked, in which case the buffer
+ * goes back to the pool and nothing is submitted.
+ *
+ * All the methods are called on the thread which calls BroadcastController.captureFrame(), which is normally the thread that owns the
+ * graphics context.
+ */
+public interface FrameSource
+{
+    /**
+     * Called when broadcasting begins.
+     * @param videoParams The parameters of the broadcast.  Buffers passed to captureFrame() will be sized for the output width and height
+     * and should be filled with pixels in the given pixel format.
+     * @return Whether or not the source is ready to capture.
+     */
+    boolean start(VideoParams videoParams);
+
+    /**
+     * Fills the buffer with the next frame.
+     * @param buffer The buffer to fill.
+     * @return Whether or not a frame was written to the buffer.
+     */
+    boolean captureFrame(FrameBuffer buffer);
+
+    /**
+     * Called when broadcasting ends.  Any resources created in start() should be released.
+     */
+    void stop();
+}
@@ -0,0 +1,152 @@
+package tv.twitch.broadcast;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A thread which takes captured frames off the game thread and processes them.  The game thread hands frames over with submit() which
+ * never blocks and never allocates.  The worker sleeps while there is nothing to do and is woken when a frame is handed over.
+ */
+public class FrameSubmitWorker implements Runnable
+{
+    /**
+     * Does the work for each frame on the worker thread.
+     */
+    public interface Handler
+    {
+        /**
+         * Called on the worker thread for each frame handed over.
+         */
+        void processFrame(FrameBuffer buffer);
+
+        /**
+         * Called for each frame still queued when the worker is stopped.  The buffer should be returned to its pool.
+         */
+        void discardFrame(FrameBuffer buffer);
+    }
+
+    protected final Handler m_Handler;
+    protected final ConcurrentRing<FrameBuffer> m_Queue;
+    protected Thread m_Thread = null;
+    protected volatile boolean m_Running = false;
+
+    /**
+     * @param handler The handler to process frames.
+     * @param capacity The maximum number of frames which can be waiting for the worker.
+     */
+    public FrameSubmitWorker(Handler handler, int capacity)
+    {
+        m_Handler = handler;
+        m_Queue = new ConcurrentRing<FrameBuffer>(capacity);
+    }
+
+    public boolean getIsRunning()
+    {
+        return m_Running;
+    }
+
+    /**
+     * The number of frames waiting to be processed.
+     */
+    public int getQueuedCount()
+    {
+        return m_Queue.size();
+    }
+
+    /**
+     * Starts the worker thread.
+     */
+    public void start()
+    {
+        if (m_Running)
+        {
+            return;
+        }
+
+        m_Running = true;
+        m_Thread = new Thread(this, "Twitch frame submission");
+        m_Thread.setDaemon(true);
+        m_Thread.start();
+    }
+
+    /**
+     * Stops the worker thread and waits for it to exit.  Frames which were not yet processed are passed to the handler to be discarded.
+     */
+    public void stop()
+    {
+        if (!m_Running)
+        {
+            return;
+        }
+
+        m_Running = false;
+        LockSupport.unpark(m_Thread);
+
+        boolean interrupted = false;
+        for (;;)
+        {
+            try
+            {
+                m_Thread.join();
+                break;
+            }
+            catch (InterruptedException x)
+            {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        m_Thread = null;
+
+        FrameBuffer buffer;
+        while ((buffer = m_Queue.poll()) != null)
+        {
+            m_Handler.discardFrame(buffer);
+        }
+    }
+
+    /**
+     * Hands a frame to the worker.  This never blocks.
+     * @return Whether or not there was room for the frame.  If not the caller still owns the buffer.
+     */
+    public boolean submit(FrameBuffer buffer)
+    {
+        if (!m_Running || !m_Queue.offer(buffer))
+        {
+            return false;
+        }
+
+        LockSupport.unpark(m_Thread);
+
+        return true;
+    }
+
+    /**
+     * Takes back the oldest frame the worker hasn't started on, so the buffer can be reused for a newer frame.  This never blocks.
+     * @return The frame or null if none are waiting.  The caller owns the buffer.
+     */
+    public FrameBuffer reclaim()
+    {
+        return m_Queue.poll();
+    }
+
+    public void run()
+    {
+        while (m_Running)
+        {
+            FrameBuffer buffer = m_Queue.poll();
+            if (buffer == null)
+            {
+                // woken by submit() or stop(), the timeout is only a safety net
+                LockSupport.parkNanos(this, 10000000L);
+                continue;
+            }
+
+            m_Handler.processFrame(buffer);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package tv.twitch.broadcast;
+
+/**
+ * A layer showing a fixed image, such as a logo or a "be right back" card.  The image is drawn at its own size and only converted again
+ * when it is replaced.
+ */
+public class ImageLayer extends CompositorLayer
+{
+    protected int[] m_Image = null;
+    protected int m_ImageWidth = 0;
+    protected int m_ImageHeight = 0;
+
+    /**
+     * @param x The left edge of the layer in the frame.
+     * @param y The top edge of the layer in the frame.
+     * @param argb The image as non-premultiplied 0xAARRGGBB pixels, row by row.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     */
+    public ImageLayer(int x, int y, int[] argb, int width, int height)
+    {
+        super(x, y, width, height);
+        setImage(argb, width, height);
+    }
+
+    /**
+     * Replaces the image.  The layer is resized to match.  The array is copied so the caller may reuse it.
+     */
+    public synchronized void setImage(int[] argb, int width, int height)
+    {
+        if (argb.length < width * height)
+        {
+            throw new IllegalArgumentException("Image too small");
+        }
+
+        m_Image = new int[width * height];
+        System.arraycopy(argb, 0, m_Image, 0, m_Image.length);
+        m_ImageWidth = width;
+        m_ImageHeight = height;
+
+        setSize(width, height);
+    }
+
+    @Override
+    protected void rasterize(int[] argb, int width, int height)
+    {
+        int rows = Math.min(height, m_ImageHeight);
+        int columns = Math.min(width, m_ImageWidth);
+
+        for (int y = 0; y < rows; ++y)
+        {
+            System.arraycopy(m_Image, y * m_ImageWidth, argb, y * width, columns);
+        }
+    }
+}
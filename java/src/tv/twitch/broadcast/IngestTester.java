@@ -1,5 +1,6 @@
 ﻿package tv.twitch.broadcast;
 
+import java.io.Closeable;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -10,8 +11,12 @@ import tv.twitch.ErrorCode;
  * Performs ingest bandwidth testing to determine the best server a user should connect to for broadcasting.  This will fill in the BitrateKbps 
  * field of the given IngestServers.  Testing may take a while because there are several servers to test and each one may be tested for several
  * seconds.  You may want to display a progress bar each for the current server and overall progress.
+ * 
+ * The tester frees its buffers and restores the stream callbacks when it finishes.  Call close() to release them if the tester is abandoned
+ * before then.  Nothing frees them if it is simply dropped: the stream holds the tester as its callbacks until then, and the buffers must
+ * be freed on the game thread before the SDK shuts down.
  */
-public class IngestTester implements IStreamCallbacks, IStatCallbacks
+public class IngestTester implements IStreamCallbacks, IStatCallbacks, Closeable
 {
 	public enum TestState
 	{
@@ -227,7 +232,10 @@ public class IngestTester implements IStreamCallbacks, IStatCallbacks
         m_IngestList = ingestList;
     }
     
-    protected void finalize() throws Throwable
+    /**
+     * Stops the server test in progress, frees the buffers and restores the stream callbacks.  This may be called more than once.
+     */
+    public void close()
     {
         if (m_CurrentServer != null)
         {
@@ -235,8 +243,6 @@ public class IngestTester implements IStreamCallbacks, IStatCallbacks
         }
         
         cleanup();
-    	
-        super.finalize();
     }
     
     /**
@@ -294,6 +300,7 @@ public class IngestTester implements IStreamCallbacks, IStatCallbacks
             }
 
             m_IngestBuffers.add(buffer);
+            FrameBufferLeakDetector.track(buffer);
 
             m_Stream.randomizeFrameBuffer(buffer);
         }
@@ -574,6 +581,7 @@ public class IngestTester implements IStreamCallbacks, IStatCallbacks
         {
 	        for (int i = 0; i < m_IngestBuffers.size(); ++i)
 	        {
+	        	FrameBufferLeakDetector.untrack(m_IngestBuffers.get(i));
 	        	m_IngestBuffers.get(i).free();
 	        }
 	        
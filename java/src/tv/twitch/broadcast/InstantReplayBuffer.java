@@ -0,0 +1,738 @@
+package tv.twitch.broadcast;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Keeps the last stretch of the broadcast in memory, compressed, so it can be saved after the fact.  Raw 1080p frames are about 8MB each
+ * so 30 seconds at 30 fps would take 7GB.  Most of a game frame is either unchanged from the previous frame or made of flat areas, which
+ * compress well with simple lossless deltas.
+ *
+ * Frames are copied into one of a few staging buffers on the submitting thread and compressed on a background thread.  Every keyframe
+ * interval a keyframe is stored, where each pixel is XORed with the pixel to its left.  The frames in between store each pixel XORed with
+ * the same pixel of the previous frame.  Either way unchanged or flat areas become runs of zeros which are run-length encoded.  If the
+ * compressor falls behind and no staging buffer is free the new frame is dropped, which only shortens the replay.
+ *
+ * The compressed frames go into a circular log in direct memory of a fixed size.  When the log is full or a frame is older than the
+ * replay duration, the oldest keyframe and the frames which depend on it are evicted together.  Frames needed by an export in progress
+ * are never evicted, the new frame is dropped instead.
+ */
+public class InstantReplayBuffer
+{
+    /**
+     * Receives the frames reconstructed by export().
+     */
+    public interface FrameConsumer
+    {
+        /**
+         * Called for each frame in order.  The memory is reused for the next frame.
+         * @param frame The pixels of the frame in native byte order.
+         * @param broadcastTime The broadcast time of the frame in milliseconds.
+         */
+        void consumeFrame(ByteBuffer frame, long broadcastTime);
+    }
+
+    /**
+     * A raw frame waiting for the compressor.
+     */
+    protected static final class Staging
+    {
+        final ByteBuffer m_Bytes;
+        final IntBuffer m_Ints;
+        long m_Time;
+
+        Staging(int size)
+        {
+            m_Bytes = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+            m_Ints = m_Bytes.asIntBuffer();
+        }
+    }
+
+    private static final int s_RecordHeaderSize = 16;      //!< The payload length, flags and broadcast time before each record.
+    private static final int s_KeyframeFlag = 1;
+    private static final int s_ZeroRunFlag = 0x80000000;
+    private static final int s_NumStaging = 3;
+
+    protected final int m_Width;
+    protected final int m_Height;
+    protected final PixelFormat m_PixelFormat;
+    protected final int m_TargetFps;
+    protected final int m_FrameSize;
+    protected final int m_NumPixels;
+    protected final long m_DurationMillis;
+    protected final int m_KeyframeInterval;
+
+    protected final ByteBuffer m_Log;                      //!< The compressed records.
+    protected final IntBuffer m_LogInts;
+    protected final IntBuffer m_Scratch;                   //!< Where a frame is compressed before it is known to fit in the log.
+    protected final ConcurrentRing<Staging> m_FreeStaging;
+    protected final ConcurrentRing<Staging> m_PendingStaging;
+    protected Staging m_Reference = null;                  //!< The last frame compressed, which the next delta is against.  Only touched by the compressor.
+    protected boolean m_ReferenceStored = false;
+    protected int m_FramesSinceKeyframe = 0;
+
+    // The index of the records in the log, a circular array by sequence number.  Guarded by this.
+    protected final int m_IndexCapacity;
+    protected final int[] m_RecordOffsets;
+    protected final int[] m_RecordLengths;
+    protected final long[] m_RecordTimes;
+    protected final boolean[] m_RecordIsKeyframe;
+    protected long m_OldestSequence = 0;
+    protected long m_NextSequence = 0;
+    protected int m_WriteOffset = 0;
+    protected long m_PinnedSequence = Long.MAX_VALUE;      //!< Records from here on are being exported and can't be evicted.
+
+    protected volatile boolean m_Running = false;
+    protected Thread m_Thread = null;
+    protected volatile long m_NumFrames = 0;
+    protected volatile long m_NumKeyframes = 0;
+    protected final AtomicLong m_NumDropped = new AtomicLong(0);  //!< Counted by both the game thread and the compressor.
+    protected volatile long m_NumEvicted = 0;
+    protected volatile long m_CompressedBytes = 0;
+
+    /**
+     * @param videoParams The parameters of the broadcast.
+     * @param durationMillis How much of the broadcast to keep.
+     * @param maxMemory The size in bytes of the compressed log.  The staging buffers take about five raw frames on top of this.
+     * @param keyframeInterval The number of frames between keyframes.  Shorter intervals compress worse but evict in smaller steps.
+     */
+    public InstantReplayBuffer(VideoParams videoParams, long durationMillis, int maxMemory, int keyframeInterval)
+    {
+        m_Width = videoParams.outputWidth;
+        m_Height = videoParams.outputHeight;
+        m_PixelFormat = videoParams.pixelFormat;
+        m_TargetFps = Math.max(1, videoParams.targetFps);
+        m_NumPixels = m_Width * m_Height;
+        m_FrameSize = m_NumPixels * 4;
+        m_DurationMillis = durationMillis;
+        m_KeyframeInterval = Math.max(1, keyframeInterval);
+
+        m_Log = ByteBuffer.allocateDirect(maxMemory & ~3).order(ByteOrder.nativeOrder());
+        m_LogInts = m_Log.asIntBuffer();
+        m_Scratch = ByteBuffer.allocateDirect(m_FrameSize + 64).order(ByteOrder.nativeOrder()).asIntBuffer();
+
+        m_FreeStaging = new ConcurrentRing<Staging>(s_NumStaging + 1);
+        m_PendingStaging = new ConcurrentRing<Staging>(s_NumStaging + 1);
+        for (int i = 0; i < s_NumStaging; ++i)
+        {
+            m_FreeStaging.offer(new Staging(m_FrameSize));
+        }
+        m_Reference = new Staging(m_FrameSize);
+
+        // a little more than the duration since eviction happens a keyframe interval at a time
+        m_IndexCapacity = (int)Math.min(1 << 20, durationMillis * m_TargetFps / 1000 + m_KeyframeInterval * 2 + 16);
+        m_RecordOffsets = new int[m_IndexCapacity];
+        m_RecordLengths = new int[m_IndexCapacity];
+        m_RecordTimes = new long[m_IndexCapacity];
+        m_RecordIsKeyframe = new boolean[m_IndexCapacity];
+    }
+
+    /**
+     * Whether or not frames of a broadcast with the given parameters can be added.
+     */
+    public boolean getIsCompatible(VideoParams videoParams)
+    {
+        return videoParams.outputWidth == m_Width && videoParams.outputHeight == m_Height && videoParams.pixelFormat == m_PixelFormat;
+    }
+
+    /**
+     * The number of frames compressed into the log.
+     */
+    public long getFrameCount()
+    {
+        return m_NumFrames;
+    }
+
+    /**
+     * The number of keyframes compressed into the log.
+     */
+    public long getKeyframeCount()
+    {
+        return m_NumKeyframes;
+    }
+
+    /**
+     * The number of frames which were dropped because the compressor was behind or the log had no room.
+     */
+    public long getDroppedCount()
+    {
+        return m_NumDropped.get();
+    }
+
+    /**
+     * The number of frames evicted from the log.
+     */
+    public long getEvictedCount()
+    {
+        return m_NumEvicted;
+    }
+
+    /**
+     * The average compressed size of a frame as a fraction of the raw size.
+     */
+    public double getCompressionRatio()
+    {
+        long frames = m_NumFrames;
+        return frames > 0 ? (double)m_CompressedBytes / ((double)frames * m_FrameSize) : 0;
+    }
+
+    /**
+     * The number of bytes of direct memory used, including the staging buffers.
+     */
+    public long getMemoryUsage()
+    {
+        return m_Log.capacity() + (long)(s_NumStaging + 2) * m_FrameSize;
+    }
+
+    /**
+     * The number of frames currently held.
+     */
+    public synchronized int getHeldFrameCount()
+    {
+        return (int)(m_NextSequence - m_OldestSequence);
+    }
+
+    /**
+     * The broadcast time of the oldest frame held, or -1 if there are none.
+     */
+    public synchronized long getOldestTime()
+    {
+        return m_NextSequence > m_OldestSequence ? m_RecordTimes[indexOf(m_OldestSequence)] : -1;
+    }
+
+    /**
+     * The broadcast time of the newest frame held, or -1 if there are none.
+     */
+    public synchronized long getNewestTime()
+    {
+        return m_NextSequence > m_OldestSequence ? m_RecordTimes[indexOf(m_NextSequence - 1)] : -1;
+    }
+
+    /**
+     * Starts the compressor thread.
+     */
+    public void start()
+    {
+        if (m_Running)
+        {
+            return;
+        }
+
+        m_Running = true;
+        m_Thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                while (m_Running)
+                {
+                    Staging staging = m_PendingStaging.poll();
+                    if (staging == null)
+                    {
+                        LockSupport.park(this);
+                        continue;
+                    }
+
+                    compress(staging);
+                }
+            }
+        }, "Twitch replay compressor");
+        m_Thread.setDaemon(true);
+        m_Thread.start();
+    }
+
+    /**
+     * Stops the compressor thread and waits for it to exit.  Frames not yet compressed are discarded.  Frames already held can still be
+     * exported.
+     */
+    public void stop()
+    {
+        if (!m_Running)
+        {
+            return;
+        }
+
+        m_Running = false;
+        LockSupport.unpark(m_Thread);
+
+        boolean interrupted = false;
+        for (;;)
+        {
+            try
+            {
+                m_Thread.join();
+                break;
+            }
+            catch (InterruptedException x)
+            {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        m_Thread = null;
+
+        Staging staging;
+        while ((staging = m_PendingStaging.poll()) != null)
+        {
+            m_FreeStaging.offer(staging);
+        }
+    }
+
+    /**
+     * Copies a frame to be compressed.  This never blocks.
+     * @return Whether or not the frame was taken.  It is dropped if the compressor is behind.
+     */
+    public boolean offer(FrameBuffer buffer, long broadcastTime)
+    {
+        ByteBuffer source = FrameBufferView.getBytes(buffer);
+        if (!m_Running || source == null || source.capacity() < m_FrameSize)
+        {
+            return false;
+        }
+
+        Staging staging = m_FreeStaging.poll();
+        if (staging == null)
+        {
+            m_NumDropped.incrementAndGet();
+            return false;
+        }
+
+        // a duplicate so the position of the shared view stays untouched
+        ByteBuffer frame = source.duplicate();
+        frame.clear().limit(m_FrameSize);
+        staging.m_Bytes.clear();
+        staging.m_Bytes.put(frame);
+        staging.m_Time = broadcastTime;
+
+        m_PendingStaging.offer(staging);
+        LockSupport.unpark(m_Thread);
+
+        return true;
+    }
+
+    /**
+     * Reconstructs the frames held between two broadcast times and passes them to the consumer in order.  The compressor keeps running
+     * while frames are exported.  This must not be called from more than one thread at a time.
+     * @param startTime The broadcast time in milliseconds of the first frame wanted.  Decoding starts at the keyframe before it.
+     * @param endTime The broadcast time in milliseconds of the last frame wanted.
+     * @return The number of frames passed to the consumer.
+     */
+    public int export(long startTime, long endTime, FrameConsumer consumer)
+    {
+        long first;
+        long last;
+        synchronized (this)
+        {
+            if (m_NextSequence == m_OldestSequence)
+            {
+                return 0;
+            }
+
+            // find the last keyframe at or before the start
+            first = m_OldestSequence;
+            for (long seq = m_OldestSequence; seq < m_NextSequence && m_RecordTimes[indexOf(seq)] <= startTime; ++seq)
+            {
+                if (m_RecordIsKeyframe[indexOf(seq)])
+                {
+                    first = seq;
+                }
+            }
+
+            last = m_NextSequence - 1;
+            m_PinnedSequence = first;
+        }
+
+        ByteBuffer frame = ByteBuffer.allocateDirect(m_FrameSize).order(ByteOrder.nativeOrder());
+        IntBuffer pixels = frame.asIntBuffer();
+        IntBuffer log = m_LogInts.duplicate();
+        int count = 0;
+
+        try
+        {
+            for (long seq = first; seq <= last; ++seq)
+            {
+                int index = indexOf(seq);
+                long time = m_RecordTimes[index];
+                if (time > endTime)
+                {
+                    break;
+                }
+
+                int start = (m_RecordOffsets[index] + s_RecordHeaderSize) >> 2;
+                int length = m_RecordLengths[index] >> 2;
+                decode(log, start, length, pixels, m_RecordIsKeyframe[index]);
+
+                if (time >= startTime)
+                {
+                    frame.clear();
+                    consumer.consumeFrame(frame, time);
+                    count++;
+                }
+            }
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                m_PinnedSequence = Long.MAX_VALUE;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Writes the frames held from the given broadcast time onwards to a raw frame file in the FrameRecorder format.
+     * @return The number of frames written.
+     */
+    public int export(File file, long startTime) throws IOException
+    {
+        VideoParams videoParams = new VideoParams();
+        videoParams.outputWidth = m_Width;
+        videoParams.outputHeight = m_Height;
+        videoParams.pixelFormat = m_PixelFormat;
+        videoParams.targetFps = m_TargetFps;
+
+        final FrameRecorder recorder = new FrameRecorder(file, videoParams, Math.max(1, getHeldFrameCount()));
+        try
+        {
+            return export(startTime, Long.MAX_VALUE, new FrameConsumer()
+            {
+                public void consumeFrame(ByteBuffer frame, long broadcastTime)
+                {
+                    recorder.record(frame, broadcastTime);
+                }
+            });
+        }
+        finally
+        {
+            recorder.close();
+        }
+    }
+
+    /**
+     * Compresses a staged frame into the log.  This runs on the compressor thread.
+     */
+    protected void compress(Staging staging)
+    {
+        boolean keyframe = !m_ReferenceStored || m_FramesSinceKeyframe >= m_KeyframeInterval;
+
+        m_Scratch.clear();
+        int length = keyframe ? encodeKeyframe(staging.m_Ints, m_Scratch, m_NumPixels) : encodeDelta(staging.m_Ints, m_Reference.m_Ints, m_Scratch, m_NumPixels);
+
+        boolean stored = store(length, staging.m_Time, keyframe);
+        if (stored)
+        {
+            m_FramesSinceKeyframe = keyframe ? 1 : m_FramesSinceKeyframe + 1;
+            m_NumFrames++;
+            if (keyframe)
+            {
+                m_NumKeyframes++;
+            }
+            m_CompressedBytes += length * 4 + s_RecordHeaderSize;
+        }
+        else
+        {
+            m_NumDropped.incrementAndGet();
+        }
+
+        // the staged frame becomes the reference for the next delta
+        m_ReferenceStored = stored;
+        m_FreeStaging.offer(m_Reference);
+        m_Reference = staging;
+    }
+
+    /**
+     * Copies the compressed frame in the scratch buffer into the log, evicting old records to make room.
+     * @param length The length of the compressed frame in ints.
+     * @return Whether or not there was room.
+     */
+    protected synchronized boolean store(int length, long time, boolean keyframe)
+    {
+        int size = s_RecordHeaderSize + length * 4;
+        if (size > m_Log.capacity())
+        {
+            return false;
+        }
+
+        // keep the duration, evicting whole keyframe intervals which are entirely older than needed
+        while (m_NextSequence > m_OldestSequence)
+        {
+            long next = findNextKeyframe(m_OldestSequence + 1);
+            if (next >= m_NextSequence || m_RecordTimes[indexOf(next)] > time - m_DurationMillis || !evictOldest())
+            {
+                break;
+            }
+        }
+
+        int offset;
+        for (;;)
+        {
+            offset = findSpace(size);
+            if (offset >= 0 && m_NextSequence - m_OldestSequence < m_IndexCapacity)
+            {
+                break;
+            }
+
+            if (!evictOldest())
+            {
+                return false;
+            }
+        }
+
+        // a delta whose reference was just evicted can't be decoded
+        if (!keyframe && m_NextSequence == m_OldestSequence)
+        {
+            return false;
+        }
+
+        m_Log.putInt(offset, length * 4);
+        m_Log.putInt(offset + 4, keyframe ? s_KeyframeFlag : 0);
+        m_Log.putLong(offset + 8, time);
+
+        IntBuffer destination = m_LogInts.duplicate();
+        destination.position((offset + s_RecordHeaderSize) >> 2);
+        m_Scratch.position(0).limit(length);
+        destination.put(m_Scratch);
+
+        int index = indexOf(m_NextSequence);
+        m_RecordOffsets[index] = offset;
+        m_RecordLengths[index] = length * 4;
+        m_RecordTimes[index] = time;
+        m_RecordIsKeyframe[index] = keyframe;
+        m_NextSequence++;
+        m_WriteOffset = offset + size;
+
+        return true;
+    }
+
+    /**
+     * Finds where a record of the given size fits without overwriting held records.
+     * @return The offset or -1 if there is no room.
+     */
+    protected int findSpace(int size)
+    {
+        if (m_NextSequence == m_OldestSequence)
+        {
+            m_WriteOffset = 0;
+            return size <= m_Log.capacity() ? 0 : -1;
+        }
+
+        int head = m_RecordOffsets[indexOf(m_OldestSequence)];
+        if (m_WriteOffset > head)
+        {
+            // the free space is after the newest record and before the oldest one at the start
+            if (m_WriteOffset + size <= m_Log.capacity())
+            {
+                return m_WriteOffset;
+            }
+            return size <= head ? 0 : -1;
+        }
+
+        return m_WriteOffset + size <= head ? m_WriteOffset : -1;
+    }
+
+    /**
+     * Evicts the oldest keyframe and every frame which depends on it.
+     * @return Whether or not anything could be evicted.
+     */
+    protected boolean evictOldest()
+    {
+        if (m_NextSequence == m_OldestSequence || m_OldestSequence >= m_PinnedSequence)
+        {
+            return false;
+        }
+
+        long end = Math.min(findNextKeyframe(m_OldestSequence + 1), m_PinnedSequence);
+        m_NumEvicted += end - m_OldestSequence;
+        m_OldestSequence = end;
+
+        // nothing left to delta against so the next frame must be a keyframe
+        if (m_OldestSequence == m_NextSequence)
+        {
+            m_ReferenceStored = false;
+        }
+
+        return true;
+    }
+
+    protected long findNextKeyframe(long sequence)
+    {
+        while (sequence < m_NextSequence && !m_RecordIsKeyframe[indexOf(sequence)])
+        {
+            sequence++;
+        }
+        return sequence;
+    }
+
+    protected int indexOf(long sequence)
+    {
+        return (int)(sequence % m_IndexCapacity);
+    }
+
+    /**
+     * Encodes each pixel XORed with the one to its left.
+     * @return The number of ints written.
+     */
+    protected static int encodeKeyframe(IntBuffer frame, IntBuffer out, int numPixels)
+    {
+        int written = 0;
+        int previous = 0;
+        int zeros = 0;
+        int literalStart = -1;
+
+        for (int i = 0; i < numPixels; ++i)
+        {
+            int pixel = frame.get(i);
+            int value = pixel ^ previous;
+            previous = pixel;
+
+            if (value == 0)
+            {
+                zeros++;
+                continue;
+            }
+
+            written = flushZeros(out, written, zeros, literalStart);
+            if (zeros > 1 || literalStart < 0)
+            {
+                literalStart = written;
+                out.put(written++, 0);
+            }
+            else if (zeros == 1)
+            {
+                // a single zero is cheaper as part of the literal than as a run
+                out.put(written++, 0);
+                out.put(literalStart, out.get(literalStart) + 1);
+            }
+            zeros = 0;
+
+            out.put(written++, value);
+            out.put(literalStart, out.get(literalStart) + 1);
+        }
+
+        // trailing zeros always need a run so every pixel of a keyframe is written
+        if (zeros > 0)
+        {
+            out.put(written++, s_ZeroRunFlag | zeros);
+        }
+
+        return written;
+    }
+
+    /**
+     * Encodes each pixel XORed with the same pixel of the reference frame.
+     * @return The number of ints written.
+     */
+    protected static int encodeDelta(IntBuffer frame, IntBuffer reference, IntBuffer out, int numPixels)
+    {
+        int written = 0;
+        int zeros = 0;
+        int literalStart = -1;
+
+        for (int i = 0; i < numPixels; ++i)
+        {
+            int value = frame.get(i) ^ reference.get(i);
+            if (value == 0)
+            {
+                zeros++;
+                continue;
+            }
+
+            written = flushZeros(out, written, zeros, literalStart);
+            if (zeros > 1 || literalStart < 0)
+            {
+                literalStart = written;
+                out.put(written++, 0);
+            }
+            else if (zeros == 1)
+            {
+                out.put(written++, 0);
+                out.put(literalStart, out.get(literalStart) + 1);
+            }
+            zeros = 0;
+
+            out.put(written++, value);
+            out.put(literalStart, out.get(literalStart) + 1);
+        }
+
+        // trailing unchanged pixels need no run since decoding a delta leaves the pixels it doesn't reach as they are
+        return written;
+    }
+
+    /**
+     * Writes a pending run of zeros.  A single zero following a literal is left for the literal to absorb.
+     */
+    private static int flushZeros(IntBuffer out, int written, int zeros, int literalStart)
+    {
+        if (zeros > 1 || (zeros == 1 && literalStart < 0))
+        {
+            out.put(written++, s_ZeroRunFlag | zeros);
+        }
+        return written;
+    }
+
+    /**
+     * Applies a compressed record to the frame.  For a delta the frame must hold the previous frame.
+     */
+    protected static void decode(IntBuffer log, int start, int length, IntBuffer frame, boolean keyframe)
+    {
+        int end = start + length;
+        int pixel = 0;
+
+        if (keyframe)
+        {
+            int previous = 0;
+            for (int i = start; i < end; )
+            {
+                int token = log.get(i++);
+                if ((token & s_ZeroRunFlag) != 0)
+                {
+                    // runs of the same pixel as the one on the left
+                    int count = token & ~s_ZeroRunFlag;
+                    for (int j = 0; j < count; ++j)
+                    {
+                        frame.put(pixel++, previous);
+                    }
+                }
+                else
+                {
+                    for (int j = 0; j < token; ++j)
+                    {
+                        previous ^= log.get(i++);
+                        frame.put(pixel++, previous);
+                    }
+                }
+            }
+        }
+        else
+        {
+            for (int i = start; i < end; )
+            {
+                int token = log.get(i++);
+                if ((token & s_ZeroRunFlag) != 0)
+                {
+                    // unchanged pixels
+                    pixel += token & ~s_ZeroRunFlag;
+                }
+                else
+                {
+                    for (int j = 0; j < token; ++j)
+                    {
+                        frame.put(pixel, frame.get(pixel) ^ log.get(i++));
+                        pixel++;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package tv.twitch.broadcast;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds with logarithmic buckets.  Each power of two range is split into 16 linear sub-buckets so
+ * reported values are within about 6% of the true value, from nanoseconds up to years, in under 1000 buckets.
+ *
+ * Recording is lock-free, does not allocate and may be done from any number of threads at once.  Queries and reset() read and clear the
+ * buckets one at a time so values recorded while they run may or may not be included.
+ */
+public class LatencyHistogram
+{
+    private static final int s_SubBucketBits = 4;
+    private static final int s_SubBucketCount = 1 << s_SubBucketBits;     //!< The number of sub-buckets in each power of two range.
+    private static final int s_LinearLimit = s_SubBucketCount * 2;       //!< Values below this have a bucket each.
+    private static final int s_NumBuckets = s_LinearLimit + (63 - s_SubBucketBits - 1) * s_SubBucketCount;
+
+    protected final AtomicLongArray m_Counts = new AtomicLongArray(s_NumBuckets);
+    protected final AtomicLong m_TotalCount = new AtomicLong(0);
+    protected final AtomicLong m_Sum = new AtomicLong(0);
+    protected final AtomicLong m_Max = new AtomicLong(0);
+
+    /**
+     * Adds a duration.  Negative values are counted as zero.
+     */
+    public void record(long nanos)
+    {
+        if (nanos < 0)
+        {
+            nanos = 0;
+        }
+
+        m_Counts.incrementAndGet(getBucket(nanos));
+        m_TotalCount.incrementAndGet();
+        m_Sum.addAndGet(nanos);
+
+        long max = m_Max.get();
+        while (nanos > max && !m_Max.compareAndSet(max, nanos))
+        {
+            max = m_Max.get();
+        }
+    }
+
+    /**
+     * The number of values recorded since the last reset.
+     */
+    public long getCount()
+    {
+        return m_TotalCount.get();
+    }
+
+    /**
+     * The largest value recorded since the last reset.
+     */
+    public long getMax()
+    {
+        return m_Max.get();
+    }
+
+    /**
+     * The mean of the values recorded since the last reset.
+     */
+    public double getMean()
+    {
+        long count = m_TotalCount.get();
+        return count > 0 ? (double)m_Sum.get() / count : 0;
+    }
+
+    /**
+     * The value below which the given percentage of the recorded values fall.
+     * @param percentile The percentile between 0 and 100.
+     * @return The upper bound of the bucket containing the percentile, or 0 if nothing has been recorded.
+     */
+    public long getPercentile(double percentile)
+    {
+        long count = 0;
+        for (int i = 0; i < s_NumBuckets; ++i)
+        {
+            count += m_Counts.get(i);
+        }
+        if (count == 0)
+        {
+            return 0;
+        }
+
+        long target = Math.max(1, (long)Math.ceil(count * Math.min(100.0, Math.max(0.0, percentile)) / 100.0));
+        long seen = 0;
+        for (int i = 0; i < s_NumBuckets; ++i)
+        {
+            seen += m_Counts.get(i);
+            if (seen >= target)
+            {
+                return Math.min(getBucketUpperBound(i), m_Max.get());
+            }
+        }
+
+        return m_Max.get();
+    }
+
+    public long getP50()
+    {
+        return getPercentile(50);
+    }
+
+    public long getP95()
+    {
+        return getPercentile(95);
+    }
+
+    public long getP99()
+    {
+        return getPercentile(99);
+    }
+
+    /**
+     * Clears the histogram so it covers a new interval.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < s_NumBuckets; ++i)
+        {
+            m_Counts.set(i, 0);
+        }
+
+        m_TotalCount.set(0);
+        m_Sum.set(0);
+        m_Max.set(0);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("count=%d p50=%.3fms p95=%.3fms p99=%.3fms max=%.3fms", getCount(),
+                             getP50() / 1e6, getP95() / 1e6, getP99() / 1e6, getMax() / 1e6);
+    }
+
+    private static int getBucket(long value)
+    {
+        if (value < s_LinearLimit)
+        {
+            return (int)value;
+        }
+
+        // keep the top bits below the leading one as the sub-bucket
+        int shift = 63 - Long.numberOfLeadingZeros(value) - s_SubBucketBits;
+        int subBucket = (int)(value >>> shift) - s_SubBucketCount;
+
+        return s_LinearLimit + (shift - 1) * s_SubBucketCount + subBucket;
+    }
+
+    private static long getBucketUpperBound(int bucket)
+    {
+        if (bucket < s_LinearLimit)
+        {
+            return bucket;
+        }
+
+        int shift = (bucket - s_LinearLimit) / s_SubBucketCount + 1;
+        long subBucket = (bucket - s_LinearLimit) % s_SubBucketCount + s_SubBucketCount;
+
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
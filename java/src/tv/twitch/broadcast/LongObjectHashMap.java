@@ -0,0 +1,223 @@
+package tv.twitch.broadcast;
+
+/**
+ * A hash map from primitive long keys to objects using open addressing with linear probing.  Unlike a Map<Long, V> looking up a key
+ * does not box the key or allocate.  This is intended for looking up native addresses so the key 0 is reserved and cannot be stored.
+ *
+ * This class is not thread-safe, see ConcurrentLongObjectHashMap for a version which can be read from any thread.
+ */
+public class LongObjectHashMap<V>
+{
+    protected static final float s_LoadFactor = 0.5f;  //!< Keep the table sparse so probe sequences stay short.
+
+    protected long[] m_Keys;
+    protected Object[] m_Values;
+    protected int m_Mask;
+    protected int m_Size = 0;
+
+    public LongObjectHashMap()
+    {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize The number of entries the map should hold without growing.
+     */
+    public LongObjectHashMap(int expectedSize)
+    {
+        int capacity = 2;
+        while (capacity * s_LoadFactor < expectedSize)
+        {
+            capacity <<= 1;
+        }
+
+        m_Keys = new long[capacity];
+        m_Values = new Object[capacity];
+        m_Mask = capacity - 1;
+    }
+
+    /**
+     * Creates a copy of the given map.
+     */
+    public LongObjectHashMap(LongObjectHashMap<V> other)
+    {
+        m_Keys = other.m_Keys.clone();
+        m_Values = other.m_Values.clone();
+        m_Mask = other.m_Mask;
+        m_Size = other.m_Size;
+    }
+
+    public int size()
+    {
+        return m_Size;
+    }
+
+    public boolean isEmpty()
+    {
+        return m_Size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key)
+    {
+        if (key == 0)
+        {
+            return null;
+        }
+
+        long[] keys = m_Keys;
+        int mask = m_Mask;
+
+        for (int index = hash(key) & mask; ; index = (index + 1) & mask)
+        {
+            long k = keys[index];
+            if (k == key)
+            {
+                return (V)m_Values[index];
+            }
+            else if (k == 0)
+            {
+                return null;
+            }
+        }
+    }
+
+    public boolean containsKey(long key)
+    {
+        return get(key) != null;
+    }
+
+    /**
+     * Associates the value with the key.
+     * @return The previous value for the key or null if there was none.
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value)
+    {
+        if (key == 0)
+        {
+            throw new IllegalArgumentException("The key 0 is reserved");
+        }
+        else if (value == null)
+        {
+            throw new NullPointerException();
+        }
+
+        int index = hash(key) & m_Mask;
+        while (m_Keys[index] != 0)
+        {
+            if (m_Keys[index] == key)
+            {
+                V previous = (V)m_Values[index];
+                m_Values[index] = value;
+                return previous;
+            }
+
+            index = (index + 1) & m_Mask;
+        }
+
+        m_Keys[index] = key;
+        m_Values[index] = value;
+        m_Size++;
+
+        if (m_Size > (m_Mask + 1) * s_LoadFactor)
+        {
+            rehash((m_Mask + 1) << 1);
+        }
+
+        return null;
+    }
+
+    /**
+     * Removes the entry for the key.
+     * @return The value which was removed or null if there was none.
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key)
+    {
+        if (key == 0)
+        {
+            return null;
+        }
+
+        int index = hash(key) & m_Mask;
+        while (m_Keys[index] != key)
+        {
+            if (m_Keys[index] == 0)
+            {
+                return null;
+            }
+
+            index = (index + 1) & m_Mask;
+        }
+
+        V previous = (V)m_Values[index];
+
+        // shift the following entries in the probe sequence back so lookups don't stop at the hole
+        int hole = index;
+        for (int next = (hole + 1) & m_Mask; m_Keys[next] != 0; next = (next + 1) & m_Mask)
+        {
+            int ideal = hash(m_Keys[next]) & m_Mask;
+            boolean movable = hole <= next ? (ideal <= hole || ideal > next) : (ideal <= hole && ideal > next);
+            if (movable)
+            {
+                m_Keys[hole] = m_Keys[next];
+                m_Values[hole] = m_Values[next];
+                hole = next;
+            }
+        }
+
+        m_Keys[hole] = 0;
+        m_Values[hole] = null;
+        m_Size--;
+
+        return previous;
+    }
+
+    public void clear()
+    {
+        for (int i = 0; i < m_Keys.length; ++i)
+        {
+            m_Keys[i] = 0;
+            m_Values[i] = null;
+        }
+
+        m_Size = 0;
+    }
+
+    protected void rehash(int capacity)
+    {
+        long[] keys = m_Keys;
+        Object[] values = m_Values;
+
+        m_Keys = new long[capacity];
+        m_Values = new Object[capacity];
+        m_Mask = capacity - 1;
+
+        for (int i = 0; i < keys.length; ++i)
+        {
+            if (keys[i] != 0)
+            {
+                int index = hash(keys[i]) & m_Mask;
+                while (m_Keys[index] != 0)
+                {
+                    index = (index + 1) & m_Mask;
+                }
+
+                m_Keys[index] = keys[i];
+                m_Values[index] = values[i];
+            }
+        }
+    }
+
+    /**
+     * Native addresses are aligned so the low bits carry no information, mix all the bits down into the ones used for the index.
+     */
+    protected static int hash(long key)
+    {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int)key;
+    }
+}
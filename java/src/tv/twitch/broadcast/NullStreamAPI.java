@@ -0,0 +1,169 @@
+package tv.twitch.broadcast;
+
+import tv.twitch.AuthToken;
+import tv.twitch.ErrorCode;
+
+/**
+ * A StreamAPI which does nothing and fails every request.  It is used to create FrameBuffers which are never valid, such as the sentinel
+ * returned by BroadcastController.tryAcquireBuffer() when no buffer is available.
+ */
+final class NullStreamAPI extends StreamAPI
+{
+    public void setStreamCallbacks(IStreamCallbacks callbacks)
+    {
+    }
+
+    public IStreamCallbacks getStreamCallbacks()
+    {
+        return null;
+    }
+
+    public void setStatCallbacks(IStatCallbacks callbacks)
+    {
+    }
+
+    public IStatCallbacks getStatCallbacks()
+    {
+        return null;
+    }
+
+    public ErrorCode requestAuthToken(AuthParams authParams)
+    {
+        return ErrorCode.TTV_EC_NOT_INITIALIZED;
+    }
+
+    public ErrorCode login(AuthToken authToken)
+    {
+        return ErrorCode.TTV_EC_NOT_INITIALIZED;
+    }
+
+    public ErrorCode getIngestServers(AuthToken authToken)
+    {
+        return ErrorCode.TTV_EC_NOT_INITIALIZED;
+    }
+
+    public ErrorCode getUserInfo(AuthToken authToken)
+    {
+        return ErrorCode.TTV_EC_NOT_INITIALIZED;
+    }
+
+    public ErrorCode getStreamInfo(AuthToken authToken, String channel)
+    {
+        return ErrorCode.TTV_EC_NOT_INITIALIZED;
+    }
+
+    public ErrorCode setStreamInfo(AuthToken authToken, String channel, StreamInfoForSetting streamInfo)
+    {
+        return ErrorCode.TTV_EC_NOT_INITIALIZED;
+    }
+
+    public ErrorCode getArchivingState(AuthToken authToken)
+    {
+        return ErrorCode.TTV_EC_NOT_INITIALIZED;
+    }
+
+    public ErrorCode runCommercial(AuthToken authToken)
+    {
+        return ErrorCode.TTV_EC_NOT_INITIALIZED;
+    }
+
+    public ErrorCode setVolume(AudioDeviceType device, float volume)
+    {
+        return ErrorCode.TTV_EC_NOT_INITIALIZED;
+    }
+
+    public float getVolume(AudioDeviceType device)
+    {
+        return 0;
+    }
+
+    public ErrorCode getGameNameList(String str)
+    {
+        return ErrorCode.TTV_EC_NOT_INITIALIZED;
+    }
+
+    public ErrorCode getDefaultParams(VideoParams videoParams)
+    {
+        return ErrorCode.TTV_EC_NOT_INITIALIZED;
+    }
+
+    public int[] getMaxResolution(int maxKbps, int frameRate, float bitsPerPixel, float aspectRatio)
+    {
+        return new int[] { 0, 0 };
+    }
+
+    public ErrorCode pollTasks()
+    {
+        return ErrorCode.TTV_EC_NOT_INITIALIZED;
+    }
+
+    public ErrorCode pollStats()
+    {
+        return ErrorCode.TTV_EC_NOT_INITIALIZED;
+    }
+
+    public ErrorCode sendActionMetaData(AuthToken authToken, String name, long streamTime, String humanDescription, String data)
+    {
+        return ErrorCode.TTV_EC_NOT_INITIALIZED;
+    }
+
+    public long sendStartSpanMetaData(AuthToken authToken, String name, long streamTime, String humanDescription, String data)
+    {
+        return 0;
+    }
+
+    public ErrorCode sendEndSpanMetaData(AuthToken authToken, String name, long streamTime, long sequenceId, String humanDescription, String data)
+    {
+        return ErrorCode.TTV_EC_NOT_INITIALIZED;
+    }
+
+    public ErrorCode submitVideoFrame(long frameBuffer)
+    {
+        return ErrorCode.TTV_EC_INVALID_BUFFER;
+    }
+
+    public ErrorCode start(VideoParams videoParams, AudioParams audioParams, IngestServer ingestServer, int flags, boolean async)
+    {
+        return ErrorCode.TTV_EC_NOT_INITIALIZED;
+    }
+
+    public ErrorCode stop(boolean async)
+    {
+        return ErrorCode.TTV_EC_NOT_INITIALIZED;
+    }
+
+    public ErrorCode pauseVideo()
+    {
+        return ErrorCode.TTV_EC_NOT_INITIALIZED;
+    }
+
+    public long allocateFrameBuffer(int size)
+    {
+        return 0;
+    }
+
+    public ErrorCode freeFrameBuffer(long frameBuffer)
+    {
+        return ErrorCode.TTV_EC_INVALID_BUFFER;
+    }
+
+    public ErrorCode memsetFrameBuffer(long frameBuffer, int size, int value)
+    {
+        return ErrorCode.TTV_EC_INVALID_BUFFER;
+    }
+
+    public ErrorCode randomizeFrameBuffer(long frameBuffer, int size)
+    {
+        return ErrorCode.TTV_EC_INVALID_BUFFER;
+    }
+
+    public ErrorCode captureFrameBuffer_ReadPixels(long frameBuffer)
+    {
+        return ErrorCode.TTV_EC_INVALID_BUFFER;
+    }
+
+    public long getStreamTime()
+    {
+        return 0;
+    }
+}
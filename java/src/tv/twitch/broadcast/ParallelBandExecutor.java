@@ -0,0 +1,212 @@
+package tv.twitch.broadcast;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Splits per-row image work into horizontal bands and runs them on a fixed set of worker threads.  The calling thread works on bands too
+ * and execute() returns once every band is done.  Nothing is allocated per call so it can be used every frame.
+ *
+ * Calls to execute() from several threads, such as capture stages on the game thread and submission stages on the worker, are run one
+ * after the other.
+ */
+public class ParallelBandExecutor
+{
+    /**
+     * The work to do on a range of rows.  This is called concurrently from several threads with disjoint ranges.
+     */
+    public interface BandTask
+    {
+        void run(int startRow, int endRow);
+    }
+
+    protected final Thread[] m_Workers;
+    protected final AtomicLong m_NextBand = new AtomicLong(0);      //!< The generation in the high half and the next unclaimed band in the low half.
+    protected final AtomicInteger m_RemainingBands = new AtomicInteger(0);
+    protected final AtomicReference<Throwable> m_Failure = new AtomicReference<Throwable>(null);    //!< The first exception thrown by a band in the current call.
+    protected volatile BandTask m_Task = null;
+    protected volatile int m_NumRows = 0;
+    protected volatile int m_BandHeight = 1;
+    protected volatile int m_NumBands = 0;
+    protected volatile int m_Generation = 0;   //!< Incremented for each call to execute() so workers can tell there is new work.
+    protected volatile Thread m_Caller = null;
+    protected volatile boolean m_Running = true;
+
+    /**
+     * @param numThreads The total number of threads to use including the calling thread.  1 runs everything on the calling thread.
+     */
+    public ParallelBandExecutor(int numThreads)
+    {
+        m_Workers = new Thread[Math.max(0, numThreads - 1)];
+        for (int i = 0; i < m_Workers.length; ++i)
+        {
+            m_Workers[i] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    workerLoop();
+                }
+            }, "Twitch band worker " + i);
+            m_Workers[i].setDaemon(true);
+            m_Workers[i].start();
+        }
+    }
+
+    /**
+     * Uses one thread per available processor.
+     */
+    public ParallelBandExecutor()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * The total number of threads which work on bands, including the calling thread.
+     */
+    public int getThreadCount()
+    {
+        return m_Workers.length + 1;
+    }
+
+    /**
+     * Runs the task over rows [0, numRows) and waits for it to finish.  If a band throws, the bands not yet started are skipped and the first
+     * exception is rethrown here once every band in progress has finished.  The workers survive it.
+     */
+    public synchronized void execute(BandTask task, int numRows)
+    {
+        if (numRows <= 0)
+        {
+            return;
+        }
+
+        // not worth waking anyone up
+        if (m_Workers.length == 0 || numRows < 2)
+        {
+            task.run(0, numRows);
+            return;
+        }
+
+        // a few bands per thread so a slow thread doesn't hold everyone up
+        int numBands = Math.min(numRows, getThreadCount() * 4);
+        int bandHeight = (numRows + numBands - 1) / numBands;
+        numBands = (numRows + bandHeight - 1) / bandHeight;
+
+        // retag the band counter before touching the parameters so a late worker from the last call which sees any of the new values
+        // can't claim a band
+        int generation = m_Generation + 1;
+        m_NextBand.set((long)generation << 32);
+        m_RemainingBands.set(numBands);
+        m_Failure.set(null);
+        m_Task = task;
+        m_NumRows = numRows;
+        m_BandHeight = bandHeight;
+        m_NumBands = numBands;
+        m_Caller = Thread.currentThread();
+        m_Generation = generation;
+
+        for (int i = 0; i < m_Workers.length; ++i)
+        {
+            LockSupport.unpark(m_Workers[i]);
+        }
+
+        runBands(generation);
+
+        while (m_RemainingBands.get() > 0)
+        {
+            LockSupport.parkNanos(this, 100000L);
+        }
+
+        m_Task = null;
+
+        Throwable failure = m_Failure.getAndSet(null);
+        if (failure instanceof RuntimeException)
+        {
+            throw (RuntimeException)failure;
+        }
+        else if (failure instanceof Error)
+        {
+            throw (Error)failure;
+        }
+        else if (failure != null)
+        {
+            throw new RuntimeException(failure);
+        }
+    }
+
+    /**
+     * Stops the worker threads.  The executor can't be used afterwards.
+     */
+    public void shutdown()
+    {
+        m_Running = false;
+        for (int i = 0; i < m_Workers.length; ++i)
+        {
+            LockSupport.unpark(m_Workers[i]);
+        }
+    }
+
+    protected void workerLoop()
+    {
+        int seenGeneration = 0;
+        while (m_Running)
+        {
+            int generation = m_Generation;
+            if (generation == seenGeneration)
+            {
+                LockSupport.park(this);
+                continue;
+            }
+
+            seenGeneration = generation;
+            runBands(generation);
+        }
+    }
+
+    /**
+     * Claims and runs bands until there are none left.
+     */
+    protected void runBands(int generation)
+    {
+        BandTask task = m_Task;
+        int numRows = m_NumRows;
+        int bandHeight = m_BandHeight;
+        int numBands = m_NumBands;
+
+        for (;;)
+        {
+            long next = m_NextBand.get();
+            int band = (int)next;
+            if ((int)(next >>> 32) != generation || band >= numBands)
+            {
+                return;
+            }
+            if (!m_NextBand.compareAndSet(next, next + 1))
+            {
+                continue;
+            }
+
+            // the band always counts as done so the caller can't be left waiting
+            try
+            {
+                if (m_Failure.get() == null)
+                {
+                    int start = band * bandHeight;
+                    task.run(start, Math.min(numRows, start + bandHeight));
+                }
+            }
+            catch (Throwable x)
+            {
+                m_Failure.compareAndSet(null, x);
+            }
+            finally
+            {
+                if (m_RemainingBands.decrementAndGet() == 0)
+                {
+                    LockSupport.unpark(m_Caller);
+                }
+            }
+        }
+    }
+}
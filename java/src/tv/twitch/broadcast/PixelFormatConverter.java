@@ -0,0 +1,495 @@
+package tv.twitch.broadcast;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Converts frames between the PixelFormats and optionally flips them vertically.  This can be done in place or into another buffer.
+ *
+ * Every conversion between the formats is a fixed reordering of the 4 bytes of each pixel.  Rather than moving bytes one at a time the
+ * reordering is done on two pixels at once in a long with a handful of shifts and masks which are worked out by configure().  The
+ * reorderings which actually occur between the PixelFormats each have a loop with constant shifts, which the JIT compiles to much faster
+ * code than variable shifts.  Rows are split into bands which run in parallel.
+ *
+ * Only one thread may call convert() at a time.
+ */
+public class PixelFormatConverter
+{
+    /**
+     * The ways the bytes of the pixels in a long can be reordered, in terms of bit positions rather than memory order.
+     */
+    protected enum Kernel
+    {
+        Copy,
+        ReverseBytes,   //!< 0123 -> 3210
+        SwapEven,       //!< Swaps bytes 0 and 2.
+        SwapOdd,        //!< Swaps bytes 1 and 3.
+        RotateLeft,     //!< 0123 -> 3012
+        RotateRight,    //!< 0123 -> 1230
+        Generic         //!< Any other reordering using the shifts and masks.
+    }
+
+    protected final ParallelBandExecutor m_Executor;
+
+    protected PixelFormat m_SourceFormat = PixelFormat.TTV_PF_RGBA;
+    protected PixelFormat m_DestFormat = PixelFormat.TTV_PF_RGBA;
+    protected boolean m_Flip = false;
+    protected int m_Width = 0;
+    protected int m_Height = 0;
+
+    // the swizzle as 4 shifted and masked copies of the input, unused terms have a zero mask
+    protected int m_LeftShift0, m_LeftShift1, m_LeftShift2, m_LeftShift3;
+    protected int m_RightShift0, m_RightShift1, m_RightShift2, m_RightShift3;
+    protected long m_Mask0, m_Mask1, m_Mask2, m_Mask3;
+    protected boolean m_Identity = true;
+    protected Kernel m_Kernel = Kernel.Copy;
+    protected final boolean m_LittleEndian = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+    protected ByteBuffer m_Source = null;
+    protected ByteBuffer m_Dest = null;
+
+    protected final ParallelBandExecutor.BandTask m_ConvertRows = new ParallelBandExecutor.BandTask()
+    {
+        public void run(int startRow, int endRow)
+        {
+            convertRows(startRow, endRow);
+        }
+    };
+
+    protected final ParallelBandExecutor.BandTask m_SwapRows = new ParallelBandExecutor.BandTask()
+    {
+        public void run(int startRow, int endRow)
+        {
+            swapRows(startRow, endRow);
+        }
+    };
+
+    /**
+     * @param executor The executor which runs the row bands.
+     */
+    public PixelFormatConverter(ParallelBandExecutor executor)
+    {
+        m_Executor = executor;
+    }
+
+    public PixelFormat getSourceFormat()
+    {
+        return m_SourceFormat;
+    }
+
+    public PixelFormat getDestFormat()
+    {
+        return m_DestFormat;
+    }
+
+    public boolean getFlip()
+    {
+        return m_Flip;
+    }
+
+    /**
+     * Whether or not convert() will leave the frame unchanged.
+     */
+    public boolean getIsIdentity()
+    {
+        return m_Identity && !m_Flip;
+    }
+
+    /**
+     * Prepares a conversion.
+     * @param sourceFormat The format of the frames passed in.
+     * @param destFormat The format to convert to.
+     * @param flip Whether or not to reverse the order of the rows.
+     * @param width The width of the frames in pixels.
+     * @param height The height of the frames in pixels.
+     */
+    public void configure(PixelFormat sourceFormat, PixelFormat destFormat, boolean flip, int width, int height)
+    {
+        if (width <= 0 || height <= 0)
+        {
+            throw new IllegalArgumentException("Invalid image size");
+        }
+
+        m_SourceFormat = sourceFormat;
+        m_DestFormat = destFormat;
+        m_Flip = flip;
+        m_Width = width;
+        m_Height = height;
+
+        // where each channel is in memory
+        int[] sourceOrder = getChannelOrder(sourceFormat);
+        int[] destOrder = getChannelOrder(destFormat);
+        int[] destChannels = new int[4];
+        for (int channel = 0; channel < 4; ++channel)
+        {
+            destChannels[destOrder[channel]] = channel;
+        }
+
+        // group the destination bytes by how far their value has to move within the long
+        int numTerms = 0;
+        int[] shifts = new int[4];
+        long[] masks = new long[4];
+        m_Identity = true;
+        for (int i = 0; i < 8; ++i)
+        {
+            int sourceByte = (i & ~3) + sourceOrder[destChannels[i & 3]];
+            int shift = getBitOffset(i) - getBitOffset(sourceByte);
+
+            if (shift != 0)
+            {
+                m_Identity = false;
+            }
+
+            int term = 0;
+            while (term < numTerms && shifts[term] != shift)
+            {
+                term++;
+            }
+            if (term == numTerms)
+            {
+                shifts[term] = shift;
+                numTerms++;
+            }
+
+            masks[term] |= 0xFFL << getBitOffset(i);
+        }
+
+        m_LeftShift0 = Math.max(0, shifts[0]); m_RightShift0 = Math.max(0, -shifts[0]); m_Mask0 = masks[0];
+        m_LeftShift1 = Math.max(0, shifts[1]); m_RightShift1 = Math.max(0, -shifts[1]); m_Mask1 = masks[1];
+        m_LeftShift2 = Math.max(0, shifts[2]); m_RightShift2 = Math.max(0, -shifts[2]); m_Mask2 = masks[2];
+        m_LeftShift3 = Math.max(0, shifts[3]); m_RightShift3 = Math.max(0, -shifts[3]); m_Mask3 = masks[3];
+
+        // find the specialised kernel which does the same thing
+        m_Kernel = Kernel.Generic;
+        long test = 0x0807060504030201L;
+        long expected = swizzleGeneric(test);
+        for (Kernel kernel : Kernel.values())
+        {
+            if (kernel != Kernel.Generic && swizzle(kernel, test) == expected)
+            {
+                m_Kernel = kernel;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Converts the frame in place.
+     */
+    public void convert(ByteBuffer frame)
+    {
+        convert(frame, frame);
+    }
+
+    /**
+     * Converts the source frame into the destination, which may be the same buffer.  Both buffers must hold tightly packed 4 byte pixels
+     * and use the native byte order.
+     */
+    public void convert(ByteBuffer source, ByteBuffer dest)
+    {
+        int frameSize = m_Width * m_Height * 4;
+        if (source.capacity() < frameSize || dest.capacity() < frameSize)
+        {
+            throw new IllegalArgumentException("Buffer too small");
+        }
+
+        boolean inPlace = source == dest;
+        if (inPlace && getIsIdentity())
+        {
+            return;
+        }
+
+        m_Source = source;
+        m_Dest = dest;
+
+        try
+        {
+            if (inPlace && m_Flip)
+            {
+                // rows have to be exchanged in pairs so neither is overwritten before it's read
+                m_Executor.execute(m_SwapRows, (m_Height + 1) / 2);
+            }
+            else
+            {
+                m_Executor.execute(m_ConvertRows, m_Height);
+            }
+        }
+        finally
+        {
+            m_Source = null;
+            m_Dest = null;
+        }
+    }
+
+    protected void convertRows(int startRow, int endRow)
+    {
+        int rowBytes = m_Width * 4;
+
+        for (int y = startRow; y < endRow; ++y)
+        {
+            int destRow = m_Flip ? m_Height - 1 - y : y;
+            convertRow(m_Source, y * rowBytes, m_Dest, destRow * rowBytes, rowBytes);
+        }
+    }
+
+    protected void swapRows(int startRow, int endRow)
+    {
+        int rowBytes = m_Width * 4;
+        ByteBuffer frame = m_Dest;
+
+        for (int y = startRow; y < endRow; ++y)
+        {
+            int top = y * rowBytes;
+            int bottom = (m_Height - 1 - y) * rowBytes;
+
+            if (top == bottom)
+            {
+                convertRow(frame, top, frame, top, rowBytes);
+                continue;
+            }
+
+            int offset = 0;
+            for (; offset + 8 <= rowBytes; offset += 8)
+            {
+                long a = frame.getLong(top + offset);
+                long b = frame.getLong(bottom + offset);
+                frame.putLong(top + offset, swizzle(b));
+                frame.putLong(bottom + offset, swizzle(a));
+            }
+            if (offset < rowBytes)
+            {
+                int a = frame.getInt(top + offset);
+                int b = frame.getInt(bottom + offset);
+                frame.putInt(top + offset, swizzle(b));
+                frame.putInt(bottom + offset, swizzle(a));
+            }
+        }
+    }
+
+    protected void convertRow(ByteBuffer source, int sourceOffset, ByteBuffer dest, int destOffset, int rowBytes)
+    {
+        int sourceStart = sourceOffset;
+        int destStart = destOffset;
+        int end = sourceOffset + rowBytes;
+        int longEnd = end - 7;
+
+        // one loop per kernel so the shifts are constants in each, in separate methods so each is compiled on its own
+        switch (m_Kernel)
+        {
+            case Copy:
+                if (source == dest)
+                {
+                    return;
+                }
+                sourceOffset = copy(source, sourceOffset, dest, destOffset, longEnd);
+                break;
+            case ReverseBytes:
+                sourceOffset = reverseBytes(source, sourceOffset, dest, destOffset, longEnd);
+                break;
+            case SwapEven:
+                sourceOffset = swapEven(source, sourceOffset, dest, destOffset, longEnd);
+                break;
+            case SwapOdd:
+                sourceOffset = swapOdd(source, sourceOffset, dest, destOffset, longEnd);
+                break;
+            case RotateLeft:
+                sourceOffset = rotateLeft(source, sourceOffset, dest, destOffset, longEnd);
+                break;
+            case RotateRight:
+                sourceOffset = rotateRight(source, sourceOffset, dest, destOffset, longEnd);
+                break;
+            case Generic:
+            default:
+                for (; sourceOffset < longEnd; sourceOffset += 8, destOffset += 8)
+                {
+                    dest.putLong(destOffset, swizzleGeneric(source.getLong(sourceOffset)));
+                }
+                break;
+        }
+
+        destOffset = destStart + (sourceOffset - sourceStart);
+
+        if (sourceOffset < end)
+        {
+            dest.putInt(destOffset, swizzle(source.getInt(sourceOffset)));
+        }
+    }
+
+    /**
+     * Copies the longs unchanged.
+     * @return The source offset the loop stopped at.
+     */
+    private static int copy(ByteBuffer source, int sourceOffset, ByteBuffer dest, int destOffset, int end)
+    {
+        for (; sourceOffset < end; sourceOffset += 8, destOffset += 8)
+        {
+            dest.putLong(destOffset, source.getLong(sourceOffset));
+        }
+        return sourceOffset;
+    }
+
+    /**
+     * Reverses the order of the bytes of each pixel.
+     * @return The source offset the loop stopped at.
+     */
+    private static int reverseBytes(ByteBuffer source, int sourceOffset, ByteBuffer dest, int destOffset, int end)
+    {
+        for (; sourceOffset < end; sourceOffset += 8, destOffset += 8)
+        {
+            dest.putLong(destOffset, Long.rotateLeft(Long.reverseBytes(source.getLong(sourceOffset)), 32));
+        }
+        return sourceOffset;
+    }
+
+    /**
+     * Swaps bytes 0 and 2 of each pixel.
+     * @return The source offset the loop stopped at.
+     */
+    private static int swapEven(ByteBuffer source, int sourceOffset, ByteBuffer dest, int destOffset, int end)
+    {
+        for (; sourceOffset < end; sourceOffset += 8, destOffset += 8)
+        {
+            long value = source.getLong(sourceOffset);
+            dest.putLong(destOffset, (value & 0xFF00FF00FF00FF00L) | ((value & 0x000000FF000000FFL) << 16) | ((value >>> 16) & 0x000000FF000000FFL));
+        }
+        return sourceOffset;
+    }
+
+    /**
+     * Swaps bytes 1 and 3 of each pixel.
+     * @return The source offset the loop stopped at.
+     */
+    private static int swapOdd(ByteBuffer source, int sourceOffset, ByteBuffer dest, int destOffset, int end)
+    {
+        for (; sourceOffset < end; sourceOffset += 8, destOffset += 8)
+        {
+            long value = source.getLong(sourceOffset);
+            dest.putLong(destOffset, (value & 0x00FF00FF00FF00FFL) | ((value & 0x0000FF000000FF00L) << 16) | ((value >>> 16) & 0x0000FF000000FF00L));
+        }
+        return sourceOffset;
+    }
+
+    /**
+     * Rotates each pixel left by a byte.
+     * @return The source offset the loop stopped at.
+     */
+    private static int rotateLeft(ByteBuffer source, int sourceOffset, ByteBuffer dest, int destOffset, int end)
+    {
+        for (; sourceOffset < end; sourceOffset += 8, destOffset += 8)
+        {
+            long value = source.getLong(sourceOffset);
+            dest.putLong(destOffset, ((value << 8) & 0xFFFFFF00FFFFFF00L) | ((value >>> 24) & 0x000000FF000000FFL));
+        }
+        return sourceOffset;
+    }
+
+    /**
+     * Rotates each pixel right by a byte.
+     * @return The source offset the loop stopped at.
+     */
+    private static int rotateRight(ByteBuffer source, int sourceOffset, ByteBuffer dest, int destOffset, int end)
+    {
+        for (; sourceOffset < end; sourceOffset += 8, destOffset += 8)
+        {
+            long value = source.getLong(sourceOffset);
+            dest.putLong(destOffset, ((value >>> 8) & 0x00FFFFFF00FFFFFFL) | ((value << 24) & 0xFF000000FF000000L));
+        }
+        return sourceOffset;
+    }
+
+    /**
+     * Reorders the bytes of the two pixels in the long.
+     */
+    protected final long swizzle(long value)
+    {
+        return swizzle(m_Kernel, value);
+    }
+
+    private long swizzle(Kernel kernel, long value)
+    {
+        switch (kernel)
+        {
+            case Copy:         return value;
+            case ReverseBytes: return Long.rotateLeft(Long.reverseBytes(value), 32);
+            case SwapEven:     return (value & 0xFF00FF00FF00FF00L) | ((value & 0x000000FF000000FFL) << 16) | ((value >>> 16) & 0x000000FF000000FFL);
+            case SwapOdd:      return (value & 0x00FF00FF00FF00FFL) | ((value & 0x0000FF000000FF00L) << 16) | ((value >>> 16) & 0x0000FF000000FF00L);
+            case RotateLeft:   return ((value << 8) & 0xFFFFFF00FFFFFF00L) | ((value >>> 24) & 0x000000FF000000FFL);
+            case RotateRight:  return ((value >>> 8) & 0x00FFFFFF00FFFFFFL) | ((value << 24) & 0xFF000000FF000000L);
+            case Generic:
+            default:           return swizzleGeneric(value);
+        }
+    }
+
+    private long swizzleGeneric(long value)
+    {
+        return (((value << m_LeftShift0) >>> m_RightShift0) & m_Mask0)
+             | (((value << m_LeftShift1) >>> m_RightShift1) & m_Mask1)
+             | (((value << m_LeftShift2) >>> m_RightShift2) & m_Mask2)
+             | (((value << m_LeftShift3) >>> m_RightShift3) & m_Mask3);
+    }
+
+    /**
+     * Reorders the bytes of a single pixel.
+     */
+    protected final int swizzle(int value)
+    {
+        // the masks repeat for each pixel so the low half works for a single pixel on either byte order
+        long wide = m_LittleEndian ? (value & 0xFFFFFFFFL) : ((long)value << 32);
+        long result = swizzle(wide);
+        return m_LittleEndian ? (int)result : (int)(result >>> 32);
+    }
+
+    /**
+     * Packs the colour into an int which, when written in native byte order, has the channel bytes in the order of the pixel format.
+     */
+    public static int pack(PixelFormat format, int r, int g, int b, int a)
+    {
+        int b0, b1, b2, b3;
+        switch (format)
+        {
+            case TTV_PF_BGRA: b0 = b; b1 = g; b2 = r; b3 = a; break;
+            case TTV_PF_ABGR: b0 = a; b1 = b; b2 = g; b3 = r; break;
+            case TTV_PF_ARGB: b0 = a; b1 = r; b2 = g; b3 = b; break;
+            case TTV_PF_RGBA:
+            default:          b0 = r; b1 = g; b2 = b; b3 = a; break;
+        }
+
+        if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN)
+        {
+            return b0 | (b1 << 8) | (b2 << 16) | (b3 << 24);
+        }
+
+        return (b0 << 24) | (b1 << 16) | (b2 << 8) | b3;
+    }
+
+    /**
+     * The bit offset of the alpha channel in an int read from memory in native byte order.
+     */
+    public static int getAlphaShift(PixelFormat format)
+    {
+        return Integer.numberOfTrailingZeros(pack(format, 0, 0, 0, 255));
+    }
+
+    /**
+     * The bit offset of a byte of a long read from memory in the given byte order.
+     */
+    private int getBitOffset(int index)
+    {
+        return m_LittleEndian ? index * 8 : (7 - index) * 8;
+    }
+
+    /**
+     * The position in memory of the red, green, blue and alpha channels of a pixel.
+     */
+    private static int[] getChannelOrder(PixelFormat format)
+    {
+        switch (format)
+        {
+            case TTV_PF_BGRA: return new int[] { 2, 1, 0, 3 };
+            case TTV_PF_ABGR: return new int[] { 3, 2, 1, 0 };
+            case TTV_PF_ARGB: return new int[] { 1, 2, 3, 0 };
+            case TTV_PF_RGBA:
+            default:          return new int[] { 0, 1, 2, 3 };
+        }
+    }
+}
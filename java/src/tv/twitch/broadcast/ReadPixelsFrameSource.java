@@ -0,0 +1,31 @@
+package tv.twitch.broadcast;
+
+import tv.twitch.ErrorCode;
+
+/**
+ * Captures frames by synchronously reading the back buffer of the current OpenGL context with glReadPixels.  This is simple but stalls
+ * the calling thread until the GPU has finished rendering the frame.
+ */
+public class ReadPixelsFrameSource implements FrameSource
+{
+    protected Stream m_Stream = null;
+
+    public ReadPixelsFrameSource(Stream stream)
+    {
+        m_Stream = stream;
+    }
+
+    public boolean start(VideoParams videoParams)
+    {
+        return true;
+    }
+
+    public boolean captureFrame(FrameBuffer buffer)
+    {
+        return ErrorCode.succeeded(m_Stream.captureFrameBuffer_ReadPixels(buffer));
+    }
+
+    public void stop()
+    {
+    }
+}
@@ -0,0 +1,259 @@
+package tv.twitch.broadcast;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Plays back frames from a file without a graphics context, for reproducing a recorded broadcast or load testing the pipeline.  The file
+ * is either one written by FrameRecorder or raw frames packed back to back with no header, in which case the frames are assumed to be the
+ * size of the broadcast.  The frames are memory-mapped so playing them back is a single copy from the page cache into each buffer.
+ *
+ * By default playback loops back to the first frame after the last one.  Without looping the source stops providing frames at the end of
+ * the file and getIsFinished() becomes true.
+ */
+public class RecordedFrameSource implements FrameSource
+{
+    private static final int s_MaxSegmentSize = 1 << 30;     //!< A single mapping can't be larger than 2GB so frames are mapped in segments.
+
+    protected final File m_File;
+    protected final RandomAccessFile m_RandomAccessFile;
+    protected final boolean m_HasHeader;
+    protected int m_Width = 0;              //!< The recorded size, 0 for raw files.
+    protected int m_Height = 0;
+    protected int m_PixelFormatValue = -1;
+    protected int m_FramesPerSecond = 0;
+    protected int m_RecordedFrameCount = 0;
+    protected long m_DataOffset = 0;
+    protected long[] m_Times = null;        //!< The broadcast time of each recorded frame, or null for raw files.
+
+    protected boolean m_Loop = true;
+    protected int m_FrameSize = 0;
+    protected int m_FrameCount = 0;
+    protected int m_FramesPerSegment = 0;
+    protected MappedByteBuffer[] m_Segments = null;
+    protected long m_FrameIndex = 0;
+
+    /**
+     * Opens the file and reads the header, if it has one.
+     */
+    public RecordedFrameSource(File file) throws IOException
+    {
+        m_File = file;
+        m_RandomAccessFile = new RandomAccessFile(file, "r");
+
+        try
+        {
+            ByteBuffer header = ByteBuffer.allocate(FrameRecorder.s_HeaderSize).order(ByteOrder.LITTLE_ENDIAN);
+            FileChannel channel = m_RandomAccessFile.getChannel();
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0)
+            {
+            }
+
+            m_HasHeader = header.position() == FrameRecorder.s_HeaderSize && header.getInt(0) == FrameRecorder.s_Magic;
+            if (m_HasHeader)
+            {
+                if (header.getInt(4) != FrameRecorder.s_Version)
+                {
+                    throw new IOException("Unsupported recording version " + header.getInt(4) + " in " + file);
+                }
+
+                m_Width = header.getInt(8);
+                m_Height = header.getInt(12);
+                m_PixelFormatValue = header.getInt(16);
+                m_RecordedFrameCount = header.getInt(28);
+                m_DataOffset = header.getLong(40);
+                m_FramesPerSecond = header.getInt(48);
+
+                ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, header.getLong(32), 8L * m_RecordedFrameCount);
+                index.order(ByteOrder.LITTLE_ENDIAN);
+                m_Times = new long[m_RecordedFrameCount];
+                index.asLongBuffer().get(m_Times);
+            }
+        }
+        catch (IOException x)
+        {
+            m_RandomAccessFile.close();
+            throw x;
+        }
+    }
+
+    public File getFile()
+    {
+        return m_File;
+    }
+
+    /**
+     * Whether or not the file was written by FrameRecorder.  If not it is treated as raw frames.
+     */
+    public boolean getHasHeader()
+    {
+        return m_HasHeader;
+    }
+
+    /**
+     * The recorded frame width or 0 for raw files.
+     */
+    public int getWidth()
+    {
+        return m_Width;
+    }
+
+    /**
+     * The recorded frame height or 0 for raw files.
+     */
+    public int getHeight()
+    {
+        return m_Height;
+    }
+
+    /**
+     * The recorded target frame rate or 0 for raw files.
+     */
+    public int getFramesPerSecond()
+    {
+        return m_FramesPerSecond;
+    }
+
+    /**
+     * Whether or not playback starts again from the first frame after the last one.
+     */
+    public boolean getLoop()
+    {
+        return m_Loop;
+    }
+    public void setLoop(boolean value)
+    {
+        m_Loop = value;
+    }
+
+    /**
+     * The number of frames in the file.  For raw files this is only known once started.
+     */
+    public int getFrameCount()
+    {
+        return m_HasHeader ? m_RecordedFrameCount : m_FrameCount;
+    }
+
+    /**
+     * The number of frames played back since start() was called.
+     */
+    public long getFrameIndex()
+    {
+        return m_FrameIndex;
+    }
+
+    /**
+     * Whether or not every frame has been played back and looping is off.
+     */
+    public boolean getIsFinished()
+    {
+        return !m_Loop && m_FrameIndex >= m_FrameCount;
+    }
+
+    /**
+     * The broadcast time in milliseconds at which a frame was recorded.  For raw files the time is derived from the given frame rate.
+     */
+    public long getRecordedTime(int frame, int framesPerSecond)
+    {
+        if (m_Times != null && frame < m_Times.length)
+        {
+            return m_Times[frame];
+        }
+
+        return frame * 1000L / Math.max(1, framesPerSecond);
+    }
+
+    /**
+     * Fails if the recording is a different size or pixel format from the broadcast.
+     */
+    public boolean start(VideoParams videoParams)
+    {
+        if (m_HasHeader &&
+            (m_Width != videoParams.outputWidth || m_Height != videoParams.outputHeight || m_PixelFormatValue != videoParams.pixelFormat.getValue()))
+        {
+            return false;
+        }
+
+        m_FrameSize = videoParams.outputWidth * videoParams.outputHeight * 4;
+        m_FramesPerSegment = Math.max(1, s_MaxSegmentSize / m_FrameSize);
+        m_FrameIndex = 0;
+
+        try
+        {
+            m_FrameCount = m_HasHeader ? m_RecordedFrameCount : (int)Math.min(Integer.MAX_VALUE, m_RandomAccessFile.length() / m_FrameSize);
+            if (m_FrameCount == 0)
+            {
+                return false;
+            }
+
+            FileChannel channel = m_RandomAccessFile.getChannel();
+            int numSegments = (m_FrameCount + m_FramesPerSegment - 1) / m_FramesPerSegment;
+            m_Segments = new MappedByteBuffer[numSegments];
+            for (int i = 0; i < numSegments; ++i)
+            {
+                int frames = Math.min(m_FramesPerSegment, m_FrameCount - i * m_FramesPerSegment);
+                long offset = m_DataOffset + (long)i * m_FramesPerSegment * m_FrameSize;
+                m_Segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, (long)frames * m_FrameSize);
+            }
+        }
+        catch (IOException x)
+        {
+            m_Segments = null;
+            return false;
+        }
+
+        return true;
+    }
+
+    public boolean captureFrame(FrameBuffer buffer)
+    {
+        ByteBuffer destination = FrameBufferView.getBytes(buffer);
+        if (m_Segments == null || destination == null || destination.capacity() < m_FrameSize || getIsFinished())
+        {
+            return false;
+        }
+
+        int frame = (int)(m_FrameIndex % m_FrameCount);
+
+        // duplicates keep the segment and view positions untouched so nothing is shared between calls or stages
+        ByteBuffer source = m_Segments[frame / m_FramesPerSegment].duplicate();
+        source.position((frame % m_FramesPerSegment) * m_FrameSize);
+        source.limit(source.position() + m_FrameSize);
+
+        ByteBuffer target = destination.duplicate();
+        target.clear();
+        target.put(source);
+
+        m_FrameIndex++;
+
+        return true;
+    }
+
+    public void stop()
+    {
+        // the mappings are released when they are garbage collected
+        m_Segments = null;
+    }
+
+    /**
+     * Closes the file.  The source can't be started again afterwards.
+     */
+    public void close()
+    {
+        stop();
+
+        try
+        {
+            m_RandomAccessFile.close();
+        }
+        catch (IOException x)
+        {
+            // nothing was written so there is nothing to lose
+        }
+    }
+}
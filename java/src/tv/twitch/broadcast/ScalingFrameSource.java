@@ -0,0 +1,178 @@
+package tv.twitch.broadcast;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Captures frames at the size of the game window with another FrameSource and scales them to the broadcast resolution.  The output
+ * resolution from getRecommendedVideoParams() usually differs from the window size but captureFrameBuffer_ReadPixels can only capture
+ * the whole window, so without this the game would have to render a second pass at the broadcast size.
+ *
+ * The window sized capture goes into a staging buffer owned by this source and is then scaled into the pooled FrameBuffer.  The staging
+ * buffer and filter weights are only reallocated when the window size changes.
+ */
+public class ScalingFrameSource implements FrameSource
+{
+    protected final Stream m_Stream;
+    protected final FrameSource m_Source;
+    protected final FrameScaler m_Scaler;
+    protected FrameScaler.Filter m_Filter = FrameScaler.Filter.Bilinear;
+
+    protected VideoParams m_VideoParams = null;     //!< The broadcast VideoParams.
+    protected int m_WindowWidth = 0;
+    protected int m_WindowHeight = 0;
+    protected boolean m_SourceStarted = false;
+    protected boolean m_Reconfigure = false;        //!< The window size or filter changed and will be applied at the next capture.
+    protected FrameBuffer m_StagingBuffer = null;
+    protected FrameBufferView m_StagingView = null;
+
+    /**
+     * @param stream The stream used to allocate the staging buffer.
+     * @param source The source which captures at window size.  It is started with the window size as the output size.
+     * @param executor The executor the scaling passes run on.
+     * @param windowWidth The width of the game window.
+     * @param windowHeight The height of the game window.
+     */
+    public ScalingFrameSource(Stream stream, FrameSource source, ParallelBandExecutor executor, int windowWidth, int windowHeight)
+    {
+        m_Stream = stream;
+        m_Source = source;
+        m_Scaler = new FrameScaler(executor);
+        m_WindowWidth = windowWidth;
+        m_WindowHeight = windowHeight;
+    }
+
+    public FrameScaler.Filter getFilter()
+    {
+        return m_Filter;
+    }
+    public void setFilter(FrameScaler.Filter value)
+    {
+        m_Filter = value;
+        m_Reconfigure = true;
+    }
+
+    /**
+     * Sets the size of the game window.  This should be called when the window is resized and takes effect at the next capture.
+     */
+    public void setWindowSize(int width, int height)
+    {
+        if (width == m_WindowWidth && height == m_WindowHeight)
+        {
+            return;
+        }
+
+        m_WindowWidth = width;
+        m_WindowHeight = height;
+        m_Reconfigure = true;
+    }
+
+    public int getWindowWidth()
+    {
+        return m_WindowWidth;
+    }
+
+    public int getWindowHeight()
+    {
+        return m_WindowHeight;
+    }
+
+    public boolean start(VideoParams videoParams)
+    {
+        m_VideoParams = videoParams.clone();
+        m_Reconfigure = false;
+
+        return startSource();
+    }
+
+    public boolean captureFrame(FrameBuffer buffer)
+    {
+        if (m_Reconfigure)
+        {
+            m_Reconfigure = false;
+            stopSource();
+            if (!startSource())
+            {
+                return false;
+            }
+        }
+
+        if (!m_SourceStarted || !m_Source.captureFrame(m_StagingBuffer))
+        {
+            return false;
+        }
+
+        ByteBuffer source = m_StagingView.getBytes();
+        ByteBuffer dest = FrameBufferView.getBytes(buffer);
+        if (source == null || dest == null)
+        {
+            return false;
+        }
+
+        m_Scaler.scale(source, dest);
+
+        return true;
+    }
+
+    public void stop()
+    {
+        stopSource();
+        m_VideoParams = null;
+    }
+
+    /**
+     * Starts the wrapped source at window size and prepares the staging buffer and scaler.
+     */
+    protected boolean startSource()
+    {
+        if (m_WindowWidth <= 0 || m_WindowHeight <= 0 || !FrameBufferMemory.getIsAvailable())
+        {
+            return false;
+        }
+
+        m_StagingBuffer = m_Stream.allocateFrameBuffer(m_WindowWidth * m_WindowHeight * 4);
+        if (m_StagingBuffer == null || !m_StagingBuffer.getIsValid())
+        {
+            m_StagingBuffer = null;
+            return false;
+        }
+        FrameBufferLeakDetector.track(m_StagingBuffer);
+        m_StagingView = FrameBufferView.register(m_StagingBuffer);
+
+        VideoParams windowParams = m_VideoParams.clone();
+        windowParams.outputWidth = m_WindowWidth;
+        windowParams.outputHeight = m_WindowHeight;
+
+        if (!m_Source.start(windowParams))
+        {
+            FrameBufferView.unregister(m_StagingBuffer);
+            FrameBufferLeakDetector.untrack(m_StagingBuffer);
+            m_StagingView = null;
+            m_StagingBuffer.free();
+            m_StagingBuffer = null;
+            return false;
+        }
+
+        m_Scaler.configure(m_WindowWidth, m_WindowHeight, m_VideoParams.outputWidth, m_VideoParams.outputHeight, m_Filter);
+        m_SourceStarted = true;
+
+        return true;
+    }
+
+    protected void stopSource()
+    {
+        if (m_SourceStarted)
+        {
+            m_Source.stop();
+            m_SourceStarted = false;
+        }
+
+        if (m_StagingBuffer != null)
+        {
+            FrameBufferView.unregister(m_StagingBuffer);
+            FrameBufferLeakDetector.untrack(m_StagingBuffer);
+            m_StagingView = null;
+            m_StagingBuffer.free();
+            m_StagingBuffer = null;
+        }
+    }
+}
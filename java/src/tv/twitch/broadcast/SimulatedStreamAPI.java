@@ -0,0 +1,1106 @@
+package tv.twitch.broadcast;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import tv.twitch.AuthToken;
+import tv.twitch.ErrorCode;
+
+/**
+ * A StreamAPI implemented in Java which simulates the SDK and the Twitch servers, so the broadcast code can be load tested and benchmarked
+ * on machines without the native libraries.  Pass it to a Stream and the Stream to the BroadcastController.
+ *
+ * The simulation models:
+ *
+ * - Frame buffers backed by direct ByteBuffers, so FrameBufferMemory and FrameBufferView work on them as on real buffers.
+ * - An encoder which takes a fixed time per frame and holds at most a fixed number of frames.  A frame is unlocked once it has been
+ *   encoded, so unlocks are delayed behind the frames queued before it.  Frames submitted while the queue is full are dropped and
+ *   unlocked straight away with the TTV_WRN_FRAMES_QUEUEING warning.
+ * - An upstream link with a bandwidth and round trip time.  Encoded frames are sent at the bitrate of the broadcast, which adaptive
+ *   bitrate caps at 90% of the bandwidth.  Frames which would wait in the send buffer for longer than the send backlog limit are dropped.
+ * - The RTMP states a real broadcast goes through while connecting and stopping, reported through IStatCallbacks, with each step taking
+ *   one round trip.  Web API requests take two round trips.
+ * - Scripted failures of any request with failNext(), and disconnects in the middle of a broadcast with disconnectAfter().
+ *
+ * A FrameListener can be set to see the pixels of every frame the encoder accepts, to check what a broadcast would have sent.
+ *
+ * Like the SDK every callback, including buffer unlocks, is delivered from pollTasks().  All the other methods are synchronized and can be
+ * called from any thread.  Times come from System.nanoTime().
+ */
+public class SimulatedStreamAPI extends StreamAPI
+{
+    /**
+     * The requests which can be made to fail with failNext().
+     */
+    public enum Request
+    {
+        RequestAuthToken,
+        Login,
+        GetIngestServers,
+        GetUserInfo,
+        GetStreamInfo,
+        SetStreamInfo,
+        GetArchivingState,
+        RunCommercial,
+        GetGameNameList,
+        SendMetaData,
+        Start,
+        Stop
+    }
+
+    /**
+     * Sees the pixels of the frames the simulated encoder accepts.
+     */
+    public interface FrameListener
+    {
+        /**
+         * Called from submitVideoFrame() on the submitting thread with the lock of the API held, so it should return quickly.
+         * @param frame The memory of the frame in native byte order.  Its position and limit may be changed but the pixels must not be.
+         * @param address The address of the frame buffer.
+         */
+        void frameSubmitted(ByteBuffer frame, long address);
+    }
+
+    /**
+     * A frame in the encoder or the send buffer.
+     */
+    protected static class QueuedFrame
+    {
+        public long address = 0;
+        public long encodedTime = 0;    //!< When the encoder finishes the frame and unlocks it.
+        public long arrivalTime = 0;    //!< When the last byte of the frame reaches the server.
+        public int size = 0;            //!< The encoded size in bytes.
+    }
+
+    /**
+     * Something which happens at a point in the simulation.  The state change is applied in pollTasks() with the lock held and the
+     * callback is delivered after the lock is released.
+     */
+    protected static class Event implements Comparable<Event>
+    {
+        public long time = 0;
+        public long sequence = 0;       //!< Keeps events at the same time in the order they were scheduled.
+        public RTMPState state = null;
+        public Runnable callback = null;
+
+        public int compareTo(Event other)
+        {
+            if (time != other.time)
+            {
+                return time < other.time ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * Delivers a result to whichever IStreamCallbacks is set when the callback runs.
+     */
+    protected abstract class StreamCallback implements Runnable
+    {
+        public void run()
+        {
+            IStreamCallbacks callbacks = m_StreamCallbacks;
+            if (callbacks != null)
+            {
+                deliver(callbacks);
+            }
+        }
+
+        protected abstract void deliver(IStreamCallbacks callbacks);
+    }
+
+    private static final int s_Alignment = 64;     //!< The alignment of buffer addresses, matching the SDK's allocator.
+    private static final int s_FillChunkSize = 4096;
+
+    protected volatile IStreamCallbacks m_StreamCallbacks = null;
+    protected volatile IStatCallbacks m_StatCallbacks = null;
+
+    protected final Map<Long, ByteBuffer> m_Buffers = new HashMap<Long, ByteBuffer>();      //!< The memory of each allocated buffer by address.
+    protected final PriorityQueue<Event> m_Events = new PriorityQueue<Event>();
+    protected final ArrayDeque<QueuedFrame> m_EncoderQueue = new ArrayDeque<QueuedFrame>();
+    protected final ArrayDeque<QueuedFrame> m_SendQueue = new ArrayDeque<QueuedFrame>();
+    protected final List<Long> m_DroppedFrames = new ArrayList<Long>();     //!< Frames dropped at submission to unlock in the next poll.
+    protected final Map<Request, ErrorCode> m_Failures = new EnumMap<Request, ErrorCode>(Request.class);
+    protected final Map<AudioDeviceType, Float> m_Volumes = new EnumMap<AudioDeviceType, Float>(AudioDeviceType.class);
+    protected final Random m_Random;
+    protected long m_NextSequence = 0;
+    protected long m_NextSpanId = 1;
+    protected String m_UserName = "simulated";
+
+    protected long m_EncodeNanos = 4000000;
+    protected int m_EncoderQueueSize = 8;
+    protected int m_BandwidthKbps = 5000;
+    protected long m_RoundTripNanos = 50000000;
+    protected long m_MaxSendBacklogNanos = 2000000000L;
+
+    protected RTMPState m_RtmpState = RTMPState.Idle;
+    protected VideoParams m_VideoParams = null;
+    protected boolean m_BandwidthTest = false;
+    protected long m_StartTime = 0;             //!< When the broadcast reached SendVideo.
+    protected long m_EncoderFreeAt = 0;
+    protected long m_LinkFreeAt = 0;
+    protected boolean m_Connecting = false;    //!< The startCallback is still to come.
+    protected long m_DisconnectAt = 0;
+    protected ErrorCode m_DisconnectError = ErrorCode.TTV_EC_SOCKET_ECONNRESET;
+    protected FrameListener m_FrameListener = null;
+
+    protected long m_NumSubmitted = 0;
+    protected long m_NumEncoded = 0;
+    protected long m_NumQueueDrops = 0;
+    protected long m_NumNetworkDrops = 0;
+    protected long m_BytesSent = 0;
+
+    public SimulatedStreamAPI()
+    {
+        this(0);
+    }
+
+    /**
+     * @param seed The seed for randomizeFrameBuffer().
+     */
+    public SimulatedStreamAPI(long seed)
+    {
+        m_Random = new Random(seed);
+    }
+
+    //region Configuration
+
+    /**
+     * The time the encoder takes for each frame in milliseconds.
+     */
+    public synchronized double getEncodeMillis()
+    {
+        return m_EncodeNanos / 1e6;
+    }
+    public synchronized void setEncodeMillis(double value)
+    {
+        m_EncodeNanos = (long)(Math.max(0, value) * 1e6);
+    }
+
+    /**
+     * The most frames the encoder holds, including frames which are encoded but not yet unlocked.
+     */
+    public synchronized int getEncoderQueueSize()
+    {
+        return m_EncoderQueueSize;
+    }
+    public synchronized void setEncoderQueueSize(int value)
+    {
+        m_EncoderQueueSize = Math.max(1, value);
+    }
+
+    /**
+     * The upstream bandwidth in kilobits per second, or 0 for unlimited.  This can be changed during a broadcast.
+     */
+    public synchronized int getBandwidthKbps()
+    {
+        return m_BandwidthKbps;
+    }
+    public synchronized void setBandwidthKbps(int value)
+    {
+        m_BandwidthKbps = Math.max(0, value);
+    }
+
+    /**
+     * The round trip time to the servers in milliseconds.
+     */
+    public synchronized long getRoundTripMillis()
+    {
+        return m_RoundTripNanos / 1000000;
+    }
+    public synchronized void setRoundTripMillis(long value)
+    {
+        m_RoundTripNanos = Math.max(0, value) * 1000000;
+    }
+
+    /**
+     * The longest time in milliseconds an encoded frame can wait to be sent before it is dropped.
+     */
+    public synchronized long getMaxSendBacklogMillis()
+    {
+        return m_MaxSendBacklogNanos / 1000000;
+    }
+    public synchronized void setMaxSendBacklogMillis(long value)
+    {
+        m_MaxSendBacklogNanos = Math.max(0, value) * 1000000;
+    }
+
+    /**
+     * Makes the next request of the given type fail with the error.  The request itself succeeds and the error is reported by its
+     * callback, as the SDK does for failures on the server.
+     */
+    public synchronized void failNext(Request request, ErrorCode error)
+    {
+        m_Failures.put(request, error);
+    }
+
+    /**
+     * Drops the connection the given time from now.  If no broadcast is sending video by then the disconnect happens as soon as one is.
+     * The RTMP state goes to Error, queued frames are unlocked and further submissions fail with the error until the broadcast is stopped.
+     */
+    public synchronized void disconnectAfter(long millis, ErrorCode error)
+    {
+        m_DisconnectAt = System.nanoTime() + Math.max(0, millis) * 1000000;
+        m_DisconnectError = error;
+    }
+
+    /**
+     * Receives the pixels of each frame the encoder accepts, or null for none.
+     */
+    public synchronized FrameListener getFrameListener()
+    {
+        return m_FrameListener;
+    }
+    public synchronized void setFrameListener(FrameListener value)
+    {
+        m_FrameListener = value;
+    }
+
+    //endregion
+
+    //region Statistics
+
+    public synchronized RTMPState getRtmpState()
+    {
+        return m_RtmpState;
+    }
+
+    /**
+     * The number of frames submitted in the current or last broadcast.
+     */
+    public synchronized long getSubmittedCount()
+    {
+        return m_NumSubmitted;
+    }
+
+    /**
+     * The number of frames encoded in the current or last broadcast.
+     */
+    public synchronized long getEncodedCount()
+    {
+        return m_NumEncoded;
+    }
+
+    /**
+     * The number of frames dropped because the encoder queue was full.
+     */
+    public synchronized long getQueueDropCount()
+    {
+        return m_NumQueueDrops;
+    }
+
+    /**
+     * The number of encoded frames dropped because the link couldn't keep up.
+     */
+    public synchronized long getNetworkDropCount()
+    {
+        return m_NumNetworkDrops;
+    }
+
+    /**
+     * The number of bytes which have reached the server in the current or last broadcast.
+     */
+    public synchronized long getBytesSent()
+    {
+        return m_BytesSent;
+    }
+
+    /**
+     * The number of frames held by the encoder.
+     */
+    public synchronized int getQueuedFrameCount()
+    {
+        return m_EncoderQueue.size();
+    }
+
+    /**
+     * Whether or not the simulated SDK still holds the buffer, from when it is submitted until its unlock is due.
+     */
+    public synchronized boolean getIsHeld(long address)
+    {
+        for (QueuedFrame frame : m_EncoderQueue)
+        {
+            if (frame.address == address)
+            {
+                return true;
+            }
+        }
+
+        return m_DroppedFrames.contains(address);
+    }
+
+    /**
+     * The number of buffers allocated and not freed.
+     */
+    public synchronized int getAllocatedBufferCount()
+    {
+        return m_Buffers.size();
+    }
+
+    //endregion
+
+    //region Callbacks
+
+    public void setStreamCallbacks(IStreamCallbacks callbacks)
+    {
+        m_StreamCallbacks = callbacks;
+    }
+
+    public IStreamCallbacks getStreamCallbacks()
+    {
+        return m_StreamCallbacks;
+    }
+
+    public void setStatCallbacks(IStatCallbacks callbacks)
+    {
+        m_StatCallbacks = callbacks;
+    }
+
+    public IStatCallbacks getStatCallbacks()
+    {
+        return m_StatCallbacks;
+    }
+
+    public ErrorCode pollTasks()
+    {
+        List<Runnable> due = new ArrayList<Runnable>();
+        synchronized (this)
+        {
+            advance(System.nanoTime(), due);
+        }
+
+        for (int i = 0; i < due.size(); ++i)
+        {
+            due.get(i).run();
+        }
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    public ErrorCode pollStats()
+    {
+        RTMPState state;
+        long sent;
+        synchronized (this)
+        {
+            state = m_RtmpState;
+            sent = m_BytesSent;
+        }
+
+        IStatCallbacks callbacks = m_StatCallbacks;
+        if (callbacks != null)
+        {
+            callbacks.statCallback(StatType.TTV_ST_RTMPSTATE, state.getValue());
+            callbacks.statCallback(StatType.TTV_ST_RTMPDATASENT, sent);
+        }
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    //endregion
+
+    //region Web API
+
+    public synchronized ErrorCode requestAuthToken(AuthParams authParams)
+    {
+        final ErrorCode result = takeFailure(Request.RequestAuthToken);
+        final AuthToken token = new AuthToken();
+        if (ErrorCode.succeeded(result))
+        {
+            m_UserName = authParams.userName;
+            token.data = "simulated:" + authParams.userName;
+        }
+
+        scheduleRequest(new StreamCallback()
+        {
+            protected void deliver(IStreamCallbacks callbacks)
+            {
+                callbacks.requestAuthTokenCallback(result, token);
+            }
+        });
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    public synchronized ErrorCode login(AuthToken authToken)
+    {
+        final ErrorCode result = authToken == null || !authToken.getIsValid() ? ErrorCode.TTV_EC_INVALID_AUTHTOKEN : takeFailure(Request.Login);
+        final ChannelInfo info = new ChannelInfo();
+        info.name = m_UserName;
+        info.displayName = m_UserName;
+        info.channelUrl = "http://www.twitch.tv/" + m_UserName;
+
+        scheduleRequest(new StreamCallback()
+        {
+            protected void deliver(IStreamCallbacks callbacks)
+            {
+                callbacks.loginCallback(result, info);
+            }
+        });
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    public synchronized ErrorCode getIngestServers(AuthToken authToken)
+    {
+        final ErrorCode result = takeFailure(Request.GetIngestServers);
+        IngestServer[] servers = new IngestServer[2];
+        for (int i = 0; i < servers.length; ++i)
+        {
+            servers[i] = new IngestServer();
+            servers[i].serverName = "Simulated " + (i + 1);
+            servers[i].serverUrl = "rtmp://simulated-" + (i + 1) + ".twitch.tv/app/{stream_key}";
+            servers[i].defaultServer = i == 0;
+        }
+        final IngestList list = new IngestList(ErrorCode.succeeded(result) ? servers : new IngestServer[0]);
+
+        scheduleRequest(new StreamCallback()
+        {
+            protected void deliver(IStreamCallbacks callbacks)
+            {
+                callbacks.getIngestServersCallback(result, list);
+            }
+        });
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    public synchronized ErrorCode getUserInfo(AuthToken authToken)
+    {
+        final ErrorCode result = takeFailure(Request.GetUserInfo);
+        final UserInfo info = new UserInfo();
+        info.name = m_UserName;
+        info.displayName = m_UserName;
+
+        scheduleRequest(new StreamCallback()
+        {
+            protected void deliver(IStreamCallbacks callbacks)
+            {
+                callbacks.getUserInfoCallback(result, info);
+            }
+        });
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    public synchronized ErrorCode getStreamInfo(AuthToken authToken, String channel)
+    {
+        ErrorCode failure = takeFailure(Request.GetStreamInfo);
+        final ErrorCode result = ErrorCode.succeeded(failure) && m_RtmpState != RTMPState.SendVideo ? ErrorCode.TTV_EC_WEBAPI_RESULT_NO_STREAMINFO : failure;
+        final StreamInfo info = new StreamInfo();
+        info.streamId = m_StartTime;
+        info.viewers = 0;
+
+        scheduleRequest(new StreamCallback()
+        {
+            protected void deliver(IStreamCallbacks callbacks)
+            {
+                callbacks.getStreamInfoCallback(result, info);
+            }
+        });
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    public synchronized ErrorCode setStreamInfo(AuthToken authToken, String channel, StreamInfoForSetting streamInfo)
+    {
+        final ErrorCode result = takeFailure(Request.SetStreamInfo);
+
+        scheduleRequest(new StreamCallback()
+        {
+            protected void deliver(IStreamCallbacks callbacks)
+            {
+                callbacks.setStreamInfoCallback(result);
+            }
+        });
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    public synchronized ErrorCode getArchivingState(AuthToken authToken)
+    {
+        final ErrorCode result = takeFailure(Request.GetArchivingState);
+        final ArchivingState state = new ArchivingState();
+        state.recordingEnabled = false;
+
+        scheduleRequest(new StreamCallback()
+        {
+            protected void deliver(IStreamCallbacks callbacks)
+            {
+                callbacks.getArchivingStateCallback(result, state);
+            }
+        });
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    public synchronized ErrorCode runCommercial(AuthToken authToken)
+    {
+        final ErrorCode result = takeFailure(Request.RunCommercial);
+
+        scheduleRequest(new StreamCallback()
+        {
+            protected void deliver(IStreamCallbacks callbacks)
+            {
+                callbacks.runCommercialCallback(result);
+            }
+        });
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    public synchronized ErrorCode getGameNameList(String str)
+    {
+        final ErrorCode result = takeFailure(Request.GetGameNameList);
+        final GameInfoList list = new GameInfoList();
+        GameInfo game = new GameInfo();
+        game.name = str;
+        game.id = str.hashCode() & 0x7fffffff;
+        game.popularity = 1;
+        list.list = new GameInfo[] { game };
+
+        scheduleRequest(new StreamCallback()
+        {
+            protected void deliver(IStreamCallbacks callbacks)
+            {
+                callbacks.getGameNameListCallback(result, list);
+            }
+        });
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    public synchronized ErrorCode sendActionMetaData(AuthToken authToken, String name, long streamTime, String humanDescription, String data)
+    {
+        final ErrorCode result = takeFailure(Request.SendMetaData);
+
+        scheduleRequest(new StreamCallback()
+        {
+            protected void deliver(IStreamCallbacks callbacks)
+            {
+                callbacks.sendActionMetaDataCallback(result);
+            }
+        });
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    public synchronized long sendStartSpanMetaData(AuthToken authToken, String name, long streamTime, String humanDescription, String data)
+    {
+        final ErrorCode result = takeFailure(Request.SendMetaData);
+
+        scheduleRequest(new StreamCallback()
+        {
+            protected void deliver(IStreamCallbacks callbacks)
+            {
+                callbacks.sendStartSpanMetaDataCallback(result);
+            }
+        });
+        return m_NextSpanId++;
+    }
+
+    public synchronized ErrorCode sendEndSpanMetaData(AuthToken authToken, String name, long streamTime, long sequenceId, String humanDescription, String data)
+    {
+        final ErrorCode result = takeFailure(Request.SendMetaData);
+
+        scheduleRequest(new StreamCallback()
+        {
+            protected void deliver(IStreamCallbacks callbacks)
+            {
+                callbacks.sendEndSpanMetaDataCallback(result);
+            }
+        });
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    //endregion
+
+    //region Audio and video settings
+
+    public synchronized ErrorCode setVolume(AudioDeviceType device, float volume)
+    {
+        m_Volumes.put(device, volume);
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    public synchronized float getVolume(AudioDeviceType device)
+    {
+        Float volume = m_Volumes.get(device);
+        return volume != null ? volume : 1.0f;
+    }
+
+    public ErrorCode getDefaultParams(VideoParams videoParams)
+    {
+        videoParams.outputWidth = 1280;
+        videoParams.outputHeight = 720;
+        videoParams.pixelFormat = PixelFormat.TTV_PF_BGRA;
+        videoParams.maxKbps = 1500;
+        videoParams.targetFps = 30;
+        videoParams.encodingCpuUsage = EncodingCpuUsage.TTV_ECU_HIGH;
+        videoParams.disableAdaptiveBitrate = false;
+        videoParams.verticalFlip = false;
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    /**
+     * The largest resolution with the given bits per pixel at the bitrate, rounded down to multiples of 32 as the SDK requires.
+     */
+    public int[] getMaxResolution(int maxKbps, int frameRate, float bitsPerPixel, float aspectRatio)
+    {
+        double pixels = maxKbps * 1000.0 / Math.max(1, frameRate) / Math.max(0.001f, bitsPerPixel);
+        int height = (int)Math.sqrt(pixels / Math.max(0.001f, aspectRatio));
+        int width = (int)(height * aspectRatio);
+        return new int[] { Math.max(32, width / 32 * 32), Math.max(32, height / 32 * 32) };
+    }
+
+    //endregion
+
+    //region Broadcasting
+
+    public synchronized ErrorCode start(VideoParams videoParams, AudioParams audioParams, IngestServer ingestServer, int flags, boolean async)
+    {
+        if (m_RtmpState != RTMPState.Idle)
+        {
+            return ErrorCode.TTV_EC_STREAM_ALREADY_STARTED;
+        }
+        else if (ingestServer == null)
+        {
+            return ErrorCode.TTV_EC_INVALID_INGEST_SERVER;
+        }
+        else if (videoParams == null || videoParams.outputWidth <= 0 || videoParams.outputHeight <= 0)
+        {
+            return ErrorCode.TTV_EC_INVALID_RESOLUTION;
+        }
+        else if (videoParams.targetFps <= 0)
+        {
+            return ErrorCode.TTV_EC_INVALID_FPS;
+        }
+
+        long now = System.nanoTime();
+        m_VideoParams = videoParams.clone();
+        m_BandwidthTest = (flags & StartFlags.TTV_Start_BandwidthTest.getValue()) != 0;
+        m_NumSubmitted = 0;
+        m_NumEncoded = 0;
+        m_NumQueueDrops = 0;
+        m_NumNetworkDrops = 0;
+        m_BytesSent = 0;
+        m_EncoderFreeAt = now;
+
+        // frames can be submitted while connecting but nothing is sent until the stream is published
+        m_LinkFreeAt = now + 5 * m_RoundTripNanos;
+
+        final ErrorCode result = takeFailure(Request.Start);
+        m_Connecting = true;
+
+        scheduleState(0, RTMPState.Initialize);
+        scheduleState(m_RoundTripNanos, RTMPState.Handshake);
+        scheduleState(2 * m_RoundTripNanos, RTMPState.Connect);
+
+        StreamCallback callback = new StreamCallback()
+        {
+            protected void deliver(IStreamCallbacks callbacks)
+            {
+                callbacks.startCallback(result);
+            }
+        };
+
+        if (ErrorCode.failed(result))
+        {
+            // the connection is refused and the frames submitted so far are released
+            schedule(3 * m_RoundTripNanos, RTMPState.Error, null);
+            schedule(3 * m_RoundTripNanos, RTMPState.Idle, callback);
+            return ErrorCode.TTV_EC_SUCCESS;
+        }
+
+        scheduleState(3 * m_RoundTripNanos, RTMPState.CreateStream);
+        scheduleState(4 * m_RoundTripNanos, RTMPState.Publish);
+        schedule(5 * m_RoundTripNanos, RTMPState.SendVideo, callback);
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    public synchronized ErrorCode stop(boolean async)
+    {
+        if (m_RtmpState == RTMPState.Idle || m_RtmpState == RTMPState.Shutdown)
+        {
+            return ErrorCode.TTV_EC_STREAM_NOT_STARTED;
+        }
+
+        final ErrorCode result = takeFailure(Request.Stop);
+        StreamCallback callback = new StreamCallback()
+        {
+            protected void deliver(IStreamCallbacks callbacks)
+            {
+                callbacks.stopCallback(result);
+            }
+        };
+
+        if (ErrorCode.failed(result))
+        {
+            schedule(m_RoundTripNanos, null, callback);
+            return ErrorCode.TTV_EC_SUCCESS;
+        }
+
+        // a connection in progress is abandoned and reported as aborted
+        Iterator<Event> it = m_Events.iterator();
+        while (it.hasNext())
+        {
+            if (it.next().state != null)
+            {
+                it.remove();
+            }
+        }
+
+        if (m_Connecting)
+        {
+            m_Connecting = false;
+            schedule(0, null, new StreamCallback()
+            {
+                protected void deliver(IStreamCallbacks callbacks)
+                {
+                    callbacks.startCallback(ErrorCode.TTV_EC_REQUEST_ABORTED);
+                }
+            });
+        }
+
+        // the frames in the encoder are discarded and unlocked when the state changes, before the callback
+        scheduleState(0, RTMPState.Shutdown);
+        schedule(m_RoundTripNanos, RTMPState.Idle, callback);
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    public synchronized ErrorCode pauseVideo()
+    {
+        if (m_RtmpState != RTMPState.SendVideo)
+        {
+            return ErrorCode.TTV_EC_STREAM_NOT_STARTED;
+        }
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    public synchronized ErrorCode submitVideoFrame(long frameBuffer)
+    {
+        if (!m_Buffers.containsKey(frameBuffer))
+        {
+            return ErrorCode.TTV_EC_INVALID_BUFFER;
+        }
+        else if (m_RtmpState == RTMPState.Error)
+        {
+            return m_DisconnectError;
+        }
+        else if (m_RtmpState == RTMPState.Idle || m_RtmpState == RTMPState.Shutdown)
+        {
+            return ErrorCode.TTV_EC_STREAM_NOT_STARTED;
+        }
+
+        long now = System.nanoTime();
+        m_NumSubmitted++;
+
+        if (m_EncoderQueue.size() >= m_EncoderQueueSize)
+        {
+            m_NumQueueDrops++;
+            m_DroppedFrames.add(frameBuffer);
+            return ErrorCode.TTV_WRN_FRAMES_QUEUEING;
+        }
+
+        if (m_FrameListener != null)
+        {
+            m_FrameListener.frameSubmitted(m_Buffers.get(frameBuffer).duplicate().order(ByteOrder.nativeOrder()), frameBuffer);
+        }
+
+        QueuedFrame frame = new QueuedFrame();
+        frame.address = frameBuffer;
+        frame.encodedTime = Math.max(now, m_EncoderFreeAt) + m_EncodeNanos;
+        frame.size = getEncodedFrameSize();
+        m_EncoderFreeAt = frame.encodedTime;
+        m_EncoderQueue.add(frame);
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    public synchronized long getStreamTime()
+    {
+        if (m_RtmpState != RTMPState.SendVideo && m_RtmpState != RTMPState.Error)
+        {
+            return 0;
+        }
+
+        return (System.nanoTime() - m_StartTime) / 1000000;
+    }
+
+    //endregion
+
+    //region Frame buffers
+
+    public synchronized long allocateFrameBuffer(int size)
+    {
+        if (size <= 0)
+        {
+            return 0;
+        }
+
+        ByteBuffer memory = ByteBuffer.allocateDirect(size + s_Alignment);
+        long address = FrameBufferMemory.getAddress(memory);
+        if (address == 0)
+        {
+            return 0;
+        }
+
+        int offset = (int)((s_Alignment - address % s_Alignment) % s_Alignment);
+        memory.position(offset);
+        memory.limit(offset + size);
+
+        // the slice keeps the whole allocation reachable until the buffer is freed
+        m_Buffers.put(address + offset, memory.slice());
+
+        return address + offset;
+    }
+
+    public synchronized ErrorCode freeFrameBuffer(long frameBuffer)
+    {
+        return m_Buffers.remove(frameBuffer) != null ? ErrorCode.TTV_EC_SUCCESS : ErrorCode.TTV_EC_INVALID_BUFFER;
+    }
+
+    public synchronized ErrorCode memsetFrameBuffer(long frameBuffer, int size, int value)
+    {
+        ByteBuffer memory = getMemory(frameBuffer, size);
+        if (memory == null)
+        {
+            return ErrorCode.TTV_EC_INVALID_BUFFER;
+        }
+
+        byte[] chunk = new byte[Math.min(size, s_FillChunkSize)];
+        Arrays.fill(chunk, (byte)value);
+        fill(memory, chunk, false);
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    public synchronized ErrorCode randomizeFrameBuffer(long frameBuffer, int size)
+    {
+        ByteBuffer memory = getMemory(frameBuffer, size);
+        if (memory == null)
+        {
+            return ErrorCode.TTV_EC_INVALID_BUFFER;
+        }
+
+        fill(memory, new byte[Math.min(size, s_FillChunkSize)], true);
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    /**
+     * There is no graphics context so the frame is left as it is apart from a counter at the start, which keeps consecutive frames
+     * different.
+     */
+    public synchronized ErrorCode captureFrameBuffer_ReadPixels(long frameBuffer)
+    {
+        ByteBuffer memory = m_Buffers.get(frameBuffer);
+        if (memory == null)
+        {
+            return ErrorCode.TTV_EC_INVALID_BUFFER;
+        }
+
+        if (memory.capacity() >= 8)
+        {
+            memory.putLong(0, m_NumSubmitted);
+        }
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    //endregion
+
+    //region Simulation
+
+    /**
+     * Moves the simulation up to the given time: finishes encoding frames, sends them and applies the events which are due.
+     * @param due Where to add the callbacks to deliver once the lock is released.
+     */
+    protected void advance(long now, List<Runnable> due)
+    {
+        if (m_DisconnectAt != 0 && now >= m_DisconnectAt && m_RtmpState == RTMPState.SendVideo)
+        {
+            m_DisconnectAt = 0;
+            setState(RTMPState.Error, due);
+        }
+
+        for (int i = 0; i < m_DroppedFrames.size(); ++i)
+        {
+            addUnlock(m_DroppedFrames.get(i), due);
+        }
+        m_DroppedFrames.clear();
+
+        while (!m_EncoderQueue.isEmpty() && m_EncoderQueue.peek().encodedTime <= now)
+        {
+            QueuedFrame frame = m_EncoderQueue.poll();
+            addUnlock(frame.address, due);
+            send(frame);
+        }
+
+        while (!m_SendQueue.isEmpty() && m_SendQueue.peek().arrivalTime <= now)
+        {
+            m_BytesSent += m_SendQueue.poll().size;
+        }
+
+        while (!m_Events.isEmpty() && m_Events.peek().time <= now)
+        {
+            Event event = m_Events.poll();
+            if (event.state != null)
+            {
+                setState(event.state, due);
+            }
+            if (event.callback != null)
+            {
+                due.add(event.callback);
+            }
+        }
+    }
+
+    /**
+     * Puts an encoded frame on the link, or drops it if the send buffer is already too far behind.
+     */
+    protected void send(QueuedFrame frame)
+    {
+        m_NumEncoded++;
+
+        if (m_BandwidthKbps == 0)
+        {
+            frame.arrivalTime = Math.max(frame.encodedTime, m_LinkFreeAt) + m_RoundTripNanos / 2;
+            m_SendQueue.add(frame);
+            return;
+        }
+
+        long sendStart = Math.max(frame.encodedTime, m_LinkFreeAt);
+        if (sendStart - frame.encodedTime > m_MaxSendBacklogNanos)
+        {
+            m_NumNetworkDrops++;
+            return;
+        }
+
+        m_LinkFreeAt = sendStart + frame.size * 8000000L / m_BandwidthKbps;
+        frame.arrivalTime = m_LinkFreeAt + m_RoundTripNanos / 2;
+        m_SendQueue.add(frame);
+    }
+
+    /**
+     * The size of an encoded frame at the current bitrate.  Bandwidth tests send as fast as they can so they saturate the link.
+     */
+    protected int getEncodedFrameSize()
+    {
+        long kbps = m_VideoParams.maxKbps;
+        if (m_BandwidthTest && m_BandwidthKbps > 0)
+        {
+            kbps = 2L * m_BandwidthKbps;
+        }
+        else if (!m_VideoParams.disableAdaptiveBitrate && m_BandwidthKbps > 0)
+        {
+            kbps = Math.min(kbps, m_BandwidthKbps * 9L / 10);
+        }
+
+        return (int)Math.max(1, kbps * 1000 / 8 / m_VideoParams.targetFps);
+    }
+
+    protected void setState(final RTMPState state, List<Runnable> due)
+    {
+        m_RtmpState = state;
+
+        if (state == RTMPState.SendVideo)
+        {
+            m_StartTime = System.nanoTime();
+            m_Connecting = false;
+        }
+        else if (state == RTMPState.Idle)
+        {
+            m_Connecting = false;
+        }
+        else if (state == RTMPState.Error || state == RTMPState.Shutdown)
+        {
+            // nothing more will be encoded so release the frames
+            m_SendQueue.clear();
+            while (!m_EncoderQueue.isEmpty())
+            {
+                addUnlock(m_EncoderQueue.poll().address, due);
+            }
+        }
+
+        due.add(new Runnable()
+        {
+            public void run()
+            {
+                IStatCallbacks callbacks = m_StatCallbacks;
+                if (callbacks != null)
+                {
+                    callbacks.statCallback(StatType.TTV_ST_RTMPSTATE, state.getValue());
+                }
+            }
+        });
+    }
+
+    protected void addUnlock(final long address, List<Runnable> due)
+    {
+        due.add(new StreamCallback()
+        {
+            protected void deliver(IStreamCallbacks callbacks)
+            {
+                callbacks.bufferUnlockCallback(address);
+            }
+        });
+    }
+
+    protected void scheduleRequest(Runnable callback)
+    {
+        schedule(2 * m_RoundTripNanos, null, callback);
+    }
+
+    protected void scheduleState(long delayNanos, RTMPState state)
+    {
+        schedule(delayNanos, state, null);
+    }
+
+    protected void schedule(long delayNanos, RTMPState state, Runnable callback)
+    {
+        Event event = new Event();
+        event.time = System.nanoTime() + delayNanos;
+        event.sequence = m_NextSequence++;
+        event.state = state;
+        event.callback = callback;
+        m_Events.add(event);
+    }
+
+    protected ErrorCode takeFailure(Request request)
+    {
+        ErrorCode error = m_Failures.remove(request);
+        return error != null ? error : ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    protected ByteBuffer getMemory(long frameBuffer, int size)
+    {
+        ByteBuffer memory = m_Buffers.get(frameBuffer);
+        if (memory == null || size > memory.capacity())
+        {
+            return null;
+        }
+
+        ByteBuffer range = memory.duplicate();
+        range.clear().limit(size);
+        return range;
+    }
+
+    protected void fill(ByteBuffer memory, byte[] chunk, boolean randomize)
+    {
+        while (memory.hasRemaining())
+        {
+            if (randomize)
+            {
+                m_Random.nextBytes(chunk);
+            }
+            memory.put(chunk, 0, Math.min(chunk.length, memory.remaining()));
+        }
+    }
+
+    //endregion
+}
@@ -0,0 +1,272 @@
+package tv.twitch.broadcast;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import tv.twitch.AuthToken;
+import tv.twitch.ErrorCode;
+
+/**
+ * Stands in for the stream callbacks while the SDK is polled on a StreamPollWorker, so the callbacks are made on the game thread instead.
+ * Each callback is queued when the SDK makes it and delivered to the target by drain(), in the order the SDK made them.
+ *
+ * bufferUnlockCallback() is the exception.  It is passed straight to the target on the polling thread, so the target must handle it on any
+ * thread, including while the game thread frees the buffers.  It isn't queued since the game thread may be blocked waiting for the buffer.
+ *
+ * The queue is a ConcurrentRing so queueing is lock-free.  If the game thread falls so far behind that the ring fills up, callbacks spill
+ * into an unbounded overflow queue so none are lost and the polling thread never waits.
+ */
+public class StreamCallbackQueue implements IStreamCallbacks
+{
+    protected final IStreamCallbacks m_StreamTarget;
+    protected final ConcurrentRing<Runnable> m_Queue;
+    protected final ConcurrentLinkedQueue<Runnable> m_Overflow = new ConcurrentLinkedQueue<Runnable>();  //!< Used while the ring is full, and until it has been drained.
+    protected volatile long m_NumOverflowed = 0;
+
+    /**
+     * @param streamTarget Receives the stream callbacks on the thread which calls drain().
+     * @param capacity The number of callbacks which can be queued before spilling into the overflow.
+     */
+    public StreamCallbackQueue(IStreamCallbacks streamTarget, int capacity)
+    {
+        m_StreamTarget = streamTarget;
+        m_Queue = new ConcurrentRing<Runnable>(capacity);
+    }
+
+    /**
+     * The approximate number of callbacks waiting to be delivered.
+     */
+    public int size()
+    {
+        return m_Queue.size() + m_Overflow.size();
+    }
+
+    /**
+     * The number of callbacks which didn't fit in the ring.  These are still delivered but the queue allocated for them.
+     */
+    public long getOverflowCount()
+    {
+        return m_NumOverflowed;
+    }
+
+    /**
+     * Delivers queued callbacks to the target until the queue is empty or the time budget is used up.  At least one callback is delivered
+     * if any are waiting, so the queue always makes progress.  This must only be called from one thread.
+     * @param budgetNanos The time to spend delivering callbacks or a negative value to deliver all of them.
+     * @return The number of callbacks delivered.
+     */
+    public int drain(long budgetNanos)
+    {
+        long start = System.nanoTime();
+        int count = 0;
+
+        for (;;)
+        {
+            // the ring always holds the older callbacks since nothing goes into it while the overflow has any
+            Runnable callback = m_Queue.poll();
+            if (callback == null)
+            {
+                callback = m_Overflow.poll();
+                if (callback == null)
+                {
+                    break;
+                }
+            }
+
+            callback.run();
+            count++;
+
+            if (budgetNanos >= 0 && System.nanoTime() - start >= budgetNanos)
+            {
+                break;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Throws away the queued callbacks without delivering them.
+     */
+    public void clear()
+    {
+        while (m_Queue.poll() != null)
+        {
+        }
+
+        m_Overflow.clear();
+    }
+
+    protected void post(Runnable callback)
+    {
+        if (m_Overflow.isEmpty() && m_Queue.offer(callback))
+        {
+            return;
+        }
+
+        m_Overflow.offer(callback);
+        m_NumOverflowed++;
+    }
+
+    //region IStreamCallbacks
+
+    public void requestAuthTokenCallback(final ErrorCode result, final AuthToken authToken)
+    {
+        post(new Runnable()
+        {
+            public void run()
+            {
+                m_StreamTarget.requestAuthTokenCallback(result, authToken);
+            }
+        });
+    }
+
+    public void loginCallback(final ErrorCode result, final ChannelInfo channelInfo)
+    {
+        post(new Runnable()
+        {
+            public void run()
+            {
+                m_StreamTarget.loginCallback(result, channelInfo);
+            }
+        });
+    }
+
+    public void getIngestServersCallback(final ErrorCode result, final IngestList ingestList)
+    {
+        post(new Runnable()
+        {
+            public void run()
+            {
+                m_StreamTarget.getIngestServersCallback(result, ingestList);
+            }
+        });
+    }
+
+    public void getUserInfoCallback(final ErrorCode result, final UserInfo userInfo)
+    {
+        post(new Runnable()
+        {
+            public void run()
+            {
+                m_StreamTarget.getUserInfoCallback(result, userInfo);
+            }
+        });
+    }
+
+    public void getStreamInfoCallback(final ErrorCode result, final StreamInfo streamInfo)
+    {
+        post(new Runnable()
+        {
+            public void run()
+            {
+                m_StreamTarget.getStreamInfoCallback(result, streamInfo);
+            }
+        });
+    }
+
+    public void getArchivingStateCallback(final ErrorCode result, final ArchivingState state)
+    {
+        post(new Runnable()
+        {
+            public void run()
+            {
+                m_StreamTarget.getArchivingStateCallback(result, state);
+            }
+        });
+    }
+
+    public void runCommercialCallback(final ErrorCode result)
+    {
+        post(new Runnable()
+        {
+            public void run()
+            {
+                m_StreamTarget.runCommercialCallback(result);
+            }
+        });
+    }
+
+    public void setStreamInfoCallback(final ErrorCode result)
+    {
+        post(new Runnable()
+        {
+            public void run()
+            {
+                m_StreamTarget.setStreamInfoCallback(result);
+            }
+        });
+    }
+
+    public void getGameNameListCallback(final ErrorCode result, final GameInfoList list)
+    {
+        post(new Runnable()
+        {
+            public void run()
+            {
+                m_StreamTarget.getGameNameListCallback(result, list);
+            }
+        });
+    }
+
+    public void bufferUnlockCallback(long address)
+    {
+        m_StreamTarget.bufferUnlockCallback(address);
+    }
+
+    public void startCallback(final ErrorCode ret)
+    {
+        post(new Runnable()
+        {
+            public void run()
+            {
+                m_StreamTarget.startCallback(ret);
+            }
+        });
+    }
+
+    public void stopCallback(final ErrorCode ret)
+    {
+        post(new Runnable()
+        {
+            public void run()
+            {
+                m_StreamTarget.stopCallback(ret);
+            }
+        });
+    }
+
+    public void sendActionMetaDataCallback(final ErrorCode ret)
+    {
+        post(new Runnable()
+        {
+            public void run()
+            {
+                m_StreamTarget.sendActionMetaDataCallback(ret);
+            }
+        });
+    }
+
+    public void sendStartSpanMetaDataCallback(final ErrorCode ret)
+    {
+        post(new Runnable()
+        {
+            public void run()
+            {
+                m_StreamTarget.sendStartSpanMetaDataCallback(ret);
+            }
+        });
+    }
+
+    public void sendEndSpanMetaDataCallback(final ErrorCode ret)
+    {
+        post(new Runnable()
+        {
+            public void run()
+            {
+                m_StreamTarget.sendEndSpanMetaDataCallback(ret);
+            }
+        });
+    }
+
+    //endregion
+}
@@ -0,0 +1,125 @@
+package tv.twitch.broadcast;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import tv.twitch.ErrorCode;
+import tv.twitch.trace.TraceRecorder;
+
+/**
+ * A thread which polls the SDK so slow tasks, such as the web API requests, don't stall the game thread.  It calls Stream.pollTasks() at a
+ * fixed interval, so the SDK makes its callbacks on this thread.  Pair it with a StreamCallbackQueue to get the callbacks back onto the
+ * game thread.
+ */
+public class StreamPollWorker implements Runnable
+{
+    protected static final int s_TracePollTasks = TraceRecorder.registerEvent("pollTasks", "broadcast");
+
+    protected final Stream m_Stream;
+    protected final long m_IntervalNanos;
+    protected final AtomicReference<ErrorCode> m_PendingError = new AtomicReference<ErrorCode>(null);
+    protected Thread m_Thread = null;
+    protected volatile boolean m_Running = false;
+    protected volatile long m_NumPolls = 0;
+
+    /**
+     * @param stream The stream to poll.
+     * @param intervalNanos The time between polls.
+     */
+    public StreamPollWorker(Stream stream, long intervalNanos)
+    {
+        m_Stream = stream;
+        m_IntervalNanos = intervalNanos;
+    }
+
+    public boolean getIsRunning()
+    {
+        return m_Running;
+    }
+
+    /**
+     * The number of times the SDK has been polled.
+     */
+    public long getPollCount()
+    {
+        return m_NumPolls;
+    }
+
+    /**
+     * Returns the first error pollTasks() has returned since the last call, or null if there hasn't been one.
+     */
+    public ErrorCode takePendingError()
+    {
+        return m_PendingError.getAndSet(null);
+    }
+
+    /**
+     * Starts the polling thread.
+     */
+    public void start()
+    {
+        if (m_Running)
+        {
+            return;
+        }
+
+        m_Running = true;
+        m_Thread = new Thread(this, "Twitch SDK polling");
+        m_Thread.setDaemon(true);
+        m_Thread.start();
+    }
+
+    /**
+     * Stops the polling thread and waits for it to exit.  Once this returns the SDK won't make any more callbacks until it is polled again.
+     */
+    public void stop()
+    {
+        if (!m_Running)
+        {
+            return;
+        }
+
+        m_Running = false;
+        LockSupport.unpark(m_Thread);
+
+        boolean interrupted = false;
+        for (;;)
+        {
+            try
+            {
+                m_Thread.join();
+                break;
+            }
+            catch (InterruptedException x)
+            {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        m_Thread = null;
+    }
+
+    public void run()
+    {
+        while (m_Running)
+        {
+            long traceStart = TraceRecorder.begin();
+            ErrorCode ret = m_Stream.pollTasks();
+            TraceRecorder.end(s_TracePollTasks, traceStart);
+
+            if (ErrorCode.failed(ret))
+            {
+                m_PendingError.compareAndSet(null, ret);
+            }
+
+            m_NumPolls++;
+
+            LockSupport.parkNanos(this, m_IntervalNanos);
+        }
+    }
+}
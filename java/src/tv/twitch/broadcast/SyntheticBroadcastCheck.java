@@ -0,0 +1,256 @@
+package tv.twitch.broadcast;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import tv.twitch.Core;
+import tv.twitch.SimulatedCoreAPI;
+
+/**
+ * Checks the broadcast pipeline end to end without a graphics context or the native libraries.  A BroadcastController broadcasts frames
+ * from a SyntheticFrameSource to a SimulatedStreamAPI, driven by a FrameReplayDriver, and every frame the simulated encoder accepts is
+ * compared pixel by pixel with the colour bars the source should have drawn for it.
+ *
+ * The source scrolls its bars a few pixels every frame, so each frame which arrives is matched against the frames the source could have
+ * generated since the last one which arrived.  Frames dropped before submission show up as skipped frames and copies submitted by the
+ * Duplicate policy as repeats, neither of which is an error.  Anything else, such as a torn or stale frame, is counted as corrupt.
+ *
+ * Usage: SyntheticBroadcastCheck [width] [height] [frames] [seed]
+ *
+ * The exit status is 0 if every frame which arrived was correct and 1 otherwise.
+ */
+public class SyntheticBroadcastCheck implements SimulatedStreamAPI.FrameListener
+{
+    private static final long s_SetupTimeoutMillis = 5000;
+    private static final int s_MaxSkippedFrames = 64;      //!< How far ahead of the last frame which arrived a frame is looked for.
+
+    protected final int m_Width;
+    protected final int m_Height;
+    protected final int m_ScrollSpeed;
+    protected final int[] m_Palette;
+    protected long m_NextIndex = 0;         //!< The index of the earliest frame the source can still send.
+    protected long m_NumChecked = 0;
+    protected long m_NumSkipped = 0;
+    protected long m_NumRepeated = 0;
+    protected long m_NumCorrupt = 0;
+    protected String m_FirstError = null;
+
+    /**
+     * @param videoParams The parameters of the broadcast.
+     * @param scrollSpeed The scroll speed of the SyntheticFrameSource.
+     */
+    public SyntheticBroadcastCheck(VideoParams videoParams, int scrollSpeed)
+    {
+        m_Width = videoParams.outputWidth;
+        m_Height = videoParams.outputHeight;
+        m_ScrollSpeed = scrollSpeed;
+
+        m_Palette = new int[SyntheticFrameSource.s_BarColours.length];
+        for (int i = 0; i < m_Palette.length; ++i)
+        {
+            int[] colour = SyntheticFrameSource.s_BarColours[i];
+            m_Palette[i] = PixelFormatConverter.pack(videoParams.pixelFormat, colour[0], colour[1], colour[2], 255);
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        int width = parseArgument(args, 0, 640);
+        int height = parseArgument(args, 1, 352);
+        int frames = parseArgument(args, 2, 300);
+        int seed = parseArgument(args, 3, 1);
+
+        SimulatedStreamAPI api = new SimulatedStreamAPI(seed);
+        api.setRoundTripMillis(5);
+
+        BroadcastController controller = new BroadcastController(new Core(new SimulatedCoreAPI()), new Stream(api));
+        controller.setClientId("check");
+        controller.setClientSecret("check");
+        if (!controller.initialize() || !controller.requestAuthToken("check", "check") || !pump(controller, true))
+        {
+            System.out.println("Unable to log in to the simulated stream");
+            System.exit(1);
+        }
+
+        VideoParams videoParams = controller.getRecommendedVideoParams(width, height, 30);
+        videoParams.outputWidth = width;
+        videoParams.outputHeight = height;
+
+        SyntheticFrameSource source = new SyntheticFrameSource();
+        SyntheticBroadcastCheck check = new SyntheticBroadcastCheck(videoParams, source.getScrollSpeed());
+        api.setFrameListener(check);
+        controller.setFrameSource(source);
+
+        if (!controller.startBroadcasting(videoParams) || !pump(controller, false) || !controller.getIsBroadcasting())
+        {
+            System.out.println("Unable to start the simulated broadcast");
+            System.exit(1);
+        }
+
+        FrameReplayDriver driver = new FrameReplayDriver(controller, seed);
+        FrameReplayDriver.Result result = driver.run(frames);
+
+        controller.stopBroadcasting();
+        pump(controller, false);
+        controller.shutdown();
+        api.setFrameListener(null);
+
+        System.out.println(String.format("%dx%d: %s", width, height, result));
+        System.out.println(check);
+        System.exit(check.getIsPassed() ? 0 : 1);
+    }
+
+    /**
+     * The number of frames which arrived and were compared.
+     */
+    public synchronized long getCheckedCount()
+    {
+        return m_NumChecked;
+    }
+
+    /**
+     * The number of frames the source generated which never arrived.
+     */
+    public synchronized long getSkippedCount()
+    {
+        return m_NumSkipped;
+    }
+
+    /**
+     * The number of frames which arrived again straight after themselves.
+     */
+    public synchronized long getRepeatedCount()
+    {
+        return m_NumRepeated;
+    }
+
+    /**
+     * The number of frames which didn't match any frame the source could have sent.
+     */
+    public synchronized long getCorruptCount()
+    {
+        return m_NumCorrupt;
+    }
+
+    /**
+     * Whether or not frames arrived and all of them were correct.
+     */
+    public synchronized boolean getIsPassed()
+    {
+        return m_NumChecked > 0 && m_NumCorrupt == 0;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format("%d frames checked, %d skipped, %d repeated, %d corrupt%s", m_NumChecked, m_NumSkipped, m_NumRepeated,
+                             m_NumCorrupt, m_FirstError != null ? ", first: " + m_FirstError : "");
+    }
+
+    public synchronized void frameSubmitted(ByteBuffer frame, long address)
+    {
+        m_NumChecked++;
+
+        if (frame.capacity() < m_Width * m_Height * 4)
+        {
+            fail(String.format("frame %d is %d bytes", m_NumChecked, frame.capacity()));
+            return;
+        }
+
+        IntBuffer pixels = frame.asIntBuffer();
+
+        // the frame which was last sent may come again as a copy, otherwise look for the next one the source drew
+        long first = Math.max(0, m_NextIndex - 1);
+        long index = -1;
+        for (long i = first; i <= m_NextIndex + s_MaxSkippedFrames; ++i)
+        {
+            if (getIsRowEqual(pixels, 0, i))
+            {
+                index = i;
+                break;
+            }
+        }
+
+        if (index < 0)
+        {
+            fail(String.format("frame %d matches none of frames %d to %d", m_NumChecked, first, m_NextIndex + s_MaxSkippedFrames));
+            return;
+        }
+
+        // every row of a frame is the same
+        for (int y = 1; y < m_Height; ++y)
+        {
+            if (!getIsRowEqual(pixels, y * m_Width, index))
+            {
+                fail(String.format("frame %d differs from frame %d of the source at row %d", m_NumChecked, index, y));
+                return;
+            }
+        }
+
+        if (index < m_NextIndex)
+        {
+            m_NumRepeated++;
+        }
+        else
+        {
+            m_NumSkipped += index - m_NextIndex;
+            m_NextIndex = index + 1;
+        }
+    }
+
+    /**
+     * Compares a row of the frame with the same row of the frame the source generated with the given index.
+     */
+    protected boolean getIsRowEqual(IntBuffer pixels, int start, long index)
+    {
+        // the same bars as SyntheticFrameSource draws
+        int barWidth = Math.max(1, m_Width / m_Palette.length);
+        int offset = (int)((index * m_ScrollSpeed) % m_Width);
+
+        for (int x = 0; x < m_Width; ++x)
+        {
+            int bar = (((x + offset) % m_Width) / barWidth) % m_Palette.length;
+            if (pixels.get(start + x) != m_Palette[bar])
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    protected void fail(String error)
+    {
+        m_NumCorrupt++;
+        if (m_FirstError == null)
+        {
+            m_FirstError = error;
+        }
+    }
+
+    private static int parseArgument(String[] args, int index, int defaultValue)
+    {
+        return args.length > index ? Integer.parseInt(args[index]) : defaultValue;
+    }
+
+    /**
+     * Updates the controller until it is ready to broadcast, if waiting for that, or until it is broadcasting or stopped.
+     */
+    private static boolean pump(BroadcastController controller, boolean waitForReady)
+    {
+        long end = System.currentTimeMillis() + s_SetupTimeoutMillis;
+        while (System.currentTimeMillis() < end)
+        {
+            controller.update();
+
+            if (waitForReady ? controller.getIsReadyToBroadcast() : controller.getIsBroadcasting() || controller.getIsReadyToBroadcast())
+            {
+                return true;
+            }
+
+            Thread.yield();
+        }
+
+        return false;
+    }
+}
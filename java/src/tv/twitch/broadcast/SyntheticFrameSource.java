@@ -0,0 +1,100 @@
+package tv.twitch.broadcast;
+
+import java.nio.IntBuffer;
+
+/**
+ * Generates frames on the CPU without a graphics context.  Each frame is a set of vertical colour bars which scroll sideways by a few
+ * pixels every frame so consecutive frames are always different.  This is useful for testing the broadcast pipeline headless.
+ */
+public class SyntheticFrameSource implements FrameSource
+{
+    protected static final int[][] s_BarColours =
+    {
+        { 255, 255, 255 }, { 255, 255, 0 }, { 0, 255, 255 }, { 0, 255, 0 },
+        { 255, 0, 255 }, { 255, 0, 0 }, { 0, 0, 255 }, { 16, 16, 16 }
+    };
+
+    protected int m_Width = 0;
+    protected int m_Height = 0;
+    protected int[] m_Palette = null;   //!< The bar colours packed for the output pixel format.
+    protected int[] m_Row = null;       //!< Scratch space for one row of the frame.
+    protected long m_FrameIndex = 0;
+    protected int m_ScrollSpeed = 4;
+
+    /**
+     * The number of pixels the bars move each frame.
+     */
+    public int getScrollSpeed()
+    {
+        return m_ScrollSpeed;
+    }
+    public void setScrollSpeed(int value)
+    {
+        m_ScrollSpeed = value;
+    }
+
+    /**
+     * The number of frames generated since start() was called.
+     */
+    public long getFrameIndex()
+    {
+        return m_FrameIndex;
+    }
+
+    public boolean start(VideoParams videoParams)
+    {
+        if (!FrameBufferMemory.getIsAvailable())
+        {
+            return false;
+        }
+
+        m_Width = videoParams.outputWidth;
+        m_Height = videoParams.outputHeight;
+        m_Row = new int[m_Width];
+        m_FrameIndex = 0;
+
+        m_Palette = new int[s_BarColours.length];
+        for (int i = 0; i < s_BarColours.length; ++i)
+        {
+            m_Palette[i] = PixelFormatConverter.pack(videoParams.pixelFormat, s_BarColours[i][0], s_BarColours[i][1], s_BarColours[i][2], 255);
+        }
+
+        return true;
+    }
+
+    public boolean captureFrame(FrameBuffer buffer)
+    {
+        FrameBufferView view = FrameBufferView.get(buffer);
+        if (view == null || view.getBytes().capacity() < m_Width * m_Height * 4)
+        {
+            return false;
+        }
+
+        int barWidth = Math.max(1, m_Width / m_Palette.length);
+        int offset = (int)((m_FrameIndex * m_ScrollSpeed) % m_Width);
+
+        for (int x = 0; x < m_Width; ++x)
+        {
+            int bar = (((x + offset) % m_Width) / barWidth) % m_Palette.length;
+            m_Row[x] = m_Palette[bar];
+        }
+
+        // a duplicate so the position of the shared view stays untouched
+        IntBuffer pixels = view.getInts().duplicate();
+        pixels.clear();
+        for (int y = 0; y < m_Height; ++y)
+        {
+            pixels.put(m_Row);
+        }
+
+        m_FrameIndex++;
+
+        return true;
+    }
+
+    public void stop()
+    {
+        m_Row = null;
+        m_Palette = null;
+    }
+}
@@ -3,6 +3,7 @@
 import java.util.*;
 
 import tv.twitch.*;
+import tv.twitch.trace.TraceRecorder;
 
 
 /**
@@ -103,6 +104,9 @@ public class ChatController implements IChatCallbacks
 
     //#region Memeber Variables
 
+    protected static final int s_TraceUpdate = TraceRecorder.registerEvent("update", "chat");
+    protected static final int s_TraceMessages = TraceRecorder.registerEvent("messages", "chat");	//!< The argument is the number of messages.
+
     protected Listener m_Listener = null;
 
     protected String m_UserName = "";
@@ -122,6 +126,7 @@ public class ChatController implements IChatCallbacks
     protected LinkedList<ChatMessage> m_RawMessages = new LinkedList<ChatMessage>();
     protected LinkedList<ChatTokenizedMessage> m_TokenizedMessages = new LinkedList<ChatTokenizedMessage>();
     protected int m_MessageHistorySize = 128;
+    protected volatile int m_MessageRevision = 0;
 
     protected EmoticonMode m_EmoticonMode = EmoticonMode.None;
     protected EmoticonMode m_ActiveEmoticonMode = EmoticonMode.None; 
@@ -212,10 +217,13 @@ public class ChatController implements IChatCallbacks
 
     public void chatChannelMessageCallback(ChatMessageList messageList)
     {
+        TraceRecorder.instant(s_TraceMessages, messageList.messageList.length);
+
         for (int i = 0; i < messageList.messageList.length; ++i)
         {
             m_RawMessages.addLast(messageList.messageList[i]);
         }
+        m_MessageRevision++;
 
         try
         {
@@ -419,6 +427,15 @@ public class ChatController implements IChatCallbacks
         return m_RawMessages.iterator();
     }
 
+    /**
+     * A number which changes whenever raw messages are added to or cleared from the history.  This lets code which presents the messages tell
+     * whether the history changed since it last looked without walking it.
+     */
+    public int getMessageRevision()
+    {
+        return m_MessageRevision;
+    }
+
     /**
      * An iterator for the tokenized chat messages from oldest to newest.
      */
@@ -466,6 +483,16 @@ public class ChatController implements IChatCallbacks
     	m_Chat = new Chat( new StandardChatAPI() );
     }
 
+    /**
+     * Creates a controller which uses the given SDK objects instead of the native ones, for example a Chat around a SimulatedChatAPI for
+     * testing without the native libraries.
+     */
+    public ChatController(Core core, Chat chat)
+    {
+    	m_Core = core;
+    	m_Chat = chat;
+    }
+
     /**
      * Connects to the given channel.  The actual result of the connection attempt will be returned in the Connected / Disconnected event.
      * @param channel The name of the channel.
@@ -606,6 +633,8 @@ public class ChatController implements IChatCallbacks
             return;
         }
 
+        long traceStart = TraceRecorder.begin();
+
         ErrorCode ret = m_Chat.flushEvents();
         if (ErrorCode.failed(ret))
         {
@@ -662,6 +691,8 @@ public class ChatController implements IChatCallbacks
                 break;
             }
         }
+
+        TraceRecorder.end(s_TraceUpdate, traceStart);
     }
 
     /**
@@ -694,6 +725,7 @@ public class ChatController implements IChatCallbacks
     public void clearMessages()
     {
         m_RawMessages.clear();
+        m_MessageRevision++;
 
         try
         {
@@ -0,0 +1,188 @@
+package tv.twitch.chat;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+
+import tv.twitch.broadcast.CompositorLayer;
+
+/**
+ * A compositor layer which shows the most recent chat messages from a ChatController in a box, newest at the bottom.  Call update() on
+ * the game thread after ChatController.update() and the layer is only redrawn when new messages have arrived.
+ */
+public class ChatOverlayLayer extends CompositorLayer
+{
+    protected int m_MaxLines = 8;
+    protected Font m_Font = new Font(Font.SANS_SERIF, Font.PLAIN, 14);
+    protected int m_BackgroundColour = 0x80000000;
+    protected int m_TextColour = 0xFFFFFFFF;
+    protected int m_Padding = 6;
+
+    protected int m_SeenRevision = -1;
+    protected String[] m_Names = new String[0];     //!< The senders of the lines shown.
+    protected String[] m_Messages = new String[0];  //!< The text of the lines shown.
+    protected int[] m_NameColours = new int[0];
+    protected boolean[] m_Actions = new boolean[0];
+
+    protected BufferedImage m_Image = null;
+
+    /**
+     * @param x The left edge of the box in the frame.
+     * @param y The top edge of the box in the frame.
+     * @param width The width of the box.
+     * @param height The height of the box.
+     */
+    public ChatOverlayLayer(int x, int y, int width, int height)
+    {
+        super(x, y, width, height);
+    }
+
+    /**
+     * The most messages shown at once.
+     */
+    public synchronized int getMaxLines()
+    {
+        return m_MaxLines;
+    }
+    public synchronized void setMaxLines(int value)
+    {
+        m_MaxLines = Math.max(1, value);
+        m_SeenRevision = -1;
+    }
+
+    public synchronized Font getFont()
+    {
+        return m_Font;
+    }
+    public synchronized void setFont(Font value)
+    {
+        m_Font = value;
+        invalidate();
+    }
+
+    /**
+     * The colour of the box behind the text as 0xAARRGGBB.
+     */
+    public synchronized int getBackgroundColour()
+    {
+        return m_BackgroundColour;
+    }
+    public synchronized void setBackgroundColour(int value)
+    {
+        m_BackgroundColour = value;
+        invalidate();
+    }
+
+    /**
+     * Takes a copy of the latest messages if the history of the controller has changed.  This must be called on the thread which updates
+     * the controller.
+     */
+    public void update(ChatController controller)
+    {
+        int revision = controller.getMessageRevision();
+        int maxLines;
+
+        synchronized (this)
+        {
+            if (revision == m_SeenRevision)
+            {
+                return;
+            }
+            m_SeenRevision = revision;
+            maxLines = m_MaxLines;
+        }
+
+        // the history only keeps a bounded number of messages so walking it is cheap
+        String[] names = new String[maxLines];
+        String[] messages = new String[maxLines];
+        int[] colours = new int[maxLines];
+        boolean[] actions = new boolean[maxLines];
+        int count = 0;
+
+        Iterator<ChatMessage> iter = controller.getRawMessages();
+        while (iter.hasNext())
+        {
+            ChatMessage message = iter.next();
+            int index = count % names.length;
+            names[index] = message.userName;
+            messages[index] = message.message;
+            colours[index] = message.nameColorARGB;
+            actions[index] = message.action;
+            count++;
+        }
+
+        // unroll the ring so the oldest line is first
+        int lines = Math.min(count, names.length);
+        int first = count - lines;
+
+        synchronized (this)
+        {
+            m_Names = new String[lines];
+            m_Messages = new String[lines];
+            m_NameColours = new int[lines];
+            m_Actions = new boolean[lines];
+            for (int i = 0; i < lines; ++i)
+            {
+                int index = (first + i) % names.length;
+                m_Names[i] = names[index];
+                m_Messages[i] = messages[index];
+                m_NameColours[i] = colours[index];
+                m_Actions[i] = actions[index];
+            }
+
+            invalidate();
+        }
+    }
+
+    @Override
+    protected void rasterize(int[] argb, int width, int height)
+    {
+        if (m_Image == null || m_Image.getWidth() != width || m_Image.getHeight() != height)
+        {
+            m_Image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        }
+
+        Graphics2D g = m_Image.createGraphics();
+        try
+        {
+            g.setComposite(AlphaComposite.Src);
+            g.setColor(new Color(m_BackgroundColour, true));
+            g.fillRect(0, 0, width, height);
+
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.setComposite(AlphaComposite.SrcOver);
+            g.setFont(m_Font);
+            FontMetrics metrics = g.getFontMetrics();
+            int lineHeight = metrics.getHeight();
+
+            // newest at the bottom, older lines are dropped once the box is full
+            int baseline = height - m_Padding - metrics.getDescent();
+            for (int i = m_Names.length - 1; i >= 0 && baseline - metrics.getAscent() >= 0; --i)
+            {
+                String name = m_Names[i] != null ? m_Names[i] : "";
+                String prefix = m_Actions[i] ? name + " " : name + ": ";
+
+                // the SDK reports 0 when the user has no colour set
+                int nameColour = m_NameColours[i] != 0 ? (m_NameColours[i] | 0xFF000000) : m_TextColour;
+                g.setColor(new Color(nameColour, true));
+                g.drawString(prefix, m_Padding, baseline);
+
+                g.setColor(new Color(m_Actions[i] ? nameColour : m_TextColour, true));
+                g.drawString(m_Messages[i] != null ? m_Messages[i] : "", m_Padding + metrics.stringWidth(prefix), baseline);
+
+                baseline -= lineHeight;
+            }
+        }
+        finally
+        {
+            g.dispose();
+        }
+
+        m_Image.getRGB(0, 0, width, height, argb, 0, width);
+    }
+}
@@ -0,0 +1,823 @@
+package tv.twitch.chat;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import tv.twitch.ErrorCode;
+
+/**
+ * A ChatAPI implemented in Java which simulates a busy channel, so the ChatController can be load tested and benchmarked on machines
+ * without the native libraries.  Pass it to a Chat and the Chat to the ChatController.
+ *
+ * Once connected, messages arrive at a base rate with periodic bursts at a multiple of it, and viewers join and leave at a churn rate.
+ * Like the SDK everything is delivered from FlushEvents(), with the messages due since the last flush split into callbacks of at most
+ * the batch size.  queueMessages() adds messages on top of the rate for benchmarks which want a fixed amount of work per flush.
+ *
+ * The messages are drawn from a pool generated from a seed when the API is initialized: users with a skewed share of the messages, some
+ * moderators and subscribers, text of varying length and emoticons.  Each message is delivered both raw and, if tokenization was asked
+ * for, tokenized.  The pooled objects are handed out again each time the pool wraps around, so only the lists are allocated per callback.
+ *
+ * connect failures can be scripted with failNextConnect() and a dropped connection with disconnectAfter().  Like the ChatController this
+ * must only be used from one thread.
+ */
+public class SimulatedChatAPI extends ChatAPI
+{
+    private static final String[] s_Words =
+    {
+        "the", "a", "is", "that", "what", "lol", "gg", "no", "yes", "wow", "nice", "play", "game", "streamer", "chat", "why", "how", "this",
+        "clutch", "rip", "hype", "first", "time", "again", "boss", "fight", "level", "speedrun", "pb", "wr", "insane", "go", "lets", "ez"
+    };
+    private static final String[] s_Emoticons = { "Kappa", "PogChamp", "LUL", "Kreygasm", "4Head", "BibleThump", "ResidentSleeper", "SMOrc" };
+    private static final int s_PoolSize = 4096;
+    private static final ChatUserInfo[] s_NoUsers = new ChatUserInfo[0];
+
+    protected volatile IChatCallbacks m_Callbacks = null;
+    protected final long m_Seed;
+    protected Random m_Random;
+
+    protected double m_MessagesPerSecond = 50;
+    protected double m_BurstFactor = 20;
+    protected long m_BurstIntervalNanos = 10000000000L;
+    protected long m_BurstDurationNanos = 2000000000L;
+    protected int m_MaxBatchSize = 32;
+    protected int m_UserCount = 5000;
+    protected double m_ChurnPerSecond = 20;
+    protected long m_ConnectNanos = 100000000;
+
+    protected boolean m_Initialized = false;
+    protected boolean m_Tokenize = false;
+    protected boolean m_TextureAtlas = false;
+    protected String m_Channel = null;
+    protected ChatUserInfo[] m_Users = null;
+    protected boolean[] m_Present = null;
+    protected int m_PresentCount = 0;
+    protected ChatMessage[] m_Messages = null;
+    protected ChatTokenizedMessage[] m_TokenizedMessages = null;
+    protected int m_NextMessage = 0;
+
+    protected long m_ConnectAt = 0;             //!< When a pending connection completes, or 0.
+    protected boolean m_Connected = false;
+    protected long m_ConnectedAt = 0;
+    protected long m_LastFlush = 0;
+    protected double m_MessageDebt = 0;         //!< Messages due but not yet delivered, including the fraction of the next one.
+    protected double m_ChurnDebt = 0;
+    protected int m_QueuedMessages = 0;
+    protected ErrorCode m_ConnectFailure = null;
+    protected long m_DisconnectAt = 0;
+    protected boolean m_LeavePending = false;
+    protected boolean m_UsersRequested = false;
+    protected boolean m_EmoticonsRequested = false;
+    protected List<ChatMessage> m_SentMessages = new ArrayList<ChatMessage>();
+
+    protected long m_NumDelivered = 0;
+    protected long m_NumCallbacks = 0;
+    protected long m_NumJoins = 0;
+    protected long m_NumLeaves = 0;
+
+    public SimulatedChatAPI()
+    {
+        this(0);
+    }
+
+    /**
+     * @param seed The seed for the users, the messages and the churn.
+     */
+    public SimulatedChatAPI(long seed)
+    {
+        m_Seed = seed;
+    }
+
+    //region Configuration
+
+    /**
+     * The rate messages arrive at outside bursts.
+     */
+    public double getMessagesPerSecond()
+    {
+        return m_MessagesPerSecond;
+    }
+    public void setMessagesPerSecond(double value)
+    {
+        m_MessagesPerSecond = Math.max(0, value);
+    }
+
+    /**
+     * How many times the base rate messages arrive at during a burst.
+     */
+    public double getBurstFactor()
+    {
+        return m_BurstFactor;
+    }
+    public void setBurstFactor(double value)
+    {
+        m_BurstFactor = Math.max(1, value);
+    }
+
+    /**
+     * The time in milliseconds from the start of one burst to the start of the next and how long each burst lasts.  A duration of 0
+     * turns bursts off.
+     */
+    public void setBursts(long intervalMillis, long durationMillis)
+    {
+        m_BurstIntervalNanos = Math.max(1, intervalMillis) * 1000000;
+        m_BurstDurationNanos = Math.max(0, Math.min(intervalMillis, durationMillis)) * 1000000;
+    }
+
+    /**
+     * The most messages delivered by one callback.
+     */
+    public int getMaxBatchSize()
+    {
+        return m_MaxBatchSize;
+    }
+    public void setMaxBatchSize(int value)
+    {
+        m_MaxBatchSize = Math.max(1, value);
+    }
+
+    /**
+     * The number of viewers who may be in the channel.  Half of them are in it when joining.  This takes effect on the next Init().
+     */
+    public int getUserCount()
+    {
+        return m_UserCount;
+    }
+    public void setUserCount(int value)
+    {
+        m_UserCount = Math.max(1, value);
+    }
+
+    /**
+     * The number of viewers joining or leaving per second.
+     */
+    public double getChurnPerSecond()
+    {
+        return m_ChurnPerSecond;
+    }
+    public void setChurnPerSecond(double value)
+    {
+        m_ChurnPerSecond = Math.max(0, value);
+    }
+
+    /**
+     * The time it takes to join the channel in milliseconds.
+     */
+    public void setConnectMillis(long value)
+    {
+        m_ConnectNanos = Math.max(0, value) * 1000000;
+    }
+
+    /**
+     * Makes the next connection attempt fail with the error, reported through chatStatusCallback().
+     */
+    public void failNextConnect(ErrorCode error)
+    {
+        m_ConnectFailure = error;
+    }
+
+    /**
+     * Drops the connection the given time from now, reporting TTV_EC_CHAT_LOST_CONNECTION and leaving the channel.
+     */
+    public void disconnectAfter(long millis)
+    {
+        m_DisconnectAt = System.nanoTime() + Math.max(0, millis) * 1000000;
+    }
+
+    /**
+     * Adds messages to deliver in the next flush on top of the rate.
+     */
+    public void queueMessages(int count)
+    {
+        m_QueuedMessages += Math.max(0, count);
+    }
+
+    //endregion
+
+    //region Statistics
+
+    public boolean getIsConnected()
+    {
+        return m_Connected;
+    }
+
+    /**
+     * The number of messages delivered since joining.
+     */
+    public long getDeliveredCount()
+    {
+        return m_NumDelivered;
+    }
+
+    /**
+     * The number of message callbacks made since joining.
+     */
+    public long getCallbackCount()
+    {
+        return m_NumCallbacks;
+    }
+
+    public long getJoinCount()
+    {
+        return m_NumJoins;
+    }
+
+    public long getLeaveCount()
+    {
+        return m_NumLeaves;
+    }
+
+    /**
+     * The number of viewers in the channel.
+     */
+    public int getPresentCount()
+    {
+        return m_PresentCount;
+    }
+
+    /**
+     * A user from the pool, for building callbacks by hand.
+     */
+    public ChatUserInfo getUser(int index)
+    {
+        return m_Users != null ? m_Users[index % m_Users.length] : null;
+    }
+
+    /**
+     * Builds a list of the next messages from the pool without delivering it, for calling the callbacks directly.
+     */
+    public ChatMessageList nextMessageList(int count)
+    {
+        ChatMessageList list = new ChatMessageList();
+        list.messageList = new ChatMessage[count];
+        for (int i = 0; i < count; ++i)
+        {
+            list.messageList[i] = m_Messages[(m_NextMessage + i) % s_PoolSize];
+        }
+        m_NextMessage = (m_NextMessage + count) % s_PoolSize;
+        return list;
+    }
+
+    /**
+     * Builds an array of the next tokenized messages from the pool without delivering it, for calling the callbacks directly.
+     */
+    public ChatTokenizedMessage[] nextTokenizedMessages(int count)
+    {
+        ChatTokenizedMessage[] messages = new ChatTokenizedMessage[count];
+        for (int i = 0; i < count; ++i)
+        {
+            messages[i] = m_TokenizedMessages[(m_NextMessage + i) % s_PoolSize];
+        }
+        m_NextMessage = (m_NextMessage + count) % s_PoolSize;
+        return messages;
+    }
+
+    //endregion
+
+    //region ChatAPI
+
+    public void setChatCallbacks(IChatCallbacks callbacks)
+    {
+        m_Callbacks = callbacks;
+    }
+
+    public IChatCallbacks getChatCallbacks()
+    {
+        return m_Callbacks;
+    }
+
+    public ErrorCode Init(String channel, boolean tokenize)
+    {
+        if (m_Initialized)
+        {
+            return ErrorCode.TTV_EC_CHAT_ALREADY_INITIALIZED;
+        }
+        else if (channel == null || channel.length() == 0)
+        {
+            return ErrorCode.TTV_EC_CHAT_INVALID_CHANNEL;
+        }
+
+        m_Initialized = true;
+        m_Channel = channel;
+        m_Tokenize = tokenize;
+        m_TextureAtlas = false;
+        m_Random = new Random(m_Seed);
+        m_Connected = false;
+        m_ConnectAt = 0;
+        m_LeavePending = false;
+
+        createUsers();
+        createMessages();
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    public ErrorCode Shutdown()
+    {
+        if (!m_Initialized)
+        {
+            return ErrorCode.TTV_EC_CHAT_NOT_INITIALIZED;
+        }
+
+        m_Initialized = false;
+        m_Connected = false;
+        m_ConnectAt = 0;
+        m_Users = null;
+        m_Present = null;
+        m_Messages = null;
+        m_TokenizedMessages = null;
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    public ErrorCode Connect(String userName, String authToken)
+    {
+        if (authToken == null || authToken.length() == 0)
+        {
+            return ErrorCode.TTV_EC_CHAT_INVALID_LOGIN;
+        }
+
+        return ConnectAnonymous();
+    }
+
+    public ErrorCode ConnectAnonymous()
+    {
+        if (!m_Initialized)
+        {
+            return ErrorCode.TTV_EC_CHAT_NOT_INITIALIZED;
+        }
+        else if (m_Connected || m_ConnectAt != 0)
+        {
+            return ErrorCode.TTV_EC_CHAT_ALREADY_IN_CHANNEL;
+        }
+
+        m_ConnectAt = System.nanoTime() + m_ConnectNanos;
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    public ErrorCode Disconnect()
+    {
+        if (!m_Initialized)
+        {
+            return ErrorCode.TTV_EC_CHAT_NOT_INITIALIZED;
+        }
+
+        m_LeavePending = m_Connected;
+        m_Connected = false;
+        m_ConnectAt = 0;
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    public ErrorCode GetChannelUsers()
+    {
+        if (!m_Connected)
+        {
+            return ErrorCode.TTV_EC_CHAT_NOT_IN_CHANNEL;
+        }
+
+        m_UsersRequested = true;
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    /**
+     * The message is echoed back in the next flush as if it came from the server.
+     */
+    public ErrorCode SendMessage(String message)
+    {
+        if (!m_Connected)
+        {
+            return ErrorCode.TTV_EC_CHAT_NOT_IN_CHANNEL;
+        }
+        else if (message == null || message.length() == 0)
+        {
+            return ErrorCode.TTV_EC_CHAT_INVALID_MESSAGE;
+        }
+
+        ChatMessage sent = new ChatMessage();
+        sent.userName = "simulated";
+        sent.message = message;
+        sent.modes = new HashSet<ChatUserMode>();
+        sent.subscriptions = new HashSet<ChatUserSubscription>();
+        m_SentMessages.add(sent);
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    public ErrorCode FlushEvents()
+    {
+        if (!m_Initialized)
+        {
+            return ErrorCode.TTV_EC_CHAT_NOT_INITIALIZED;
+        }
+
+        IChatCallbacks callbacks = m_Callbacks;
+        long now = System.nanoTime();
+
+        if (m_LeavePending)
+        {
+            m_LeavePending = false;
+            if (callbacks != null)
+            {
+                callbacks.chatChannelMembershipCallback(ChatEvent.TTV_CHAT_LEFT_CHANNEL, createChannelInfo());
+            }
+        }
+
+        if (m_ConnectAt != 0 && now >= m_ConnectAt)
+        {
+            join(callbacks, now);
+        }
+
+        if (m_EmoticonsRequested)
+        {
+            m_EmoticonsRequested = false;
+            if (callbacks != null)
+            {
+                callbacks.emoticonDataDownloadCallback(ErrorCode.TTV_EC_SUCCESS);
+            }
+        }
+
+        if (!m_Connected)
+        {
+            return ErrorCode.TTV_EC_SUCCESS;
+        }
+
+        if (m_DisconnectAt != 0 && now >= m_DisconnectAt)
+        {
+            m_DisconnectAt = 0;
+            m_Connected = false;
+            if (callbacks != null)
+            {
+                callbacks.chatStatusCallback(ErrorCode.TTV_EC_CHAT_LOST_CONNECTION);
+                callbacks.chatChannelMembershipCallback(ChatEvent.TTV_CHAT_LEFT_CHANNEL, createChannelInfo());
+            }
+            return ErrorCode.TTV_EC_SUCCESS;
+        }
+
+        long elapsed = now - m_LastFlush;
+        m_LastFlush = now;
+
+        m_ChurnDebt += m_ChurnPerSecond * elapsed / 1e9;
+        int churn = (int)m_ChurnDebt;
+        m_ChurnDebt -= churn;
+        if (churn > 0)
+        {
+            churnUsers(callbacks, churn);
+        }
+
+        if (m_UsersRequested)
+        {
+            m_UsersRequested = false;
+            if (callbacks != null)
+            {
+                callbacks.chatQueryChannelUsersCallback(createUserList(true));
+            }
+        }
+
+        m_MessageDebt += getRate(now) * elapsed / 1e9;
+        int count = (int)m_MessageDebt;
+        m_MessageDebt -= count;
+        count += m_QueuedMessages;
+        m_QueuedMessages = 0;
+
+        deliverMessages(callbacks, count);
+
+        if (!m_SentMessages.isEmpty())
+        {
+            ChatMessageList list = new ChatMessageList();
+            list.messageList = m_SentMessages.toArray(new ChatMessage[m_SentMessages.size()]);
+            m_SentMessages.clear();
+            if (callbacks != null)
+            {
+                callbacks.chatChannelMessageCallback(list);
+            }
+        }
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    public ErrorCode DownloadEmoticonData(boolean textureAtlas)
+    {
+        if (!m_Initialized)
+        {
+            return ErrorCode.TTV_EC_CHAT_NOT_INITIALIZED;
+        }
+
+        if (textureAtlas != m_TextureAtlas)
+        {
+            m_TextureAtlas = textureAtlas;
+            createMessages();
+        }
+
+        m_EmoticonsRequested = true;
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    public ErrorCode GetEmoticonData(ChatEmoticonData data)
+    {
+        if (!m_Initialized)
+        {
+            return ErrorCode.TTV_EC_CHAT_NOT_INITIALIZED;
+        }
+
+        data.channel = m_Channel;
+        data.textures = new ChatTextureSheet[0];
+        data.badges = new ChatBadgeData();
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    //endregion
+
+    //region Simulation
+
+    /**
+     * The message rate at the given time, which is the base rate multiplied by the burst factor during a burst.
+     */
+    protected double getRate(long now)
+    {
+        if (m_BurstDurationNanos > 0 && (now - m_ConnectedAt) % m_BurstIntervalNanos >= m_BurstIntervalNanos - m_BurstDurationNanos)
+        {
+            return m_MessagesPerSecond * m_BurstFactor;
+        }
+
+        return m_MessagesPerSecond;
+    }
+
+    protected void join(IChatCallbacks callbacks, long now)
+    {
+        m_ConnectAt = 0;
+
+        ErrorCode failure = m_ConnectFailure;
+        m_ConnectFailure = null;
+        if (failure != null)
+        {
+            if (callbacks != null)
+            {
+                callbacks.chatStatusCallback(failure);
+            }
+            return;
+        }
+
+        m_Connected = true;
+        m_ConnectedAt = now;
+        m_LastFlush = now;
+        m_MessageDebt = 0;
+        m_ChurnDebt = 0;
+        m_NumDelivered = 0;
+        m_NumCallbacks = 0;
+        m_NumJoins = 0;
+        m_NumLeaves = 0;
+
+        if (callbacks != null)
+        {
+            callbacks.chatStatusCallback(ErrorCode.TTV_EC_SUCCESS);
+            callbacks.chatChannelMembershipCallback(ChatEvent.TTV_CHAT_JOINED_CHANNEL, createChannelInfo());
+
+            // the viewers already in the channel arrive as one big join
+            ChatUserList empty = new ChatUserList();
+            empty.userList = s_NoUsers;
+            callbacks.chatChannelUserChangeCallback(createUserList(true), empty, empty);
+        }
+    }
+
+    protected void churnUsers(IChatCallbacks callbacks, int count)
+    {
+        List<ChatUserInfo> joined = new ArrayList<ChatUserInfo>();
+        List<ChatUserInfo> left = new ArrayList<ChatUserInfo>();
+
+        for (int i = 0; i < count; ++i)
+        {
+            int index = m_Random.nextInt(m_Users.length);
+            if (m_Present[index])
+            {
+                m_Present[index] = false;
+                m_PresentCount--;
+                m_NumLeaves++;
+                left.add(m_Users[index]);
+            }
+            else
+            {
+                m_Present[index] = true;
+                m_PresentCount++;
+                m_NumJoins++;
+                joined.add(m_Users[index]);
+            }
+        }
+
+        if (callbacks == null)
+        {
+            return;
+        }
+
+        ChatUserList joinList = new ChatUserList();
+        joinList.userList = joined.toArray(s_NoUsers);
+        ChatUserList leaveList = new ChatUserList();
+        leaveList.userList = left.toArray(s_NoUsers);
+        ChatUserList infoList = new ChatUserList();
+        infoList.userList = s_NoUsers;
+
+        callbacks.chatChannelUserChangeCallback(joinList, leaveList, infoList);
+    }
+
+    protected void deliverMessages(IChatCallbacks callbacks, int count)
+    {
+        while (count > 0)
+        {
+            int batch = Math.min(count, m_MaxBatchSize);
+            count -= batch;
+
+            int first = m_NextMessage;
+            ChatMessageList list = nextMessageList(batch);
+            ChatTokenizedMessage[] tokenized = null;
+            if (m_Tokenize)
+            {
+                m_NextMessage = first;
+                tokenized = nextTokenizedMessages(batch);
+            }
+
+            m_NumDelivered += batch;
+            m_NumCallbacks++;
+
+            if (callbacks != null)
+            {
+                callbacks.chatChannelMessageCallback(list);
+                if (tokenized != null)
+                {
+                    callbacks.chatChannelTokenizedMessageCallback(tokenized);
+                }
+            }
+        }
+    }
+
+    protected ChatChannelInfo createChannelInfo()
+    {
+        ChatChannelInfo info = new ChatChannelInfo();
+        info.name = m_Channel;
+        info.broadcasterUserInfo = new ChatUserInfo();
+        info.broadcasterUserInfo.displayName = m_Channel;
+        info.broadcasterUserInfo.modes = new HashSet<ChatUserMode>();
+        info.broadcasterUserInfo.modes.add(ChatUserMode.TTV_CHAT_USERMODE_BROADCASTER);
+        info.broadcasterUserInfo.subscriptions = new HashSet<ChatUserSubscription>();
+        return info;
+    }
+
+    protected ChatUserList createUserList(boolean present)
+    {
+        List<ChatUserInfo> users = new ArrayList<ChatUserInfo>();
+        for (int i = 0; i < m_Users.length; ++i)
+        {
+            if (m_Present[i] == present)
+            {
+                users.add(m_Users[i]);
+            }
+        }
+
+        ChatUserList list = new ChatUserList();
+        list.userList = users.toArray(s_NoUsers);
+        return list;
+    }
+
+    protected void createUsers()
+    {
+        m_Users = new ChatUserInfo[m_UserCount];
+        m_Present = new boolean[m_UserCount];
+        m_PresentCount = 0;
+
+        for (int i = 0; i < m_UserCount; ++i)
+        {
+            ChatUserInfo user = new ChatUserInfo();
+            user.displayName = "viewer" + i;
+            user.nameColorARGB = 0xff000000 | m_Random.nextInt(0x1000000);
+            user.modes = new HashSet<ChatUserMode>();
+            user.modes.add(m_Random.nextInt(100) == 0 ? ChatUserMode.TTV_CHAT_USERMODE_MODERATOR : ChatUserMode.TTV_CHAT_USERMODE_VIEWER);
+            user.subscriptions = new HashSet<ChatUserSubscription>();
+
+            int subscription = m_Random.nextInt(100);
+            user.subscriptions.add(subscription < 10 ? ChatUserSubscription.TTV_CHAT_USERSUB_SUBSCRIBER :
+                                   subscription < 13 ? ChatUserSubscription.TTV_CHAT_USERSUB_TURBO : ChatUserSubscription.TTV_CHAT_USERSUB_NONE);
+
+            m_Users[i] = user;
+            m_Present[i] = i % 2 == 0;
+            if (m_Present[i])
+            {
+                m_PresentCount++;
+            }
+        }
+    }
+
+    /**
+     * Generates the message pool.  A few viewers write most of the messages, as in real chat.
+     */
+    protected void createMessages()
+    {
+        m_Messages = new ChatMessage[s_PoolSize];
+        m_TokenizedMessages = new ChatTokenizedMessage[s_PoolSize];
+        m_NextMessage = 0;
+
+        Random random = new Random(m_Seed ^ 0x5eed);
+        StringBuilder text = new StringBuilder();
+        List<ChatMessageToken> tokens = new ArrayList<ChatMessageToken>();
+
+        for (int i = 0; i < s_PoolSize; ++i)
+        {
+            double skew = random.nextDouble();
+            ChatUserInfo user = m_Users[(int)(skew * skew * skew * m_Users.length)];
+
+            text.setLength(0);
+            tokens.clear();
+            StringBuilder run = new StringBuilder();
+
+            // message lengths are roughly geometric with a mean of about six words
+            int words = 1;
+            while (words < 40 && random.nextInt(6) != 0)
+            {
+                words++;
+            }
+
+            for (int w = 0; w < words; ++w)
+            {
+                if (w > 0)
+                {
+                    text.append(' ');
+                    run.append(' ');
+                }
+
+                if (random.nextInt(5) == 0)
+                {
+                    int emoticon = random.nextInt(s_Emoticons.length);
+                    text.append(s_Emoticons[emoticon]);
+
+                    if (run.length() > 0)
+                    {
+                        tokens.add(createTextToken(run.toString()));
+                        run.setLength(0);
+                    }
+                    tokens.add(createEmoticonToken(emoticon));
+                }
+                else
+                {
+                    String word = s_Words[random.nextInt(s_Words.length)];
+                    text.append(word);
+                    run.append(word);
+                }
+            }
+
+            if (run.length() > 0)
+            {
+                tokens.add(createTextToken(run.toString()));
+            }
+
+            ChatMessage message = new ChatMessage();
+            message.userName = user.displayName;
+            message.message = text.toString();
+            message.modes = user.modes;
+            message.subscriptions = user.subscriptions;
+            message.nameColorARGB = user.nameColorARGB;
+            message.action = random.nextInt(50) == 0;
+            m_Messages[i] = message;
+
+            ChatTokenizedMessage tokenized = new ChatTokenizedMessage();
+            tokenized.displayName = user.displayName;
+            tokenized.modes = user.modes;
+            tokenized.subscriptions = user.subscriptions;
+            tokenized.nameColorARGB = user.nameColorARGB;
+            tokenized.action = message.action;
+            tokenized.tokenList = tokens.toArray(new ChatMessageToken[tokens.size()]);
+            m_TokenizedMessages[i] = tokenized;
+        }
+    }
+
+    protected ChatMessageToken createTextToken(String text)
+    {
+        ChatTextMessageToken token = new ChatTextMessageToken();
+        token.type = ChatMessageTokenType.TTV_CHAT_MSGTOKEN_TEXT;
+        token.text = text;
+        return token;
+    }
+
+    protected ChatMessageToken createEmoticonToken(int emoticon)
+    {
+        if (m_TextureAtlas)
+        {
+            ChatTextureImageMessageToken token = new ChatTextureImageMessageToken();
+            token.type = ChatMessageTokenType.TTV_CHAT_MSGTOKEN_TEXTURE_IMAGE;
+            token.sheetIndex = 0;
+            token.x1 = (short)(emoticon * 28);
+            token.y1 = 0;
+            token.x2 = (short)(emoticon * 28 + 28);
+            token.y2 = 28;
+            return token;
+        }
+
+        ChatUrlImageMessageToken token = new ChatUrlImageMessageToken();
+        token.type = ChatMessageTokenType.TTV_CHAT_MSGTOKEN_URL_IMAGE;
+        token.url = "http://static-cdn.jtvnw.net/emoticons/v1/" + emoticon + "/1.0";
+        token.width = 28;
+        token.height = 28;
+        return token;
+    }
+
+    //endregion
+}
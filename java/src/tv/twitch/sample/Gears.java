@@ -82,7 +82,6 @@ public class Gears implements BroadcastController.Listener, IngestTester.Listene
 	private String clientSecret = "";
 	
 	private BroadcastController broadcastController = null;
-	private long lastCaptureTime = 0;						//!< The timestamp of the last frame capture.
 	private long metaDataSpanSequenceId = -1; 
     private IngestTester ingestTester = null;
 
@@ -616,25 +615,10 @@ public class Gears implements BroadcastController.Listener, IngestTester.Listene
 	    	return;
 		}
 	    
-		long curTime = System.nanoTime();
-		long nanoPerFrame = 1000000000 / broadcastFramesPerSecond;
-		
 		// If you send frames too quickly to the SDK (based on the broadcast FPS you configured) it will not be able 
 		// to make use of them all.  In that case, it will simply release buffers without using them which means the
-		// game wasted time doing the capture.  To mitigate this, the app should pace the captures to the broadcast FPS.
-		long captureDelta = curTime - lastCaptureTime;
-		boolean isTimeForNextCapture = captureDelta >= nanoPerFrame;
-	
-		if (!isTimeForNextCapture)
-		{
-			return;
-		}
-		
-		FrameBuffer buffer = broadcastController.getNextFreeBuffer();
-		broadcastController.captureFrameBuffer_ReadPixels(buffer);
-		broadcastController.submitFrame(buffer);
-	
-		lastCaptureTime = curTime;
+		// game wasted time doing the capture.  The controller paces the captures to the broadcast FPS for us.
+		broadcastController.captureFrameIfDue();
 	}
 
 	private void initBroadcasting()
@@ -649,6 +633,7 @@ public class Gears implements BroadcastController.Listener, IngestTester.Listene
 		
 		broadcastController.setClientId(clientId);
 		broadcastController.setClientSecret(clientSecret);
+		broadcastController.setFrameSource(new PboFrameSource());
 		broadcastController.initialize();
 	}
 	
@@ -0,0 +1,139 @@
+package tv.twitch.sample;
+
+import java.nio.ByteBuffer;
+
+import tv.twitch.broadcast.FrameBuffer;
+import tv.twitch.broadcast.FrameBufferMemory;
+import tv.twitch.broadcast.FrameBufferView;
+import tv.twitch.broadcast.FrameSource;
+import tv.twitch.broadcast.VideoParams;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL21.*;
+
+/**
+ * Captures the back buffer asynchronously using a ring of pixel buffer objects.  Each call to captureFrame() queues a read of the
+ * current frame into the next PBO and copies out the PBO which was queued (count - 1) frames ago.  By then the GPU has long since
+ * finished the transfer so mapping the PBO doesn't stall.  The broadcast therefore lags the game by (count - 1) frames.
+ *
+ * This only needs OpenGL 2.1 and works on software implementations such as Mesa llvmpipe.
+ */
+public class PboFrameSource implements FrameSource
+{
+	protected int m_NumPbos = 3;
+	protected int[] m_Pbos = null;
+	protected int m_Width = 0;
+	protected int m_Height = 0;
+	protected int m_Format = GL_RGBA;
+	protected int m_Type = GL_UNSIGNED_BYTE;
+	protected long m_FrameIndex = 0;
+	protected ByteBuffer m_Mapped = null;	//!< The last mapped buffer which LWJGL can reuse if the mapping doesn't move.
+
+	/**
+	 * @param numPbos The number of PBOs to cycle through.  2 for double buffering and 3 for triple buffering.
+	 */
+	public PboFrameSource(int numPbos)
+	{
+		m_NumPbos = Math.max(2, numPbos);
+	}
+
+	public PboFrameSource()
+	{
+		this(3);
+	}
+
+	public boolean start(VideoParams videoParams)
+	{
+		m_Width = videoParams.outputWidth;
+		m_Height = videoParams.outputHeight;
+		m_FrameIndex = 0;
+
+		// pick a format and type which makes GL write the bytes in the order of the pixel format
+		switch (videoParams.pixelFormat)
+		{
+			case TTV_PF_BGRA: m_Format = GL_BGRA; m_Type = GL_UNSIGNED_BYTE; break;
+			case TTV_PF_ARGB: m_Format = GL_BGRA; m_Type = GL_UNSIGNED_INT_8_8_8_8; break;
+			case TTV_PF_ABGR: m_Format = GL_RGBA; m_Type = GL_UNSIGNED_INT_8_8_8_8; break;
+			case TTV_PF_RGBA:
+			default:          m_Format = GL_RGBA; m_Type = GL_UNSIGNED_BYTE; break;
+		}
+
+		if (!FrameBufferMemory.getIsAvailable())
+		{
+			return false;
+		}
+
+		m_Pbos = new int[m_NumPbos];
+		for (int i = 0; i < m_NumPbos; ++i)
+		{
+			m_Pbos[i] = glGenBuffers();
+			glBindBuffer(GL_PIXEL_PACK_BUFFER, m_Pbos[i]);
+			glBufferData(GL_PIXEL_PACK_BUFFER, (long)m_Width * m_Height * 4, GL_STREAM_READ);
+		}
+		glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+
+		return true;
+	}
+
+	public boolean captureFrame(FrameBuffer buffer)
+	{
+		int writeIndex = (int)(m_FrameIndex % m_NumPbos);
+
+		// queue the read of this frame, this returns immediately
+		glPixelStorei(GL_PACK_ALIGNMENT, 4);
+		glBindBuffer(GL_PIXEL_PACK_BUFFER, m_Pbos[writeIndex]);
+		glReadPixels(0, 0, m_Width, m_Height, m_Format, m_Type, 0);
+
+		m_FrameIndex++;
+
+		// the oldest read isn't available until the ring has filled
+		if (m_FrameIndex < m_NumPbos)
+		{
+			glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+			return false;
+		}
+
+		int readIndex = (int)(m_FrameIndex % m_NumPbos);
+		glBindBuffer(GL_PIXEL_PACK_BUFFER, m_Pbos[readIndex]);
+
+		boolean captured = false;
+		m_Mapped = glMapBuffer(GL_PIXEL_PACK_BUFFER, GL_READ_ONLY, (long)m_Width * m_Height * 4, m_Mapped);
+		if (m_Mapped != null)
+		{
+			ByteBuffer memory = FrameBufferView.getBytes(buffer);
+			if (memory != null && memory.capacity() >= m_Mapped.capacity())
+			{
+				// a duplicate so the position of the shared view stays untouched
+				ByteBuffer destination = memory.duplicate();
+				m_Mapped.rewind();
+				destination.clear();
+				destination.put(m_Mapped);
+				captured = true;
+			}
+
+			glUnmapBuffer(GL_PIXEL_PACK_BUFFER);
+		}
+
+		glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+
+		return captured;
+	}
+
+	public void stop()
+	{
+		if (m_Pbos == null)
+		{
+			return;
+		}
+
+		for (int i = 0; i < m_Pbos.length; ++i)
+		{
+			glDeleteBuffers(m_Pbos[i]);
+		}
+
+		m_Pbos = null;
+		m_Mapped = null;
+	}
+}
@@ -0,0 +1,379 @@
+package tv.twitch.trace;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records timed events from the broadcast and chat controllers, and from the game, and exports them as Trace Event JSON which can be
+ * loaded into chrome://tracing or Perfetto to see how they line up.
+ *
+ * Events are registered once with registerEvent() and recorded by id.  Each thread writes fixed-size records into its own ring buffer so
+ * recording never locks, and once a thread has its ring for a recording it never allocates.  When the ring is full the oldest records are overwritten.
+ * When recording is off begin() and end() only read a volatile flag.
+ *
+ * A span is recorded with:
+ *
+ *     long start = TraceRecorder.begin();
+ *     ...
+ *     TraceRecorder.end(s_TraceUpdate, start);
+ *
+ * Exporting may be done from any thread while recording continues.  Records overwritten while they are being copied are left out.
+ */
+public final class TraceRecorder
+{
+    /**
+     * The events a single thread has recorded.  Only the owning thread writes so the count is published with a lazy set.
+     */
+    private static final class ThreadBuffer
+    {
+        final long[] records;
+        final int mask;
+        final long threadId;
+        final String threadName;
+        final AtomicLong count = new AtomicLong(0);
+        final int generation;
+
+        ThreadBuffer(int capacity, int generation)
+        {
+            this.records = new long[capacity * s_RecordLongs];
+            this.mask = capacity - 1;
+            this.threadId = Thread.currentThread().getId();
+            this.threadName = Thread.currentThread().getName();
+            this.generation = generation;
+        }
+    }
+
+    private static final int s_RecordLongs = 4;         //!< The start time, the duration or -1 for instants, the event id and the argument.
+    private static final long s_Instant = -1;
+    private static final int s_DefaultCapacity = 1 << 16;
+
+    private static final List<String> s_Names = new ArrayList<String>();
+    private static final List<String> s_Categories = new ArrayList<String>();
+    private static final List<ThreadBuffer> s_Buffers = new ArrayList<ThreadBuffer>();
+    private static final ThreadLocal<ThreadBuffer> s_ThreadBuffer = new ThreadLocal<ThreadBuffer>();
+
+    private static volatile boolean s_Enabled = false;
+    private static volatile int s_Generation = 0;        //!< Bumped by start() so each thread clears its own ring on its next record.
+    private static volatile int s_Capacity = s_DefaultCapacity;
+    private static volatile long s_Origin = System.nanoTime();
+
+    private static final int s_FrameEvent = registerEvent("frame", "game");
+    private static long s_FrameNumber = 0;
+
+    private TraceRecorder()
+    {
+    }
+
+    /**
+     * Registers an event and returns the id to record it with.  Registering the same name and category again returns the same id.  This is
+     * meant to be done once, typically into a static final field.
+     */
+    public static int registerEvent(String name, String category)
+    {
+        synchronized (s_Names)
+        {
+            for (int i = 0; i < s_Names.size(); ++i)
+            {
+                if (s_Names.get(i).equals(name) && s_Categories.get(i).equals(category))
+                {
+                    return i;
+                }
+            }
+
+            s_Names.add(name);
+            s_Categories.add(category);
+            return s_Names.size() - 1;
+        }
+    }
+
+    /**
+     * Whether or not events are being recorded.
+     */
+    public static boolean getIsEnabled()
+    {
+        return s_Enabled;
+    }
+
+    /**
+     * Discards everything recorded so far and starts recording.
+     * @param recordsPerThread The number of events each thread keeps before overwriting the oldest, rounded up to a power of two.
+     */
+    public static void start(int recordsPerThread)
+    {
+        int capacity = 1;
+        while (capacity < recordsPerThread)
+        {
+            capacity <<= 1;
+        }
+
+        synchronized (s_Buffers)
+        {
+            s_Enabled = false;
+            s_Capacity = capacity;
+            s_Buffers.clear();
+            s_Origin = System.nanoTime();
+            s_FrameNumber = 0;
+            s_Generation++;
+            s_Enabled = true;
+        }
+    }
+
+    public static void start()
+    {
+        start(s_DefaultCapacity);
+    }
+
+    /**
+     * Stops recording.  What has been recorded can still be exported.
+     */
+    public static void stop()
+    {
+        s_Enabled = false;
+    }
+
+    /**
+     * Returns the time to pass to end(), or 0 if recording is off.
+     */
+    public static long begin()
+    {
+        return s_Enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records a span from the time returned by begin() until now.  Nothing is recorded if recording was off when begin() was called.
+     */
+    public static void end(int event, long start)
+    {
+        if (start != 0 && s_Enabled)
+        {
+            long now = System.nanoTime();
+            write(event, start, now - start, 0);
+        }
+    }
+
+    /**
+     * Records a span from the time returned by begin() until now with an argument, such as the number of items processed.
+     */
+    public static void end(int event, long start, long argument)
+    {
+        if (start != 0 && s_Enabled)
+        {
+            long now = System.nanoTime();
+            write(event, start, now - start, argument);
+        }
+    }
+
+    /**
+     * Records a point in time on the calling thread.
+     */
+    public static void instant(int event, long argument)
+    {
+        if (s_Enabled)
+        {
+            write(event, System.nanoTime(), s_Instant, argument);
+        }
+    }
+
+    /**
+     * Marks the start of a game frame, numbered from when recording started.  Call this once per frame from the game loop so the other
+     * events can be read against the frames.
+     */
+    public static void markFrame()
+    {
+        if (s_Enabled)
+        {
+            write(s_FrameEvent, System.nanoTime(), s_Instant, s_FrameNumber++);
+        }
+    }
+
+    private static void write(int event, long start, long duration, long argument)
+    {
+        ThreadBuffer buffer = s_ThreadBuffer.get();
+        int generation = s_Generation;
+        if (buffer == null || buffer.generation != generation)
+        {
+            buffer = attach(generation);
+        }
+
+        long count = buffer.count.get();
+        int index = (int)(count & buffer.mask) * s_RecordLongs;
+        long[] records = buffer.records;
+        records[index] = start;
+        records[index + 1] = duration;
+        records[index + 2] = event;
+        records[index + 3] = argument;
+
+        buffer.count.lazySet(count + 1);
+    }
+
+    /**
+     * Gives the calling thread a new ring for the current recording.  Old rings are never reused so an export racing with start() can't
+     * read one which has been reset.
+     */
+    private static ThreadBuffer attach(int generation)
+    {
+        synchronized (s_Buffers)
+        {
+            ThreadBuffer buffer = new ThreadBuffer(s_Capacity, generation);
+            s_ThreadBuffer.set(buffer);
+
+            if (generation == s_Generation)
+            {
+                s_Buffers.add(buffer);
+            }
+
+            return buffer;
+        }
+    }
+
+    /**
+     * Writes everything recorded since the last start() as Trace Event JSON.
+     */
+    public static void export(Writer writer) throws IOException
+    {
+        List<ThreadBuffer> buffers;
+        long origin;
+        synchronized (s_Buffers)
+        {
+            buffers = new ArrayList<ThreadBuffer>(s_Buffers);
+            origin = s_Origin;
+        }
+
+        String[] names;
+        String[] categories;
+        synchronized (s_Names)
+        {
+            names = s_Names.toArray(new String[s_Names.size()]);
+            categories = s_Categories.toArray(new String[s_Categories.size()]);
+        }
+
+        StringBuilder line = new StringBuilder(256);
+        boolean first = true;
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+
+        for (ThreadBuffer buffer : buffers)
+        {
+            line.setLength(0);
+            line.append(first ? "" : ",\n");
+            line.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":").append(buffer.threadId);
+            line.append(",\"args\":{\"name\":");
+            appendString(line, buffer.threadName);
+            line.append("}}");
+            writer.write(line.toString());
+            first = false;
+
+            // copy first and then drop whatever the owner overwrote while copying
+            int capacity = buffer.mask + 1;
+            long end = buffer.count.get();
+            long begin = Math.max(0, end - capacity);
+            long[] copy = new long[(int)(end - begin) * s_RecordLongs];
+            for (long i = begin; i < end; ++i)
+            {
+                System.arraycopy(buffer.records, (int)(i & buffer.mask) * s_RecordLongs, copy, (int)(i - begin) * s_RecordLongs, s_RecordLongs);
+            }
+            long valid = Math.max(begin, buffer.count.get() - capacity + 1);
+
+            for (long i = valid; i < end; ++i)
+            {
+                int index = (int)(i - begin) * s_RecordLongs;
+                int event = (int)copy[index + 2];
+                if (event < 0 || event >= names.length)
+                {
+                    continue;
+                }
+
+                line.setLength(0);
+                line.append(",\n{\"name\":");
+                appendString(line, names[event]);
+                line.append(",\"cat\":");
+                appendString(line, categories[event]);
+                if (copy[index + 1] == s_Instant)
+                {
+                    line.append(",\"ph\":\"i\",\"s\":\"t\"");
+                }
+                else
+                {
+                    line.append(",\"ph\":\"X\",\"dur\":");
+                    appendMicros(line, copy[index + 1]);
+                }
+                line.append(",\"ts\":");
+                appendMicros(line, copy[index] - origin);
+                line.append(",\"pid\":1,\"tid\":").append(buffer.threadId);
+                line.append(",\"args\":{\"value\":").append(copy[index + 3]).append("}}");
+                writer.write(line.toString());
+            }
+        }
+
+        writer.write("\n]}\n");
+        writer.flush();
+    }
+
+    /**
+     * Writes everything recorded since the last start() to a file as Trace Event JSON.
+     */
+    public static void export(File file) throws IOException
+    {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try
+        {
+            export(writer);
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    /**
+     * Appends nanoseconds as microseconds with three decimals, without going through the locale.
+     */
+    private static void appendMicros(StringBuilder builder, long nanos)
+    {
+        if (nanos < 0)
+        {
+            builder.append('-');
+            nanos = -nanos;
+        }
+
+        long fraction = nanos % 1000;
+        builder.append(nanos / 1000).append('.');
+        if (fraction < 100)
+        {
+            builder.append('0');
+        }
+        if (fraction < 10)
+        {
+            builder.append('0');
+        }
+        builder.append(fraction);
+    }
+
+    private static void appendString(StringBuilder builder, String value)
+    {
+        builder.append('"');
+        for (int i = 0; i < value.length(); ++i)
+        {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+            {
+                builder.append('\\').append(c);
+            }
+            else if (c < 0x20)
+            {
+                builder.append(String.format("\\u%04x", (int)c));
+            }
+            else
+            {
+                builder.append(c);
+            }
+        }
+        builder.append('"');
+    }
+}